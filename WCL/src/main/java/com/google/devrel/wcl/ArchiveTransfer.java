@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.wearable.Channel;
+import com.google.devrel.wcl.connectivity.WearFileTransfer.OnChannelTransferProgressListener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * The two ends of the transfers of whole directories that are started by
+ * {@link com.google.devrel.wcl.connectivity.WearFileTransfer}. All the files of a directory go
+ * over a single channel, opened under {@link Constants#PATH_FILE_TRANSFER_TYPE_ARCHIVE}, as a
+ * simple archive:
+ * <ol>
+ *     <li>a header, {@link #MAGIC} and the {@code int} number of entries;</li>
+ *     <li>the manifest: for each entry, its path relative to the directory, as a modified UTF-8
+ *     string, and its {@code long} size;</li>
+ *     <li>for each entry, in the order of the manifest, its bytes followed by their
+ *     {@link CRC32}, as an {@code int}.</li>
+ * </ol>
+ * The receiver then writes the status code of the transfer, as an {@code int}. The entries are
+ * unpacked into a temporary directory next to the destination, and the whole directory is moved to
+ * its final place once every entry has passed its check, so that the receiving app never sees half
+ * of an archive. Empty directories are not carried over. If the path of the channel ends with
+ * {@link com.google.devrel.wcl.connectivity.WearFileTransfer#ENCODING_DEFLATE}, the archive, but
+ * not the status code, is compressed.
+ */
+class ArchiveTransfer {
+
+    private static final String TAG = "ArchiveTransfer";
+    static final int MAGIC = 0x57434c41; // "WCLA"
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_ENTRIES = 64 * 1024;
+    private static final long TIMEOUT_MS = 30 * 1000;
+
+    private final WearManager mWearManager;
+    private final Context mContext;
+    private final ExecutorService mExecutor = WclExecutors.newBoundedPool("wcl-archive", 2);
+
+    ArchiveTransfer(WearManager wearManager, Context context) {
+        mWearManager = wearManager;
+        mContext = context;
+    }
+
+    /**
+     * Sends the files of {@code snapshot} over {@code channel} and reports the status code of the
+     * transfer to {@code listener}. The progress, if requested, is reported to
+     * {@code progressListener} on the sending thread. The channel is closed when done.
+     */
+    void send(final Channel channel, final DirectorySnapshot snapshot, final boolean compressed,
+            @Nullable final OnChannelTransferProgressListener progressListener,
+            final ResumableTransfer.OnTransferDoneListener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int statusCode;
+                try {
+                    statusCode = sendInternal(channel, snapshot, compressed, progressListener);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to send " + snapshot.getDirectory(), e);
+                    statusCode = CommonStatusCodes.ERROR;
+                } finally {
+                    mWearManager.closeChannel(channel);
+                }
+                listener.onTransferDone(statusCode);
+            }
+        });
+    }
+
+    private int sendInternal(Channel channel, DirectorySnapshot snapshot, boolean compressed,
+            @Nullable OnChannelTransferProgressListener progressListener) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            out = mWearManager.getChannelOutputStreamSynchronous(channel, TIMEOUT_MS);
+            in = mWearManager.getChannelInputStreamSynchronous(channel, TIMEOUT_MS);
+            if (out == null || in == null) {
+                return CommonStatusCodes.ERROR;
+            }
+            DeflaterOutputStream deflater = null;
+            if (compressed) {
+                deflater = new DeflaterOutputStream(out);
+                out = deflater;
+            }
+            // the sizes come from the snapshot, so that they agree with the size in the path
+            List<File> files = snapshot.getFiles();
+            long total = snapshot.getTotalSize();
+            String root = snapshot.getDirectory().getAbsolutePath();
+            DataOutputStream dataOut = new DataOutputStream(
+                    new BufferedOutputStream(out, BUFFER_SIZE));
+            dataOut.writeInt(MAGIC);
+            dataOut.writeInt(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                String relativePath = file.getAbsolutePath().substring(root.length() + 1)
+                        .replace(File.separatorChar, '/');
+                dataOut.writeUTF(relativePath);
+                dataOut.writeLong(snapshot.getSize(i));
+            }
+            Utils.LOGD(TAG, "Sending " + files.size() + " files, " + total + " bytes");
+
+            TransferProgress progress = progressListener != null
+                    ? new TransferProgress(progressListener, 0, total) : null;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            CRC32 crc = new CRC32();
+            long sent = 0;
+            for (int i = 0; i < files.size(); i++) {
+                crc.reset();
+                InputStream fileIn = new FileInputStream(files.get(i));
+                try {
+                    long remaining = snapshot.getSize(i);
+                    while (remaining > 0) {
+                        int count = fileIn.read(buffer, 0, (int) Math.min(buffer.length,
+                                remaining));
+                        if (count == -1) {
+                            throw new IOException(files.get(i)
+                                    + " was truncated while it was being sent");
+                        }
+                        crc.update(buffer, 0, count);
+                        dataOut.write(buffer, 0, count);
+                        remaining -= count;
+                        sent += count;
+                        if (progress != null) {
+                            progress.update(sent);
+                        }
+                    }
+                } finally {
+                    closeQuietly(fileIn);
+                }
+                dataOut.writeInt((int) crc.getValue());
+            }
+            dataOut.flush();
+            if (deflater != null) {
+                deflater.finish();
+                deflater.flush();
+            }
+            return new DataInputStream(in).readInt();
+        } finally {
+            closeQuietly(out);
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Receives an archive over {@code channel} and unpacks it into the directory that the
+     * {@link FileReceivePolicy} gives for {@code name}, replacing any previous version of it, then
+     * reports the progress and the result to the consumers. The channel is closed when done.
+     */
+    void receive(final Channel channel, final String requestId, final String name,
+            final long size, final boolean compressed) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileReceivePolicy policy = mWearManager.getFileReceivePolicy();
+                File outDir = policy.getDestination(mContext, channel.getNodeId(), requestId,
+                        name, size);
+                File tempDir = null;
+                int statusCode = CommonStatusCodes.ERROR;
+                InputStream in = null;
+                OutputStream out = null;
+                try {
+                    in = mWearManager.getChannelInputStreamSynchronous(channel, TIMEOUT_MS);
+                    if (in != null && compressed) {
+                        in = CompressedTransfer.newInflaterStream(in);
+                    }
+                    out = mWearManager.getChannelOutputStreamSynchronous(channel, TIMEOUT_MS);
+                    if (in != null && out != null) {
+                        if (outDir == null) {
+                            statusCode = FileReceivePolicy.STATUS_REJECTED;
+                        } else if (!policy.hasSpaceFor(outDir, size)) {
+                            statusCode = FileReceivePolicy.STATUS_INSUFFICIENT_SPACE;
+                        } else {
+                            FileReceivePolicy.deleteStaleTempFiles(outDir);
+                            tempDir = FileReceivePolicy.getTempFile(outDir,
+                                    UUID.randomUUID().toString());
+                            if (!tempDir.mkdirs()) {
+                                throw new IOException("Failed to create " + tempDir);
+                            }
+                            unpack(new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE)),
+                                    tempDir, size, mWearManager.getFileReceiveProgressListener(
+                                            requestId));
+                            if (FileReceivePolicy.commit(tempDir, outDir)) {
+                                statusCode = CommonStatusCodes.SUCCESS;
+                            }
+                        }
+                        DataOutputStream dataOut = new DataOutputStream(out);
+                        dataOut.writeInt(statusCode);
+                        dataOut.flush();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to receive the files of " + requestId, e);
+                } finally {
+                    if (tempDir != null && tempDir.exists()) {
+                        FileReceivePolicy.delete(tempDir);
+                    }
+                    closeQuietly(in);
+                    closeQuietly(out);
+                    mWearManager.closeChannel(channel);
+                }
+                mWearManager.notifyFileReceived(statusCode, requestId, outDir, name);
+            }
+        });
+    }
+
+    private void unpack(DataInputStream dataIn, File directory, long size,
+            OnChannelTransferProgressListener progressListener) throws IOException {
+        if (dataIn.readInt() != MAGIC) {
+            throw new IOException("Not an archive");
+        }
+        int count = dataIn.readInt();
+        if (count < 0 || count > MAX_ENTRIES) {
+            throw new IOException("Invalid number of entries: " + count);
+        }
+        String[] paths = new String[count];
+        long[] sizes = new long[count];
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            paths[i] = dataIn.readUTF();
+            sizes[i] = dataIn.readLong();
+            if (sizes[i] < 0 || !isSafePath(paths[i])) {
+                throw new IOException("Invalid entry: " + paths[i]);
+            }
+            total += sizes[i];
+        }
+        if (total != size) {
+            throw new IOException("The entries add up to " + total + " bytes, expected " + size);
+        }
+
+        TransferProgress progress = new TransferProgress(progressListener, 0, total);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        long received = 0;
+        for (int i = 0; i < count; i++) {
+            File file = new File(directory, paths[i]);
+            File parent = file.getParentFile();
+            if (!parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Failed to create " + parent);
+            }
+            crc.reset();
+            FileOutputStream fileOut = new FileOutputStream(file);
+            try {
+                long remaining = sizes[i];
+                while (remaining > 0) {
+                    int read = (int) Math.min(buffer.length, remaining);
+                    dataIn.readFully(buffer, 0, read);
+                    crc.update(buffer, 0, read);
+                    fileOut.write(buffer, 0, read);
+                    remaining -= read;
+                    received += read;
+                    progress.update(received);
+                }
+                fileOut.getFD().sync();
+            } finally {
+                closeQuietly(fileOut);
+            }
+            if (dataIn.readInt() != (int) crc.getValue()) {
+                throw new IOException(paths[i] + " failed its check");
+            }
+        }
+        Utils.LOGD(TAG, "Received " + count + " files, " + total + " bytes");
+    }
+
+    /**
+     * Returns {@code true} if {@code path} stays inside the directory it is unpacked into.
+     */
+    private static boolean isSafePath(String path) {
+        if (path.isEmpty() || path.startsWith("/")) {
+            return false;
+        }
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
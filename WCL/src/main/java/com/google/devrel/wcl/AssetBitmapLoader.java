@@ -0,0 +1,575 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.android.gms.wearable.Asset;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Loads the images that are sent as {@link Asset}s, downsampled to the size they are displayed
+ * at. Decoded bitmaps are kept in a memory cache and the encoded images in a disk cache, both
+ * keyed by the digest of the asset and bounded by size, so an image that is shown again costs
+ * neither a call into Play Services nor a decode. Concurrent loads of the same image at the same
+ * size share a single decode. A loader should be created once and shared, for example:
+ * <pre>
+ * AssetBitmapLoader loader = new AssetBitmapLoader.Builder(context)
+ *     .setMemoryCacheSize(4 * 1024 * 1024) // optional, 1/8 of the heap is default
+ *     .build();
+ * loader.load(asset, 320, 320, new AssetBitmapLoader.OnBitmapLoadedListener() {
+ *     public void onBitmapLoaded(Asset asset, Bitmap bitmap) {
+ *         imageView.setImageBitmap(bitmap);
+ *     }
+ * });
+ * </pre>
+ * Bitmaps that are no longer displayed can be handed back through {@link #reuse(Bitmap)}, so that
+ * later decodes write into their memory rather than allocate new bitmaps.
+ */
+public class AssetBitmapLoader {
+
+    private static final String TAG = "AssetBitmapLoader";
+    private static final String DIRECTORY_NAME = "wcl-asset-cache";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long DEFAULT_DISK_CACHE_SIZE_BYTES = 4 * 1024 * 1024;
+    private static final long DEFAULT_TIMEOUT_MS = 30 * 1000;
+    private static final int MAX_REUSABLE_BITMAPS = 4;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final File mDiskCacheDirectory;
+    private final long mDiskCacheSizeBytes;
+    private final long mTimeoutMs;
+
+    // guarded by "mLoads"
+    private final Map<String, Load> mLoads = new HashMap<>();
+
+    // guarded by "mReusableBitmaps"
+    private final LinkedList<Bitmap> mReusableBitmaps = new LinkedList<>();
+
+    /**
+     * The listener that receives the result of {@link #load(Asset, int, int,
+     * OnBitmapLoadedListener)}, on the main thread.
+     */
+    public interface OnBitmapLoadedListener {
+
+        /**
+         * Called with the loaded bitmap, or {@code null} if the asset could not be loaded.
+         */
+        void onBitmapLoaded(Asset asset, @Nullable Bitmap bitmap);
+    }
+
+    /**
+     * A Builder class to help with building an {@link AssetBitmapLoader}.
+     */
+    public static final class Builder {
+
+        private final Context mContext;
+        private int mMemoryCacheSizeBytes = (int) (Runtime.getRuntime().maxMemory() / 8);
+        private long mDiskCacheSizeBytes = DEFAULT_DISK_CACHE_SIZE_BYTES;
+        private long mTimeoutMs = DEFAULT_TIMEOUT_MS;
+
+        public Builder(Context context) {
+            mContext = Utils.assertNotNull(context, "context").getApplicationContext();
+        }
+
+        public AssetBitmapLoader build() {
+            return new AssetBitmapLoader(this);
+        }
+
+        /**
+         * Sets the maximum total size, in bytes, of the decoded bitmaps that are kept in memory.
+         * Default is 1/8 of the maximum heap size.
+         */
+        public Builder setMemoryCacheSize(int memoryCacheSizeBytes) {
+            if (memoryCacheSizeBytes <= 0) {
+                throw new IllegalArgumentException("memoryCacheSizeBytes should be positive");
+            }
+            mMemoryCacheSizeBytes = memoryCacheSizeBytes;
+            return this;
+        }
+
+        /**
+         * Sets the maximum total size, in bytes, of the encoded images that are kept on disk, or
+         * 0 to disable the disk cache. Default is 4MB.
+         */
+        public Builder setDiskCacheSize(long diskCacheSizeBytes) {
+            if (diskCacheSizeBytes < 0) {
+                throw new IllegalArgumentException("diskCacheSizeBytes cannot be negative");
+            }
+            mDiskCacheSizeBytes = diskCacheSizeBytes;
+            return this;
+        }
+
+        /**
+         * Sets the longest time, in milliseconds, to wait for Play Services to open an asset.
+         * Default is 30 seconds.
+         */
+        public Builder setTimeout(long timeoutMs) {
+            if (timeoutMs <= 0) {
+                throw new IllegalArgumentException("timeoutMs should be positive");
+            }
+            mTimeoutMs = timeoutMs;
+            return this;
+        }
+    }
+
+    private AssetBitmapLoader(Builder builder) {
+        mMemoryCache = new LruCache<String, Bitmap>(builder.mMemoryCacheSizeBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        mDiskCacheDirectory = new File(builder.mContext.getCacheDir(), DIRECTORY_NAME);
+        mDiskCacheSizeBytes = builder.mDiskCacheSizeBytes;
+        mTimeoutMs = builder.mTimeoutMs;
+    }
+
+    /**
+     * Loads the image in {@code asset} asynchronously, downsampled so that it is not much larger
+     * than {@code reqWidth} x {@code reqHeight}; pass 0 for either to load the image at its full
+     * size. The {@code listener} is called on the main thread or, if the image is in the memory
+     * cache, right away on the calling thread.
+     */
+    public void load(final Asset asset, int reqWidth, int reqHeight,
+            final OnBitmapLoadedListener listener) {
+        Utils.assertNotNull(asset, "asset");
+        Utils.assertNotNull(listener, "listener");
+        String key = getKey(asset, reqWidth, reqHeight);
+        Bitmap bitmap = key != null ? mMemoryCache.get(key) : null;
+        if (bitmap != null) {
+            listener.onBitmapLoaded(asset, bitmap);
+            return;
+        }
+        Load load;
+        boolean isNew;
+        synchronized (mLoads) {
+            load = key != null ? mLoads.get(key) : null;
+            isNew = load == null;
+            if (isNew) {
+                load = new Load(key, asset, reqWidth, reqHeight);
+                if (key != null) {
+                    mLoads.put(key, load);
+                }
+            }
+            load.mListeners.add(listener);
+        }
+        if (isNew) {
+            final Load newLoad = load;
+            WclExecutors.getIoExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    newLoad.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads the image in {@code asset}, downsampled as in
+     * {@link #load(Asset, int, int, OnBitmapLoadedListener)}, in a blocking way, hence should not
+     * be called on the UI thread. This may return {@code null}.
+     */
+    @Nullable
+    public Bitmap loadSynchronous(Asset asset, int reqWidth, int reqHeight)
+            throws InterruptedException {
+        Utils.assertNotNull(asset, "asset");
+        Utils.assertNonUiThread();
+        String key = getKey(asset, reqWidth, reqHeight);
+        Bitmap bitmap = key != null ? mMemoryCache.get(key) : null;
+        if (bitmap != null) {
+            return bitmap;
+        }
+        Load load;
+        boolean isNew;
+        synchronized (mLoads) {
+            load = key != null ? mLoads.get(key) : null;
+            isNew = load == null;
+            if (isNew) {
+                load = new Load(key, asset, reqWidth, reqHeight);
+                if (key != null) {
+                    mLoads.put(key, load);
+                }
+            }
+        }
+        if (isNew) {
+            // no need to hop to another thread
+            load.run();
+        } else {
+            load.mDone.await();
+        }
+        return load.mBitmap;
+    }
+
+    /**
+     * Hands back a bitmap that is no longer displayed anywhere, so that a later decode can reuse
+     * its memory. The bitmap should not be used after this call.
+     */
+    public void reuse(Bitmap bitmap) {
+        Utils.assertNotNull(bitmap, "bitmap");
+        if (!bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        for (Map.Entry<String, Bitmap> entry : mMemoryCache.snapshot().entrySet()) {
+            if (entry.getValue() == bitmap) {
+                mMemoryCache.remove(entry.getKey());
+            }
+        }
+        synchronized (mReusableBitmaps) {
+            mReusableBitmaps.addFirst(bitmap);
+            if (mReusableBitmaps.size() > MAX_REUSABLE_BITMAPS) {
+                mReusableBitmaps.removeLast();
+            }
+        }
+    }
+
+    /**
+     * Removes all the bitmaps from the memory cache.
+     */
+    public void clearMemoryCache() {
+        mMemoryCache.evictAll();
+        synchronized (mReusableBitmaps) {
+            mReusableBitmaps.clear();
+        }
+    }
+
+    /**
+     * Removes all the images from the disk cache. This performs disk I/O and should not be called
+     * on the UI thread.
+     */
+    public void clearDiskCache() {
+        synchronized (mDiskCacheDirectory) {
+            File[] files = mDiskCacheDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private Bitmap decode(Asset asset, int reqWidth, int reqHeight) {
+        byte[] data = asset.getData();
+        if (data == null) {
+            data = readAsset(asset);
+        }
+        if (data == null) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.e(TAG, "Failed to decode the bounds of an asset");
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, reqWidth,
+                reqHeight);
+        options.inMutable = true;
+        options.inBitmap = takeReusableBitmap(options);
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            // the reusable bitmap did not fit after all
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    /**
+     * Returns the encoded image of {@code asset}, from the disk cache or else from Play Services.
+     */
+    @Nullable
+    private byte[] readAsset(Asset asset) {
+        String digest = asset.getDigest();
+        File file = digest != null && mDiskCacheSizeBytes > 0
+                ? new File(mDiskCacheDirectory, toFileName(digest)) : null;
+        if (file != null) {
+            synchronized (mDiskCacheDirectory) {
+                if (file.exists()) {
+                    try {
+                        byte[] data = readFully(new FileInputStream(file));
+                        file.setLastModified(System.currentTimeMillis());
+                        return data;
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to read a cached asset", e);
+                        file.delete();
+                    }
+                }
+            }
+        }
+        byte[] data;
+        try {
+            InputStream in = WearManager.getInstance().getAssetInputStreamSynchronous(asset,
+                    mTimeoutMs);
+            if (in == null) {
+                Log.w(TAG, "Requested an unknown Asset.");
+                return null;
+            }
+            data = readFully(in);
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "Failed to read an asset", e);
+            return null;
+        }
+        if (file != null) {
+            writeToDiskCache(file, data);
+        }
+        return data;
+    }
+
+    private void writeToDiskCache(File file, byte[] data) {
+        synchronized (mDiskCacheDirectory) {
+            if (!mDiskCacheDirectory.exists() && !mDiskCacheDirectory.mkdirs()) {
+                Log.e(TAG, "Failed to create " + mDiskCacheDirectory);
+                return;
+            }
+            File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(tempFile);
+                out.write(data);
+                out.close();
+                out = null;
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Failed to rename " + tempFile);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to cache an asset", e);
+                tempFile.delete();
+                return;
+            } finally {
+                closeQuietly(out);
+            }
+            trimDiskCache();
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the disk cache fits in its size.
+     */
+    private void trimDiskCache() {
+        File[] files = mDiskCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= mDiskCacheSizeBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long diff = lhs.lastModified() - rhs.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            if (size <= mDiskCacheSizeBytes) {
+                break;
+            }
+            size -= file.length();
+            file.delete();
+        }
+    }
+
+    @Nullable
+    private Bitmap takeReusableBitmap(BitmapFactory.Options options) {
+        synchronized (mReusableBitmaps) {
+            Iterator<Bitmap> iterator = mReusableBitmaps.iterator();
+            while (iterator.hasNext()) {
+                Bitmap bitmap = iterator.next();
+                if (bitmap.isRecycled()) {
+                    iterator.remove();
+                } else if (canReuse(bitmap, options)) {
+                    iterator.remove();
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns {@code true} if {@code bitmap} can be passed as {@code inBitmap} to a decode with
+     * these {@code options}; the rules are stricter before KitKat.
+     */
+    private static boolean canReuse(Bitmap bitmap, BitmapFactory.Options options) {
+        int width = divideRoundingUp(options.outWidth, options.inSampleSize);
+        int height = divideRoundingUp(options.outHeight, options.inSampleSize);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return options.inSampleSize == 1 && bitmap.getWidth() == width
+                    && bitmap.getHeight() == height;
+        }
+        int bytesPerPixel = bitmap.getConfig() == Bitmap.Config.RGB_565 ? 2 : 4;
+        return (long) width * height * bytesPerPixel <= bitmap.getAllocationByteCount();
+    }
+
+    /**
+     * Returns the largest power of 2 that keeps both dimensions of the image at least as large as
+     * the requested ones.
+     */
+    private static int getSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= reqWidth && height / (sampleSize * 2) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static int divideRoundingUp(int dividend, int divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    /**
+     * Returns the key of the memory cache, or {@code null} if the asset has no digest, in which
+     * case the result is not cached.
+     */
+    @Nullable
+    private static String getKey(Asset asset, int reqWidth, int reqHeight) {
+        String digest = asset.getDigest();
+        if (digest == null) {
+            return null;
+        }
+        return digest + "@" + Math.max(reqWidth, 0) + "x" + Math.max(reqHeight, 0);
+    }
+
+    private static String toFileName(String digest) {
+        try {
+            byte[] hash = MessageDigest.getInstance("MD5").digest(digest.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(String.format(Locale.US, "%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // MD5 and UTF-8 are always available
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * A single load, shared by all the callers that ask for the same image at the same size while
+     * it is in progress.
+     */
+    private final class Load implements Runnable {
+
+        private final String mKey;
+        private final Asset mAsset;
+        private final int mReqWidth;
+        private final int mReqHeight;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        // guarded by "mLoads"
+        private final List<OnBitmapLoadedListener> mListeners = new ArrayList<>();
+
+        private volatile Bitmap mBitmap;
+
+        Load(@Nullable String key, Asset asset, int reqWidth, int reqHeight) {
+            mKey = key;
+            mAsset = asset;
+            mReqWidth = reqWidth;
+            mReqHeight = reqHeight;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mBitmap = decode(mAsset, mReqWidth, mReqHeight);
+                if (mBitmap != null && mKey != null) {
+                    mMemoryCache.put(mKey, mBitmap);
+                }
+            } finally {
+                final List<OnBitmapLoadedListener> listeners;
+                synchronized (mLoads) {
+                    if (mKey != null) {
+                        mLoads.remove(mKey);
+                    }
+                    listeners = new ArrayList<>(mListeners);
+                }
+                mDone.countDown();
+                if (!listeners.isEmpty()) {
+                    WclExecutors.getMainThreadExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (OnBitmapLoadedListener listener : listeners) {
+                                listener.onBitmapLoaded(mAsset, mBitmap);
+                            }
+                        }
+                    });
+                }
+            }
+        }
+    }
+}
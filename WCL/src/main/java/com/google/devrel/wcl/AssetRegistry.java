@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Remembers which asset holds the encoded version of a given bitmap, so that putting the same
+ * image again, under any path and in any later session, refers to the existing asset instead of
+ * encoding and sending the image once more. Bitmaps are identified by a hash of their pixels and
+ * of the {@link ImageEncoding}; assets by the digest that the data layer gave them. Entries are
+ * kept in a private {@link SharedPreferences} file, bounded to the most recently added ones.
+ * <p/>
+ * An asset is only kept by the data layer while a data item refers to it, so an entry may point to
+ * an asset that is gone; callers should {@link #remove(String)} such entries and put the image
+ * again.
+ */
+class AssetRegistry {
+
+    private static final String PREFERENCES_NAME = "wcl-asset-registry";
+    private static final int MAX_ENTRIES = 256;
+
+    private final Context mContext;
+
+    // key -> entry, oldest first; guarded by "this"
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+    private SharedPreferences mPreferences;
+
+    AssetRegistry(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns the asset that holds the image identified by {@code key}, or {@code null} if there
+     * is none.
+     */
+    @Nullable
+    synchronized Entry get(String key) {
+        initialize();
+        return mEntries.get(key);
+    }
+
+    synchronized void put(String key, String assetDigest, String imageDigest) {
+        initialize();
+        Entry entry = new Entry(assetDigest, imageDigest, System.currentTimeMillis());
+        mEntries.remove(key);
+        mEntries.put(key, entry);
+        SharedPreferences.Editor editor = mPreferences.edit().putString(key, entry.toString());
+        Iterator<String> iterator = mEntries.keySet().iterator();
+        while (mEntries.size() > MAX_ENTRIES && iterator.hasNext()) {
+            editor.remove(iterator.next());
+            iterator.remove();
+        }
+        editor.apply();
+    }
+
+    synchronized void remove(String key) {
+        initialize();
+        if (mEntries.remove(key) != null) {
+            mPreferences.edit().remove(key).apply();
+        }
+    }
+
+    private void initialize() {
+        if (mPreferences != null) {
+            return;
+        }
+        mPreferences = mContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        List<Map.Entry<String, Entry>> entries = new ArrayList<>();
+        for (Map.Entry<String, ?> value : mPreferences.getAll().entrySet()) {
+            Entry entry = Entry.parse(String.valueOf(value.getValue()));
+            if (entry != null) {
+                entries.add(new AbstractMap.SimpleEntry<>(value.getKey(), entry));
+            }
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> lhs, Map.Entry<String, Entry> rhs) {
+                long diff = lhs.getValue().mAddedAt - rhs.getValue().mAddedAt;
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (Map.Entry<String, Entry> entry : entries) {
+            mEntries.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns the key of {@code bitmap} encoded with {@code encoding}: a SHA-1 hash of its size,
+     * its pixels and the encoding. Hashing the pixels is several times faster than encoding them.
+     */
+    static String getKey(Bitmap bitmap, ImageEncoding encoding) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is always available
+            throw new IllegalStateException(e);
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(width * 4, 32));
+        buffer.putInt(width).putInt(height).putInt(encoding.getFormat().ordinal())
+                .putInt(encoding.getQuality()).putInt(encoding.getMaxWidth())
+                .putInt(encoding.getMaxHeight());
+        digest.update(buffer.array(), 0, buffer.position());
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            buffer.clear();
+            buffer.asIntBuffer().put(row);
+            digest.update(buffer.array(), 0, width * 4);
+        }
+        byte[] hash = digest.digest();
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(String.format(Locale.US, "%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The asset that holds an encoded image.
+     */
+    static final class Entry {
+
+        final String mAssetDigest;
+        final String mImageDigest;
+        final long mAddedAt;
+
+        Entry(String assetDigest, String imageDigest, long addedAt) {
+            mAssetDigest = assetDigest;
+            mImageDigest = imageDigest;
+            mAddedAt = addedAt;
+        }
+
+        @Nullable
+        static Entry parse(String value) {
+            String[] parts = value.split(" ");
+            if (parts.length != 3) {
+                return null;
+            }
+            try {
+                return new Entry(parts[0], parts[1], Long.parseLong(parts[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mAssetDigest + " " + mImageDigest + " " + mAddedAt;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.wearable.Channel;
+import com.google.devrel.wcl.connectivity.WearFileTransfer.OnChannelTransferProgressListener;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The two ends of the compressed file transfers that are started by
+ * {@link com.google.devrel.wcl.connectivity.WearFileTransfer}. The sender opens a channel under
+ * {@link Constants#PATH_FILE_TRANSFER_TYPE_FILE}, with
+ * {@link com.google.devrel.wcl.connectivity.WearFileTransfer#ENCODING_DEFLATE} after the usual
+ * name, size and request id in its path, and writes the file through a deflater; the receiver
+ * inflates it into a temporary file next to its destination, moves it there once it is complete
+ * and writes back the status code of the transfer, as an {@code int}.
+ * Text, such as logs and JSON, typically shrinks several times, and the link is much slower than
+ * the deflater.
+ */
+class CompressedTransfer {
+
+    private static final String TAG = "CompressedTransfer";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long TIMEOUT_MS = 30 * 1000;
+
+    private final WearManager mWearManager;
+    private final Context mContext;
+    private final ExecutorService mExecutor = WclExecutors.newBoundedPool("wcl-deflate", 2);
+
+    CompressedTransfer(WearManager wearManager, Context context) {
+        mWearManager = wearManager;
+        mContext = context;
+    }
+
+    /**
+     * Wraps {@code in}, which carries what was written to a {@link DeflaterOutputStream}, so that
+     * it reads the original bytes.
+     */
+    static InputStream newInflaterStream(InputStream in) {
+        return new InflaterInputStream(in);
+    }
+
+    /**
+     * Sends {@code file}, compressed, over {@code channel} and reports the status code of the
+     * transfer to {@code listener}. The progress, if requested, is reported in uncompressed bytes
+     * to {@code progressListener} on the sending thread. The channel is closed when done.
+     */
+    void send(final Channel channel, final File file,
+            @Nullable final OnChannelTransferProgressListener progressListener,
+            final ResumableTransfer.OnTransferDoneListener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int statusCode;
+                try {
+                    statusCode = sendInternal(channel, file, progressListener);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to send " + file, e);
+                    statusCode = CommonStatusCodes.ERROR;
+                } finally {
+                    mWearManager.closeChannel(channel);
+                }
+                listener.onTransferDone(statusCode);
+            }
+        });
+    }
+
+    private int sendInternal(Channel channel, File file,
+            @Nullable OnChannelTransferProgressListener progressListener) throws IOException {
+        InputStream in = null;
+        DeflaterOutputStream out = null;
+        InputStream fileIn = null;
+        try {
+            OutputStream channelOut = mWearManager.getChannelOutputStreamSynchronous(channel,
+                    TIMEOUT_MS);
+            in = mWearManager.getChannelInputStreamSynchronous(channel, TIMEOUT_MS);
+            if (channelOut == null || in == null) {
+                closeQuietly(channelOut);
+                return CommonStatusCodes.ERROR;
+            }
+            out = new DeflaterOutputStream(channelOut);
+            fileIn = new FileInputStream(file);
+            long length = file.length();
+            TransferProgress progress = progressListener != null
+                    ? new TransferProgress(progressListener, 0, length) : null;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long sent = 0;
+            int count;
+            while ((count = fileIn.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                sent += count;
+                if (progress != null) {
+                    progress.update(sent);
+                }
+            }
+            out.finish();
+            out.flush();
+            return new DataInputStream(in).readInt();
+        } finally {
+            closeQuietly(fileIn);
+            closeQuietly(out);
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Receives a compressed file over {@code channel} into the file that the
+     * {@link FileReceivePolicy} gives for {@code name}, then reports the progress and the result
+     * to the consumers. The channel is closed when done.
+     */
+    void receive(final Channel channel, final String requestId, final String name,
+            final long size) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileReceivePolicy policy = mWearManager.getFileReceivePolicy();
+                File outFile = policy.getDestination(mContext, channel.getNodeId(), requestId,
+                        name, size);
+                File tempFile = null;
+                int statusCode = CommonStatusCodes.ERROR;
+                InputStream in = null;
+                OutputStream out = null;
+                try {
+                    InputStream channelIn = mWearManager.getChannelInputStreamSynchronous(channel,
+                            TIMEOUT_MS);
+                    in = channelIn != null ? newInflaterStream(channelIn) : null;
+                    out = mWearManager.getChannelOutputStreamSynchronous(channel, TIMEOUT_MS);
+                    if (in != null && out != null) {
+                        if (outFile == null) {
+                            statusCode = FileReceivePolicy.STATUS_REJECTED;
+                        } else if (!policy.hasSpaceFor(outFile, size)) {
+                            statusCode = FileReceivePolicy.STATUS_INSUFFICIENT_SPACE;
+                        } else {
+                            tempFile = FileReceivePolicy.getTempFile(outFile,
+                                    Uri.encode(channel.getNodeId() + "-" + requestId));
+                            long received = receiveInternal(in, tempFile, size,
+                                    mWearManager.getFileReceiveProgressListener(requestId));
+                            if (received != size) {
+                                Log.e(TAG, "Received " + received + " bytes, expected " + size);
+                            } else if (FileReceivePolicy.commit(tempFile, outFile)) {
+                                statusCode = CommonStatusCodes.SUCCESS;
+                            }
+                        }
+                        DataOutputStream dataOut = new DataOutputStream(out);
+                        dataOut.writeInt(statusCode);
+                        dataOut.flush();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to receive the file of " + requestId, e);
+                } finally {
+                    if (tempFile != null && tempFile.exists()) {
+                        FileReceivePolicy.delete(tempFile);
+                    }
+                    closeQuietly(in);
+                    closeQuietly(out);
+                    mWearManager.closeChannel(channel);
+                }
+                mWearManager.notifyFileReceived(statusCode, requestId, outFile, name);
+            }
+        });
+    }
+
+    private long receiveInternal(InputStream in, File outFile, long size,
+            OnChannelTransferProgressListener progressListener) throws IOException {
+        TransferProgress progress = new TransferProgress(progressListener, 0, size);
+        FileOutputStream fileOut = new FileOutputStream(outFile);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long received = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                received += count;
+                if (received > size) {
+                    // a corrupt or hostile stream should not be able to fill the disk
+                    throw new IOException("Received more than the expected " + size + " bytes");
+                }
+                fileOut.write(buffer, 0, count);
+                progress.update(received);
+            }
+            fileOut.getFD().sync();
+            return received;
+        } finally {
+            closeQuietly(fileOut);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -26,6 +26,10 @@ public class Constants {
             = "/com.google.devrel.wcl/transfer/file/";
     public static final String PATH_FILE_TRANSFER_TYPE_STREAM
             = "/com.google.devrel.wcl/transfer/stream/";
+    public static final String PATH_FILE_TRANSFER_TYPE_RESUMABLE
+            = "/com.google.devrel.wcl/transfer/resumable/";
+    public static final String PATH_FILE_TRANSFER_TYPE_ARCHIVE
+            = "/com.google.devrel.wcl/transfer/archive/";
 
     // Path to use for launching app
     public static final String PATH_LAUNCH_APP = "/com.google.devrel.wcl/launch-app";
@@ -34,6 +38,12 @@ public class Constants {
     public static final String PATH_HTTP_REQUEST = "/com.google.devrel.wcl/PATH_HTTP_REQUEST";
     public static final String PATH_HTTP_RESPONSE = "/com.google.devrel.wcl/PATH_HTTP_RESPONSE";
 
+    // Path for the channels that carry http response bodies too large for a single message
+    public static final String PATH_HTTP_RESPONSE_STREAM = PATH_HTTP_RESPONSE + "/stream/";
+
+    // Prefix of the data items that hold the keys of the DataMaps synced through WearManager
+    public static final String PATH_DATA_MAP_SYNC = "/com.google.devrel.wcl/sync";
+
     // used in passing an array of strings to the wearable list activity
     public static final String KEY_LIST_REQUEST_CODE
             = "com.google.devrel.wcl.widgets.KEY_LIST_REQUEST_CODE";
@@ -46,5 +56,6 @@ public class Constants {
     public static final String KEY_LIST_CONFIG = "com.google.devrel.wcl.widgets.KEY_LIST_CONFIG";
 
     public static final String KEY_TIMESTAMP = "com.google.devrel.wcl.KEY_TIMESTAMP";
+    public static final String KEY_IMAGE_DIGEST = "com.google.devrel.wcl.KEY_IMAGE_DIGEST";
 
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.PutDataRequest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An in-memory cache of the {@link DataMap}s of data items, keyed by their {@link Uri}. Entries are
+ * added as they are read from the data layer and kept current by the {@code onDataChanged} events,
+ * so a repeated read costs a map lookup rather than a call into Play Services. Only the items that
+ * have been read are tracked. Reads of a path prefix are cached as a whole: once a prefix has been
+ * read, any read under it is served from the cache.
+ * <p/>
+ * A read that was started before a change was received is returned but not cached, so a slow read
+ * never overwrites a newer version of an item. The whole cache is dropped when the connection to
+ * Play Services is suspended, since events could be missed until it is back.
+ */
+class DataItemCache {
+
+    // path -> (node id -> data map), ordered by path for the prefix reads
+    private final TreeMap<String, Map<String, DataMap>> mEntries = new TreeMap<>();
+
+    // "node id" + "path" of the items known not to exist
+    private final Set<String> mMissing = new HashSet<>();
+
+    // the prefixes that were read as a whole
+    private final List<Uri> mLoadedPrefixes = new ArrayList<>();
+
+    // incremented on every change, to detect the reads that raced with a change
+    private long mGeneration;
+
+    /**
+     * Returns the current generation, to be passed to the {@code put} methods along with the
+     * result of a read that is started after this call.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns {@code true} if the item at {@code uri} is known, whether it exists or not.
+     */
+    synchronized boolean contains(Uri uri) {
+        Map<String, DataMap> nodes = mEntries.get(uri.getPath());
+        return (nodes != null && nodes.containsKey(uri.getHost()))
+                || mMissing.contains(uri.getHost() + uri.getPath());
+    }
+
+    /**
+     * Returns a copy of the cached {@link DataMap} of the item at {@code uri}, or {@code null} if
+     * it is not cached or does not exist.
+     */
+    @Nullable
+    synchronized DataMap get(Uri uri) {
+        Map<String, DataMap> nodes = mEntries.get(uri.getPath());
+        DataMap dataMap = nodes != null ? nodes.get(uri.getHost()) : null;
+        return dataMap != null ? copy(dataMap) : null;
+    }
+
+    /**
+     * Returns copies of the cached {@link DataMap}s under {@code prefix}, or {@code null} if that
+     * prefix has not been read as a whole. Without a host, {@code prefix} matches all the nodes.
+     */
+    @Nullable
+    synchronized Map<Uri, DataMap> getAll(Uri prefix) {
+        if (!isLoaded(prefix)) {
+            return null;
+        }
+        String host = prefix.getHost();
+        String path = prefix.getPath() != null ? prefix.getPath() : "";
+        Map<Uri, DataMap> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, DataMap>> entry
+                : mEntries.subMap(path, path + Character.MAX_VALUE).entrySet()) {
+            for (Map.Entry<String, DataMap> node : entry.getValue().entrySet()) {
+                if (host == null || host.equals(node.getKey())) {
+                    result.put(buildUri(node.getKey(), entry.getKey()), copy(node.getValue()));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Caches the result of reading the item at {@code uri}; a {@code null} {@code dataItem} means
+     * that it does not exist.
+     */
+    synchronized void put(Uri uri, @Nullable DataItem dataItem, long generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        if (dataItem == null) {
+            remove(uri.getHost(), uri.getPath());
+            mMissing.add(uri.getHost() + uri.getPath());
+        } else {
+            put(dataItem);
+        }
+    }
+
+    /**
+     * Caches the result of reading all the items under {@code prefix}.
+     */
+    synchronized void putAll(Uri prefix, DataItemBuffer dataItems, long generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        for (DataItem dataItem : dataItems) {
+            put(dataItem);
+        }
+        mLoadedPrefixes.add(prefix);
+    }
+
+    /**
+     * Applies the changes in {@code dataEvents} to the cached items.
+     */
+    synchronized void onDataChanged(DataEventBuffer dataEvents) {
+        mGeneration++;
+        for (DataEvent event : dataEvents) {
+            DataItem dataItem = event.getDataItem();
+            Uri uri = dataItem.getUri();
+            if (event.getType() == DataEvent.TYPE_DELETED) {
+                if (contains(uri)) {
+                    remove(uri.getHost(), uri.getPath());
+                    mMissing.add(uri.getHost() + uri.getPath());
+                }
+            } else if (contains(uri) || isLoaded(uri)) {
+                // items that were never read are not worth parsing
+                put(dataItem);
+            }
+        }
+    }
+
+    /**
+     * Drops all the cached items.
+     */
+    synchronized void clear() {
+        mGeneration++;
+        mEntries.clear();
+        mMissing.clear();
+        mLoadedPrefixes.clear();
+    }
+
+    private void put(DataItem dataItem) {
+        Uri uri = dataItem.getUri();
+        Map<String, DataMap> nodes = mEntries.get(uri.getPath());
+        if (nodes == null) {
+            nodes = new HashMap<>(2);
+            mEntries.put(uri.getPath(), nodes);
+        }
+        nodes.put(uri.getHost(), PayloadCodec.getDataMap(dataItem));
+        mMissing.remove(uri.getHost() + uri.getPath());
+    }
+
+    private void remove(String host, String path) {
+        Map<String, DataMap> nodes = mEntries.get(path);
+        if (nodes != null) {
+            nodes.remove(host);
+            if (nodes.isEmpty()) {
+                mEntries.remove(path);
+            }
+        }
+    }
+
+    private boolean isLoaded(Uri prefix) {
+        String host = prefix.getHost();
+        String path = prefix.getPath() != null ? prefix.getPath() : "";
+        for (Uri loaded : mLoadedPrefixes) {
+            String loadedPath = loaded.getPath() != null ? loaded.getPath() : "";
+            if (path.startsWith(loadedPath)
+                    && (loaded.getHost() == null || loaded.getHost().equals(host))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Uri buildUri(String host, String path) {
+        return new Uri.Builder().scheme(PutDataRequest.WEAR_URI_SCHEME).authority(host).path(path)
+                .build();
+    }
+
+    private static DataMap copy(DataMap dataMap) {
+        DataMap copy = new DataMap();
+        copy.putAll(dataMap);
+        return copy;
+    }
+}
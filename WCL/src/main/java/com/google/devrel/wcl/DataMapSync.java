@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.WearableStatusCodes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Synchronizes a {@link DataMap} between nodes one key at a time. Each top level key of a synced
+ * {@link DataMap} lives in its own data item, a shard, under
+ * {@link Constants#PATH_DATA_MAP_SYNC}; a sync only puts the shards whose value has changed since
+ * the last sync, and deletes the shards of the keys that are gone, so the cost of an update is
+ * proportional to what has changed rather than to the size of the whole {@link DataMap}. The
+ * receiving nodes put the shards back together.
+ * <p/>
+ * The last synced version is read back from the data layer the first time a path is synced or
+ * viewed, so it survives a restart of the process. All the work happens, in order, on a single
+ * background thread.
+ */
+class DataMapSync {
+
+    private static final String TAG = "DataMapSync";
+    private static final long TIMEOUT_MS = 30 * 1000;
+
+    private final WearManager mWearManager;
+    private final ExecutorService mExecutor = WclExecutors.newBoundedPool("wcl-sync", 1);
+
+    // only accessed on mExecutor
+    private final Map<String, DataMap> mCommitted = new HashMap<>();
+    private final Map<String, DataMap> mViews = new HashMap<>();
+    private String mLocalNodeId;
+
+    DataMapSync(WearManager wearManager) {
+        mWearManager = wearManager;
+    }
+
+    /**
+     * Puts the shards of {@code dataMap} that have changed since the last sync of {@code path}.
+     */
+    void sync(final String path, DataMap dataMap, final boolean isUrgent) {
+        // the caller is free to modify its DataMap once this returns
+        final DataMap copy = new DataMap();
+        copy.putAll(dataMap);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mWearManager.dispatchSendDataResult(syncShards(path, copy, isUrgent));
+                } catch (IllegalStateException e) {
+                    Log.e(TAG, "Failed to sync " + path + ", no connection", e);
+                    mWearManager.dispatchSendDataResult(WearableStatusCodes.ERROR);
+                }
+            }
+        });
+    }
+
+    private int syncShards(String path, DataMap dataMap, boolean isUrgent) {
+        DataMap committed = mCommitted.get(path);
+        if (committed == null) {
+            committed = readShards(path, getLocalNodeId());
+            mCommitted.put(path, committed);
+        }
+        int statusCode = WearableStatusCodes.SUCCESS;
+        int changes = 0;
+        for (String key : dataMap.keySet()) {
+            if (committed.containsKey(key) && valuesEqual(committed.get(key), dataMap.get(key))) {
+                continue;
+            }
+            changes++;
+            PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(
+                    getShardPath(path, key));
+            DataMap shard = putDataMapRequest.getDataMap();
+            copyValue(dataMap, shard, key);
+            if (isUrgent) {
+                putDataMapRequest.setUrgent();
+            }
+            PutDataRequest request = putDataMapRequest.asPutDataRequest();
+            int result = mWearManager.putDataItemSynchronous(request, TIMEOUT_MS);
+            if (result == WearableStatusCodes.SUCCESS) {
+                committed.remove(key);
+                committed.putAll(shard);
+            } else {
+                // the key stays out of date, so the next sync puts it again
+                Log.e(TAG, "Failed to put the shard of " + key + ", status code: " + result);
+                statusCode = result;
+            }
+        }
+        for (String key : new ArrayList<>(committed.keySet())) {
+            if (dataMap.containsKey(key)) {
+                continue;
+            }
+            changes++;
+            Uri uri = new Uri.Builder().scheme(PutDataRequest.WEAR_URI_SCHEME)
+                    .authority(getLocalNodeId()).path(getShardPath(path, key)).build();
+            Status status = mWearManager.deleteDataItemsSynchronous(uri, TIMEOUT_MS).getStatus();
+            if (status.isSuccess()) {
+                committed.remove(key);
+            } else {
+                Log.e(TAG, "Failed to delete the shard of " + key + ", status code: "
+                        + status.getStatusCode());
+                statusCode = status.getStatusCode();
+            }
+        }
+        Utils.LOGD(TAG, "Synced " + changes + " of " + dataMap.size() + " keys for " + path);
+        return statusCode;
+    }
+
+    private DataMap getView(String path) {
+        DataMap copy = new DataMap();
+        copy.putAll(getViewInternal(path));
+        return copy;
+    }
+
+    /**
+     * Returns the latest version of {@code path} that was synced by another node. This blocks
+     * until the pending changes to the views are applied.
+     */
+    DataMap getViewSynchronous(final String path) throws InterruptedException {
+        try {
+            return mExecutor.submit(new Callable<DataMap>() {
+                @Override
+                public DataMap call() {
+                    return getView(path);
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to read " + path, e.getCause());
+        }
+    }
+
+    /**
+     * Applies the changes to the shards in {@code dataEvents} to the views, and reports the
+     * changed keys to the consumers. This should be called before {@code dataEvents} is released.
+     */
+    void onDataChanged(DataEventBuffer dataEvents) {
+        final List<DataEvent> events = new ArrayList<>();
+        for (DataEvent event : dataEvents) {
+            String eventPath = event.getDataItem().getUri().getPath();
+            if (eventPath != null && eventPath.startsWith(Constants.PATH_DATA_MAP_SYNC)) {
+                events.add(event.freeze());
+            }
+        }
+        if (events.isEmpty()) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    applyEvents(events);
+                } catch (IllegalStateException e) {
+                    Log.e(TAG, "Failed to apply the changes to the synced data maps", e);
+                }
+            }
+        });
+    }
+
+    private void applyEvents(List<DataEvent> events) {
+        String localNodeId = getLocalNodeId();
+        Map<String, Set<String>> changedKeys = new HashMap<>();
+        for (DataEvent event : events) {
+            DataItem dataItem = event.getDataItem();
+            if (dataItem.getUri().getHost().equals(localNodeId)) {
+                // our own shards
+                continue;
+            }
+            String shardPath = dataItem.getUri().getPath();
+            int split = shardPath.lastIndexOf('/');
+            String path = shardPath.substring(Constants.PATH_DATA_MAP_SYNC.length(), split);
+            String key = Uri.decode(shardPath.substring(split + 1));
+            boolean isLoaded = mViews.containsKey(path);
+            DataMap view = getViewInternal(path);
+            if (isLoaded) {
+                // a view read just now already has this change
+                view.remove(key);
+                if (event.getType() == DataEvent.TYPE_CHANGED) {
+                    view.putAll(PayloadCodec.getDataMap(dataItem));
+                }
+            }
+            Set<String> keys = changedKeys.get(path);
+            if (keys == null) {
+                keys = new HashSet<>();
+                changedKeys.put(path, keys);
+            }
+            keys.add(key);
+        }
+        for (Map.Entry<String, Set<String>> entry : changedKeys.entrySet()) {
+            mWearManager.dispatchSyncedDataMapChanged(entry.getKey(), getView(entry.getKey()),
+                    entry.getValue());
+        }
+    }
+
+    private DataMap getViewInternal(String path) {
+        DataMap view = mViews.get(path);
+        if (view == null) {
+            view = readShards(path, null);
+            mViews.put(path, view);
+        }
+        return view;
+    }
+
+    /**
+     * Puts together the shards of {@code path} that are in the data layer, either those written
+     * by {@code nodeId} or, if it is {@code null}, those written by any other node.
+     */
+    private DataMap readShards(String path, @Nullable String nodeId) {
+        DataMap dataMap = new DataMap();
+        Uri.Builder builder = new Uri.Builder().scheme(PutDataRequest.WEAR_URI_SCHEME)
+                .path(Constants.PATH_DATA_MAP_SYNC + path + "/");
+        if (nodeId != null) {
+            builder.authority(nodeId);
+        }
+        DataItemBuffer dataItems = mWearManager.getDataItemsSynchronous(builder.build(),
+                DataApi.FILTER_PREFIX, TIMEOUT_MS);
+        try {
+            if (!dataItems.getStatus().isSuccess()) {
+                throw new IllegalStateException("Failed to read the shards of " + path
+                        + ", status code: " + dataItems.getStatus().getStatusCode());
+            }
+            String localNodeId = nodeId == null ? getLocalNodeId() : null;
+            String prefix = Constants.PATH_DATA_MAP_SYNC + path + "/";
+            for (DataItem dataItem : dataItems) {
+                if (localNodeId != null && localNodeId.equals(dataItem.getUri().getHost())) {
+                    continue;
+                }
+                String shardPath = dataItem.getUri().getPath();
+                if (shardPath == null || shardPath.indexOf('/', prefix.length()) >= 0) {
+                    // a shard of a path nested under this one; keys are encoded, so never hold '/'
+                    continue;
+                }
+                dataMap.putAll(PayloadCodec.getDataMap(dataItem));
+            }
+        } finally {
+            dataItems.release();
+        }
+        return dataMap;
+    }
+
+    private String getLocalNodeId() {
+        if (mLocalNodeId == null) {
+            mLocalNodeId = mWearManager.getLocalNodeIdSynchronous(TIMEOUT_MS);
+        }
+        return mLocalNodeId;
+    }
+
+    private static String getShardPath(String path, String key) {
+        return Constants.PATH_DATA_MAP_SYNC + path + "/" + Uri.encode(key);
+    }
+
+    /**
+     * Copies the value of {@code key} from {@code source} to {@code target}, without copying the
+     * rest of {@code source}.
+     */
+    @SuppressWarnings("unchecked")
+    private static void copyValue(DataMap source, DataMap target, String key) {
+        Object value = source.get(key);
+        if (value instanceof String) {
+            target.putString(key, (String) value);
+        } else if (value instanceof Integer) {
+            target.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            target.putLong(key, (Long) value);
+        } else if (value instanceof Boolean) {
+            target.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Byte) {
+            target.putByte(key, (Byte) value);
+        } else if (value instanceof Float) {
+            target.putFloat(key, (Float) value);
+        } else if (value instanceof Double) {
+            target.putDouble(key, (Double) value);
+        } else if (value instanceof DataMap) {
+            target.putDataMap(key, (DataMap) value);
+        } else if (value instanceof Asset) {
+            target.putAsset(key, (Asset) value);
+        } else if (value instanceof byte[]) {
+            target.putByteArray(key, (byte[]) value);
+        } else if (value instanceof long[]) {
+            target.putLongArray(key, (long[]) value);
+        } else if (value instanceof float[]) {
+            target.putFloatArray(key, (float[]) value);
+        } else if (value instanceof String[]) {
+            target.putStringArray(key, (String[]) value);
+        } else if (value instanceof ArrayList && !((ArrayList<?>) value).isEmpty()
+                && ((ArrayList<?>) value).get(0) instanceof Integer) {
+            target.putIntegerArrayList(key, (ArrayList<Integer>) value);
+        } else if (value instanceof ArrayList && !((ArrayList<?>) value).isEmpty()
+                && ((ArrayList<?>) value).get(0) instanceof String) {
+            target.putStringArrayList(key, (ArrayList<String>) value);
+        } else if (value instanceof ArrayList && !((ArrayList<?>) value).isEmpty()
+                && ((ArrayList<?>) value).get(0) instanceof DataMap) {
+            target.putDataMapArrayList(key, (ArrayList<DataMap>) value);
+        } else {
+            // an empty list, or a null, whose type only the source knows
+            target.putAll(source);
+            for (String other : new ArrayList<>(target.keySet())) {
+                if (!other.equals(key)) {
+                    target.remove(other);
+                }
+            }
+        }
+    }
+
+    private static boolean valuesEqual(Object a, Object b) {
+        // handles the arrays of primitives as well
+        return Arrays.deepEquals(new Object[]{a}, new Object[]{b});
+    }
+}
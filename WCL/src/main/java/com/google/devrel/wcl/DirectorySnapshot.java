@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The files under a directory, at any depth, and their sizes, as they were when the snapshot was
+ * taken. A directory transfer announces the total size before it sends anything, and the files of
+ * a directory that is being written to, such as a directory of logs, keep changing; sending from a
+ * snapshot keeps the announced size, the manifest and the entries in agreement. A file that grows
+ * afterwards is sent up to its size in the snapshot.
+ */
+public final class DirectorySnapshot {
+
+    private final File mDirectory;
+    private final List<File> mFiles;
+    private final long[] mSizes;
+    private final long mTotalSize;
+
+    private DirectorySnapshot(File directory, List<File> files) {
+        mDirectory = directory;
+        mFiles = Collections.unmodifiableList(files);
+        mSizes = new long[files.size()];
+        long totalSize = 0;
+        for (int i = 0; i < mSizes.length; i++) {
+            mSizes[i] = files.get(i).length();
+            totalSize += mSizes[i];
+        }
+        mTotalSize = totalSize;
+    }
+
+    /**
+     * Lists the files under {@code directory} and takes their sizes.
+     */
+    public static DirectorySnapshot of(File directory) {
+        Utils.assertNotNull(directory, "directory");
+        List<File> files = new ArrayList<>();
+        addFiles(directory, files);
+        return new DirectorySnapshot(directory, files);
+    }
+
+    private static void addFiles(File directory, List<File> files) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                addFiles(child, files);
+            } else if (child.isFile()) {
+                files.add(child);
+            }
+        }
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Returns the sum of the sizes of the files, in bytes.
+     */
+    public long getTotalSize() {
+        return mTotalSize;
+    }
+
+    List<File> getFiles() {
+        return mFiles;
+    }
+
+    long getSize(int index) {
+        return mSizes[index];
+    }
+}
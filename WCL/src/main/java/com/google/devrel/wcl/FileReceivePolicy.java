@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.util.UUID;
+
+/**
+ * Decides where the files that are sent by
+ * {@link com.google.devrel.wcl.connectivity.WearFileTransfer} are saved on the receiving node; see
+ * {@link WearManager#setFileReceivePolicy(FileReceivePolicy)}. By default, a file is saved in the
+ * private data storage of the app, under the name given by the sender. A
+ * {@link DestinationResolver} can instead put it anywhere the app can write to, such as its cache
+ * or external storage, for example:
+ * <pre>
+ * FileReceivePolicy policy = new FileReceivePolicy.Builder()
+ *     .setDestinationResolver(new FileReceivePolicy.DestinationResolver() {
+ *         public File getDestination(String nodeId, String requestId, String name, long size) {
+ *             return new File(context.getExternalFilesDir(null), name);
+ *         }
+ *     })
+ *     .setMinFreeSpace(10 * 1024 * 1024)
+ *     .build();
+ * WearManager.getInstance().setFileReceivePolicy(policy);
+ * </pre>
+ * Whatever the destination, a file is first received into a temporary file in the same directory,
+ * and only renamed to its destination, replacing any earlier version, once it is complete. The
+ * temporary file is deleted if the transfer fails, except for a resumable transfer, which keeps it
+ * to resume from. A transfer is refused up front if the destination does not have room for the
+ * size announced by the sender.
+ */
+public final class FileReceivePolicy {
+
+    private static final String TAG = "FileReceivePolicy";
+
+    // the status codes below are clear of those of CommonStatusCodes and WearableStatusCodes
+
+    /**
+     * The status code of a transfer that was refused because the destination does not have enough
+     * free space.
+     */
+    public static final int STATUS_INSUFFICIENT_SPACE = 4100;
+
+    /**
+     * The status code of a transfer that was refused by the {@link DestinationResolver}.
+     */
+    public static final int STATUS_REJECTED = 4101;
+
+    // the prefix of the temporary files, so that they can be told apart from the received ones
+    static final String TEMP_PREFIX = ".wcl-";
+    private static final String TEMP_SUFFIX = ".part";
+
+    // how long the temporary files of abandoned transfers are kept for
+    private static final long TEMP_MAX_AGE_MS = 7 * 24 * 60 * 60 * 1000L;
+
+    private final DestinationResolver mDestinationResolver;
+    private final long mMinFreeSpace;
+
+    /**
+     * A Builder class to help with building a {@link FileReceivePolicy}.
+     */
+    public static final class Builder {
+
+        private DestinationResolver mDestinationResolver;
+        private long mMinFreeSpace;
+
+        public FileReceivePolicy build() {
+            return new FileReceivePolicy(this);
+        }
+
+        /**
+         * Sets the {@link DestinationResolver} that decides where each incoming file goes. By
+         * default, files go to the private data storage of the app.
+         */
+        public Builder setDestinationResolver(DestinationResolver destinationResolver) {
+            mDestinationResolver = Utils.assertNotNull(destinationResolver,
+                    "destinationResolver");
+            return this;
+        }
+
+        /**
+         * Sets how much space, in bytes, should be left free on the destination once a file has
+         * been received; transfers that would leave less are refused. Default is 0.
+         */
+        public Builder setMinFreeSpace(long minFreeSpace) {
+            if (minFreeSpace < 0) {
+                throw new IllegalArgumentException("minFreeSpace cannot be negative");
+            }
+            mMinFreeSpace = minFreeSpace;
+            return this;
+        }
+    }
+
+    private FileReceivePolicy(Builder builder) {
+        mDestinationResolver = builder.mDestinationResolver;
+        mMinFreeSpace = builder.mMinFreeSpace;
+    }
+
+    /**
+     * Returns the file, or for a directory transfer the directory, that the transfer of
+     * {@code name} should be saved to, or {@code null} if it should be refused.
+     */
+    @Nullable
+    File getDestination(Context context, String nodeId, String requestId, String name,
+            long size) {
+        if (mDestinationResolver != null) {
+            return mDestinationResolver.getDestination(nodeId, requestId, name, size);
+        }
+        // the name comes from the other node, so it should neither reach out of the directory,
+        // nor name the directory itself, nor clash with the temporary files
+        String fileName = new File(name).getName();
+        if (fileName.isEmpty() || fileName.equals(".") || fileName.equals("..")
+                || fileName.startsWith(TEMP_PREFIX)) {
+            return null;
+        }
+        return new File(context.getFilesDir(), fileName);
+    }
+
+    /**
+     * Returns {@code true} if the directory of {@code destination} exists, or can be created, and
+     * has room for {@code size} more bytes.
+     */
+    boolean hasSpaceFor(File destination, long size) {
+        File dir = destination.getAbsoluteFile().getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Failed to create " + dir);
+            return false;
+        }
+        return dir.getUsableSpace() - size >= mMinFreeSpace;
+    }
+
+    /**
+     * Returns a temporary file, in the directory of {@code destination}, that is named after
+     * {@code tag}; renaming it to {@code destination} is then atomic.
+     */
+    static File getTempFile(File destination, String tag) {
+        return new File(destination.getAbsoluteFile().getParentFile(),
+                TEMP_PREFIX + tag + TEMP_SUFFIX);
+    }
+
+    /**
+     * Deletes the temporary files, in the directory of {@code destination}, that have not been
+     * written to for a long time; they belong to transfers that were never completed.
+     */
+    static void deleteStaleTempFiles(File destination) {
+        File[] files = destination.getAbsoluteFile().getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX)
+                    && now - file.lastModified() > TEMP_MAX_AGE_MS) {
+                Utils.LOGD(TAG, "Deleting the stale temporary file " + file);
+                delete(file);
+            }
+        }
+    }
+
+    /**
+     * Moves {@code tempFile} to {@code destination}, replacing it if it is of the same kind, file
+     * or directory. Returns {@code true} if successful.
+     */
+    static boolean commit(File tempFile, File destination) {
+        File parent = tempFile.getAbsoluteFile().getParentFile();
+        if (destination.getAbsoluteFile().equals(parent)) {
+            Log.e(TAG, "Refusing to replace " + destination + ", which holds " + tempFile);
+            return false;
+        }
+        if (destination.exists() && destination.isDirectory() != tempFile.isDirectory()) {
+            Log.e(TAG, "Refusing to replace " + destination + " with a different kind of file");
+            return false;
+        }
+        if (!destination.isDirectory()) {
+            // a file is replaced atomically
+            if (tempFile.renameTo(destination)) {
+                return true;
+            }
+            Log.e(TAG, "Failed to move " + tempFile + " to " + destination);
+            return false;
+        }
+        // a directory cannot be renamed over another one, so the old one is moved aside first,
+        // and only deleted once the new one is in place
+        File oldFile = getTempFile(destination, UUID.randomUUID().toString());
+        if (!destination.renameTo(oldFile)) {
+            Log.e(TAG, "Failed to move " + destination + " aside");
+            return false;
+        }
+        if (!tempFile.renameTo(destination)) {
+            Log.e(TAG, "Failed to move " + tempFile + " to " + destination);
+            if (!oldFile.renameTo(destination)) {
+                Log.e(TAG, "Failed to restore " + destination + " from " + oldFile);
+            }
+            return false;
+        }
+        delete(oldFile);
+        return true;
+    }
+
+    /**
+     * Deletes {@code file}, or {@code directory} and everything under it.
+     */
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "Failed to delete " + file);
+        }
+    }
+
+    /**
+     * Decides where an incoming file goes.
+     */
+    public interface DestinationResolver {
+
+        /**
+         * Returns the file that the incoming file should be saved to, or for a directory transfer
+         * the directory that its files should be saved under, or {@code null} to refuse the
+         * transfer. An existing file, or directory, is replaced once the transfer is complete, but
+         * a file never replaces a directory nor the other way around. This is called on a
+         * background thread.
+         *
+         * @param nodeId The id of the sending node
+         * @param requestId The unique id of the transfer
+         * @param name The name given by the sender, which should not be trusted as a path
+         * @param size The size of the file, or of all the files of a directory, in bytes
+         */
+        @Nullable
+        File getDestination(String nodeId, String requestId, String name, long size);
+    }
+}
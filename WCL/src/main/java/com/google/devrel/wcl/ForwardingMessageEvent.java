@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import com.google.android.gms.wearable.MessageEvent;
+
+/**
+ * A {@link MessageEvent} that carries the same path and source as another one, with a different
+ * payload; used for the payloads that the library unwraps before handing them to the consumers.
+ */
+class ForwardingMessageEvent implements MessageEvent {
+
+    private final MessageEvent mMessageEvent;
+    private final byte[] mData;
+
+    ForwardingMessageEvent(MessageEvent messageEvent, byte[] data) {
+        mMessageEvent = messageEvent;
+        mData = data;
+    }
+
+    @Override
+    public int getRequestId() {
+        return mMessageEvent.getRequestId();
+    }
+
+    @Override
+    public String getPath() {
+        return mMessageEvent.getPath();
+    }
+
+    @Override
+    public byte[] getData() {
+        return mData;
+    }
+
+    @Override
+    public String getSourceNodeId() {
+        return mMessageEvent.getSourceNodeId();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import android.graphics.Bitmap;
+
+/**
+ * Describes how a {@link Bitmap} is encoded before it is sent as an
+ * {@link com.google.android.gms.wearable.Asset}; see {@link Utils#toAsset(Bitmap, ImageEncoding)}
+ * and {@link WearManager#putImageData(Bitmap, String, String, boolean, ImageEncoding,
+ * com.google.android.gms.common.api.ResultCallback)}. Photos are typically several times smaller,
+ * and faster to encode, as JPEG or WEBP than as PNG, and most watch screens are no larger than
+ * 320 x 320 pixels, for example:
+ * <pre>
+ * ImageEncoding encoding = new ImageEncoding.Builder()
+ *     .setFormat(Bitmap.CompressFormat.WEBP)
+ *     .setQuality(80)
+ *     .setMaxSize(320, 320)
+ *     .build();
+ * </pre>
+ */
+public final class ImageEncoding {
+
+    /**
+     * Lossless PNG at the original size; this is what {@link Utils#toAsset(Bitmap)} uses.
+     */
+    public static final ImageEncoding PNG = new Builder().build();
+
+    private final Bitmap.CompressFormat mFormat;
+    private final int mQuality;
+    private final int mMaxWidth;
+    private final int mMaxHeight;
+
+    /**
+     * A Builder class to help with building an {@link ImageEncoding}.
+     */
+    public static final class Builder {
+
+        private Bitmap.CompressFormat mFormat = Bitmap.CompressFormat.PNG;
+        private int mQuality = 100;
+        private int mMaxWidth;
+        private int mMaxHeight;
+
+        public ImageEncoding build() {
+            return new ImageEncoding(this);
+        }
+
+        /**
+         * Sets the format. Default is {@link Bitmap.CompressFormat#PNG}.
+         */
+        public Builder setFormat(Bitmap.CompressFormat format) {
+            mFormat = Utils.assertNotNull(format, "format");
+            return this;
+        }
+
+        /**
+         * Sets the quality, from 0 to 100, of the lossy formats; it is ignored by
+         * {@link Bitmap.CompressFormat#PNG}. Default is 100.
+         */
+        public Builder setQuality(int quality) {
+            if (quality < 0 || quality > 100) {
+                throw new IllegalArgumentException("quality should be between 0 and 100");
+            }
+            mQuality = quality;
+            return this;
+        }
+
+        /**
+         * Sets the largest size of the encoded image. Larger bitmaps are scaled down, keeping their
+         * aspect ratio; smaller ones are left alone. Pass 0 for either to keep the original size,
+         * which is the default.
+         */
+        public Builder setMaxSize(int maxWidth, int maxHeight) {
+            if (maxWidth < 0 || maxHeight < 0) {
+                throw new IllegalArgumentException("The size cannot be negative");
+            }
+            mMaxWidth = maxWidth;
+            mMaxHeight = maxHeight;
+            return this;
+        }
+    }
+
+    private ImageEncoding(Builder builder) {
+        mFormat = builder.mFormat;
+        mQuality = builder.mQuality;
+        mMaxWidth = builder.mMaxWidth;
+        mMaxHeight = builder.mMaxHeight;
+    }
+
+    public Bitmap.CompressFormat getFormat() {
+        return mFormat;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    public int getMaxWidth() {
+        return mMaxWidth;
+    }
+
+    public int getMaxHeight() {
+        return mMaxHeight;
+    }
+
+    /**
+     * Returns {@code bitmap} scaled down to fit the maximum size, or {@code bitmap} itself if it
+     * already fits.
+     */
+    Bitmap scale(Bitmap bitmap) {
+        if (mMaxWidth == 0 || mMaxHeight == 0) {
+            return bitmap;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (width <= mMaxWidth && height <= mMaxHeight) {
+            return bitmap;
+        }
+        float scale = Math.min((float) mMaxWidth / width, (float) mMaxHeight / height);
+        return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)), true);
+    }
+
+    /**
+     * Returns a guess of the encoded size of {@code bitmap}, to size the output buffer.
+     */
+    int estimateSize(Bitmap bitmap) {
+        int pixels = bitmap.getWidth() * bitmap.getHeight();
+        return mFormat == Bitmap.CompressFormat.PNG ? pixels * 2 : pixels / 2;
+    }
+}
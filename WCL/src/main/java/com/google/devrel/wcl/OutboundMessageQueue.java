@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.wearable.MessageApi;
+import com.google.android.gms.wearable.WearableStatusCodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues the outgoing messages on the paths that have an {@link OutboundPolicy}, one queue per
+ * target node and path, and sends each queue as a single message when it is flushed. Batched
+ * messages are framed with a header that {@link #unbatch(byte[])} recognizes on the receiving
+ * node: a zero byte, a tag and a version, followed by the number of messages and then the length
+ * and bytes of each one.
+ */
+class OutboundMessageQueue {
+
+    private static final String TAG = "OutboundMessageQueue";
+    private static final byte[] BATCH_HEADER = {0, 'W', 'B', 1};
+
+    // the result of the queued messages that could not be sent because the client is disconnected
+    private static final MessageApi.SendMessageResult NOT_CONNECTED_RESULT
+            = new MessageApi.SendMessageResult() {
+                @Override
+                public Status getStatus() {
+                    return new Status(WearableStatusCodes.TARGET_NODE_NOT_CONNECTED);
+                }
+
+                @Override
+                public int getRequestId() {
+                    return MessageApi.UNKNOWN_REQUEST_ID;
+                }
+            };
+
+    private final WearManager mWearManager;
+    private final ConcurrentHashMap<String, PathQueue> mQueues = new ConcurrentHashMap<>();
+
+    OutboundMessageQueue(WearManager wearManager) {
+        mWearManager = wearManager;
+    }
+
+    /**
+     * Queues a message, according to {@code policy}.
+     */
+    void enqueue(String nodeId, String path, @Nullable byte[] bytes,
+            @Nullable ResultCallback<? super MessageApi.SendMessageResult> callback,
+            OutboundPolicy policy) {
+        // node ids never contain '/', and paths always start with one
+        String key = nodeId + path;
+        // the lookup, the replacement and the add are one step, so that concurrent senders to the
+        // same node and path share a queue and their messages keep their order
+        synchronized (mQueues) {
+            PathQueue queue = mQueues.get(key);
+            if (queue == null || queue.mPolicy != policy) {
+                if (queue != null) {
+                    // the policy has changed since this queue was created
+                    queue.flush();
+                }
+                queue = new PathQueue(nodeId, path, policy);
+                mQueues.put(key, queue);
+            }
+            queue.add(bytes, callback);
+        }
+    }
+
+    /**
+     * Sends the queued messages for {@code path}, to all nodes, right away.
+     */
+    void flush(String path) {
+        for (PathQueue queue : mQueues.values()) {
+            if (queue.mPath.equals(path)) {
+                queue.flush();
+            }
+        }
+    }
+
+    /**
+     * Sends all the queued messages right away.
+     */
+    void flushAll() {
+        for (PathQueue queue : mQueues.values()) {
+            queue.flush();
+        }
+    }
+
+    /**
+     * Returns the messages that were framed into {@code data} by a batching queue, or {@code null}
+     * if {@code data} is not a batch.
+     */
+    @Nullable
+    static List<byte[]> unbatch(@Nullable byte[] data) {
+        if (data == null || data.length < BATCH_HEADER.length + 4) {
+            return null;
+        }
+        for (int i = 0; i < BATCH_HEADER.length; i++) {
+            if (data[i] != BATCH_HEADER[i]) {
+                return null;
+            }
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data, BATCH_HEADER.length,
+                    data.length - BATCH_HEADER.length);
+            // the lengths come from another node, so they are checked before anything is allocated
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / 4) {
+                Log.e(TAG, "Received a batch with an invalid count of messages: " + count);
+                return null;
+            }
+            List<byte[]> messages = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    Log.e(TAG, "Received a batch with an invalid message length: " + length);
+                    return null;
+                }
+                byte[] message = new byte[length];
+                buffer.get(message);
+                messages.add(message);
+            }
+            return messages;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Log.e(TAG, "Received a malformed batch of messages", e);
+            return null;
+        }
+    }
+
+    private static byte[] batch(List<byte[]> messages, int sizeBytes) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                BATCH_HEADER.length + 4 + sizeBytes);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.write(BATCH_HEADER);
+            out.writeInt(messages.size());
+            for (byte[] message : messages) {
+                out.writeInt(message.length);
+                out.write(message);
+            }
+        } catch (IOException e) {
+            // writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The queue for a single node and path.
+     */
+    private final class PathQueue {
+
+        final String mNodeId;
+        final String mPath;
+        final OutboundPolicy mPolicy;
+
+        // guarded by "this"
+        private final List<byte[]> mMessages = new ArrayList<>();
+        private final List<ResultCallback<? super MessageApi.SendMessageResult>> mCallbacks
+                = new ArrayList<>();
+        private int mSizeBytes;
+        private ScheduledFuture<?> mFlushFuture;
+
+        private final Runnable mFlushTask = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+
+        PathQueue(String nodeId, String path, OutboundPolicy policy) {
+            mNodeId = nodeId;
+            mPath = path;
+            mPolicy = policy;
+        }
+
+        synchronized void add(@Nullable byte[] bytes,
+                @Nullable ResultCallback<? super MessageApi.SendMessageResult> callback) {
+            byte[] message = bytes != null ? bytes : new byte[0];
+            if (mPolicy.getMode() == OutboundPolicy.MODE_COALESCE) {
+                // last write wins; the callbacks of the dropped messages get the result of this one
+                mMessages.clear();
+                mSizeBytes = 0;
+            } else if (!mMessages.isEmpty()
+                    && mSizeBytes + message.length > mPolicy.getMaxBatchBytes()) {
+                flush();
+            }
+            mMessages.add(message);
+            mSizeBytes += message.length + 4;
+            mCallbacks.add(callback);
+            if (mPolicy.getMode() == OutboundPolicy.MODE_BATCH
+                    && mMessages.size() >= mPolicy.getMaxBatchSize()) {
+                flush();
+            } else if (mFlushFuture == null) {
+                mFlushFuture = WclExecutors.getScheduler().schedule(mFlushTask,
+                        mPolicy.getFlushInterval(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        synchronized void flush() {
+            if (mFlushFuture != null) {
+                mFlushFuture.cancel(false);
+                mFlushFuture = null;
+            }
+            if (mMessages.isEmpty()) {
+                return;
+            }
+            byte[] payload = mMessages.size() == 1 ? mMessages.get(0)
+                    : batch(mMessages, mSizeBytes);
+            final List<ResultCallback<? super MessageApi.SendMessageResult>> callbacks
+                    = new ArrayList<>(mCallbacks);
+            mMessages.clear();
+            mCallbacks.clear();
+            mSizeBytes = 0;
+            // the messages that were queued without a callback share a single default one
+            final boolean hasDefaultCallback = callbacks.removeAll(
+                    Collections.singleton(null));
+            final ResultCallback<MessageApi.SendMessageResult> resultCallback
+                    = new ResultCallback<MessageApi.SendMessageResult>() {
+                        @Override
+                        public void onResult(MessageApi.SendMessageResult result) {
+                            for (ResultCallback<? super MessageApi.SendMessageResult> callback
+                                    : callbacks) {
+                                callback.onResult(result);
+                            }
+                            if (hasDefaultCallback) {
+                                mWearManager.dispatchSendMessageResult(result);
+                            }
+                        }
+                    };
+            try {
+                mWearManager.sendMessageNow(mNodeId, mPath, payload,
+                        callbacks.isEmpty() ? null : resultCallback);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Dropped the queued messages for " + mPath + ", no connection", e);
+                // the callbacks are told, as they would be by the Wearable API, on the main thread
+                WclExecutors.getMainThreadExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        resultCallback.onResult(NOT_CONNECTED_RESULT);
+                    }
+                });
+            }
+        }
+    }
+}
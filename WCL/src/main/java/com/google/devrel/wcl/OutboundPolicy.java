@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Describes how the messages sent on a given path are queued before they are sent; see
+ * {@link WearManager#setOutboundPolicy(String, OutboundPolicy)}. Messages are queued per target
+ * node and path, and each queue is flushed at most {@link Builder#setFlushInterval(long)}
+ * milliseconds after its first message was queued. There are two modes:
+ * <ul>
+ *     <li>{@link #MODE_COALESCE}: only the last message in the queue is sent. This suits paths
+ *     that carry a state, such as a scroll position, where newer messages supersede older ones.
+ *     </li>
+ *     <li>{@link #MODE_BATCH}: all the messages in the queue are framed into a single message,
+ *     which is split up again on the receiving node, so each consumer still sees the individual
+ *     messages, in order. This suits paths that carry events, such as sensor readings.</li>
+ * </ul>
+ * A typical usage is:
+ * <pre>
+ * WearManager.getInstance().setOutboundPolicy("/sensor", new OutboundPolicy.Builder()
+ *     .setMode(OutboundPolicy.MODE_BATCH)
+ *     .setFlushInterval(200) // optional, 100 ms is default
+ *     .build());
+ * </pre>
+ */
+public final class OutboundPolicy {
+
+    public static final int MODE_COALESCE = 1;
+    public static final int MODE_BATCH = 2;
+
+    private static final long DEFAULT_FLUSH_INTERVAL_MS = 100;
+    private static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    // MessageApi payloads are limited to 100KB
+    private static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({MODE_COALESCE, MODE_BATCH})
+    public @interface Mode {}
+
+    private final int mMode;
+    private final long mFlushIntervalMs;
+    private final int mMaxBatchSize;
+    private final int mMaxBatchBytes;
+
+    /**
+     * A Builder class to help with building an {@link OutboundPolicy}.
+     */
+    public static final class Builder {
+
+        private int mMode = MODE_BATCH;
+        private long mFlushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+        private int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        private int mMaxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+        public OutboundPolicy build() {
+            return new OutboundPolicy(this);
+        }
+
+        /**
+         * Sets the mode; valid values are {@link OutboundPolicy#MODE_COALESCE} or
+         * {@link OutboundPolicy#MODE_BATCH}. Default is {@link OutboundPolicy#MODE_BATCH}.
+         */
+        public Builder setMode(@Mode int mode) {
+            if (mode != MODE_COALESCE && mode != MODE_BATCH) {
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+            }
+            mMode = mode;
+            return this;
+        }
+
+        /**
+         * Sets the longest time, in milliseconds, that a message waits in the queue. Default is
+         * 100 ms.
+         */
+        public Builder setFlushInterval(long flushIntervalMs) {
+            if (flushIntervalMs < 0) {
+                throw new IllegalArgumentException("flushIntervalMs cannot be negative");
+            }
+            mFlushIntervalMs = flushIntervalMs;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of messages, and their maximum total size in bytes, that are
+         * framed into one message in {@link OutboundPolicy#MODE_BATCH}; the queue is flushed as
+         * soon as either is reached. Defaults are 64 messages and 64KB.
+         */
+        public Builder setMaxBatchSize(int maxMessages, int maxBytes) {
+            if (maxMessages < 1 || maxBytes < 1) {
+                throw new IllegalArgumentException("Batch limits should be positive");
+            }
+            mMaxBatchSize = maxMessages;
+            mMaxBatchBytes = maxBytes;
+            return this;
+        }
+    }
+
+    private OutboundPolicy(Builder builder) {
+        mMode = builder.mMode;
+        mFlushIntervalMs = builder.mFlushIntervalMs;
+        mMaxBatchSize = builder.mMaxBatchSize;
+        mMaxBatchBytes = builder.mMaxBatchBytes;
+    }
+
+    @Mode
+    public int getMode() {
+        return mMode;
+    }
+
+    public long getFlushInterval() {
+        return mFlushIntervalMs;
+    }
+
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    public int getMaxBatchBytes() {
+        return mMaxBatchBytes;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.DataMapItem;
+import com.google.android.gms.wearable.MessageEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the payloads of messages, and of data items on request. A compressed payload starts
+ * with a short header: a zero byte, which never starts a serialized {@link DataMap}, followed by a
+ * tag and the format version. Payloads without the header are left untouched, so nodes that do
+ * not compress their payloads can still talk to nodes that do.
+ * <p/>
+ * Compression of messages is turned on by
+ * {@link WearManager#setPayloadCompressionEnabled(boolean)}, and received messages are decoded by
+ * the library before they reach the consumers. Data items are only compressed by an app that
+ * encodes their payload itself, since they are handed to the consumers as they are stored; such
+ * items should be read through {@link #getDataMap(DataItem)} or {@link #decode(byte[])}.
+ */
+public final class PayloadCodec {
+
+    private static final String TAG = "PayloadCodec";
+    private static final byte[] HEADER = {0, 'W', 'Z', 1};
+
+    // smaller payloads do not compress well enough to make up for the header
+    private static final int MIN_COMPRESSIBLE_BYTES = 128;
+
+    // a payload that inflates beyond this is rejected rather than allowed to fill the heap; it is
+    // ten times the 100KB limit of a message, and larger payloads are never compressed
+    static final int MAX_DECODED_BYTES = 1024 * 1024;
+
+    private PayloadCodec() {
+        // no instances
+    }
+
+    /**
+     * Returns {@code payload} compressed, with a header, or {@code payload} itself if it is too
+     * small, too large to be decoded, or does not get any smaller.
+     */
+    @Nullable
+    public static byte[] encode(@Nullable byte[] payload) {
+        if (payload == null || payload.length < MIN_COMPRESSIBLE_BYTES
+                || payload.length > MAX_DECODED_BYTES || isEncoded(payload)) {
+            return payload;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2);
+            out.write(HEADER, 0, HEADER.length);
+            byte[] buffer = new byte[4 * 1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+                if (out.size() >= payload.length) {
+                    return payload;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns {@code payload} decompressed, if it was compressed by {@link #encode(byte[])}, or
+     * {@code payload} itself otherwise. A payload that is malformed, or that would decompress to
+     * more than 1MB, is logged and returned as it is.
+     */
+    @Nullable
+    public static byte[] decode(@Nullable byte[] payload) {
+        if (!isEncoded(payload)) {
+            return payload;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload, HEADER.length, payload.length - HEADER.length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    Math.min(payload.length * 3, MAX_DECODED_BYTES));
+            byte[] buffer = new byte[4 * 1024];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated payload");
+                }
+                if (out.size() + inflated > MAX_DECODED_BYTES) {
+                    throw new DataFormatException("The payload decodes to more than "
+                            + MAX_DECODED_BYTES + " bytes");
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            Log.e(TAG, "Failed to decode a payload", e);
+            return payload;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Returns {@code true} if {@code payload} starts with the header of a compressed payload.
+     */
+    public static boolean isEncoded(@Nullable byte[] payload) {
+        if (payload == null || payload.length <= HEADER.length) {
+            return false;
+        }
+        for (int i = 0; i < HEADER.length; i++) {
+            if (payload[i] != HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the {@link DataMap} of a data item, whether its payload was compressed or not. Items
+     * with assets are never compressed, so their assets are restored as
+     * {@link DataMapItem#fromDataItem(DataItem)} would.
+     */
+    public static DataMap getDataMap(DataItem dataItem) {
+        byte[] data = dataItem.getData();
+        if (isEncoded(data)) {
+            return DataMap.fromByteArray(decode(data));
+        }
+        return DataMapItem.fromDataItem(dataItem).getDataMap();
+    }
+
+    /**
+     * Returns a {@link MessageEvent} whose data is decoded, or {@code messageEvent} itself if its
+     * data was not compressed.
+     */
+    static MessageEvent decode(MessageEvent messageEvent) {
+        byte[] data = messageEvent.getData();
+        if (!isEncoded(data)) {
+            return messageEvent;
+        }
+        return new ForwardingMessageEvent(messageEvent, decode(data));
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.wearable.Channel;
+import com.google.devrel.wcl.connectivity.WearFileTransfer.OnChannelTransferProgressListener;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+
+/**
+ * The two ends of the resumable file transfers that are started by
+ * {@link com.google.devrel.wcl.connectivity.WearFileTransfer}. The sender opens a channel under
+ * {@link Constants#PATH_FILE_TRANSFER_TYPE_RESUMABLE}, with the name, size and request id of the
+ * file in its path, and the protocol on that channel is:
+ * <ol>
+ *     <li>the receiver writes the number of bytes of that request that it already has, as a
+ *     {@code long}, or -1 if it refuses the transfer;</li>
+ *     <li>the sender writes the rest of the file from that offset, in chunks of at most
+ *     {@link #CHUNK_SIZE} bytes, each one as its {@code int} length, its bytes and its
+ *     {@link CRC32} as an {@code int}, and then a chunk of length 0;</li>
+ *     <li>the receiver writes the status code of the transfer, as an {@code int}.</li>
+ * </ol>
+ * The receiver only keeps the chunks that pass their check, in a partial file named after the
+ * sending node and the request id, next to the destination given by the {@link FileReceivePolicy},
+ * and moves that file to its final place once it is complete. A transfer that is cut short, or
+ * that fails a check, can be started again with the same request id and picks up after the last
+ * good chunk instead of from the beginning.
+ */
+class ResumableTransfer {
+
+    private static final String TAG = "ResumableTransfer";
+    static final int CHUNK_SIZE = 64 * 1024;
+    private static final long TIMEOUT_MS = 30 * 1000;
+
+    private final WearManager mWearManager;
+    private final Context mContext;
+    private final ExecutorService mExecutor = WclExecutors.newBoundedPool("wcl-transfer", 2);
+
+    // the paths of the partial files that are being written; guarded by "this"
+    private final Set<String> mActive = new HashSet<>();
+
+    ResumableTransfer(WearManager wearManager, Context context) {
+        mWearManager = wearManager;
+        mContext = context;
+    }
+
+    /**
+     * Sends {@code file} over {@code channel}, from the offset that the receiver asks for, and
+     * reports the status code of the transfer to {@code listener}. The progress, if requested, is
+     * reported to {@code progressListener} on the sending thread. The channel is closed when done.
+     */
+    void send(final Channel channel, final File file,
+            @Nullable final OnChannelTransferProgressListener progressListener,
+            final OnTransferDoneListener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int statusCode;
+                try {
+                    statusCode = sendInternal(channel, file, progressListener);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to send " + file, e);
+                    statusCode = CommonStatusCodes.ERROR;
+                } finally {
+                    mWearManager.closeChannel(channel);
+                }
+                listener.onTransferDone(statusCode);
+            }
+        });
+    }
+
+    private int sendInternal(Channel channel, File file,
+            @Nullable OnChannelTransferProgressListener progressListener) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        RandomAccessFile source = null;
+        try {
+            out = mWearManager.getChannelOutputStreamSynchronous(channel, TIMEOUT_MS);
+            in = mWearManager.getChannelInputStreamSynchronous(channel, TIMEOUT_MS);
+            if (out == null || in == null) {
+                return CommonStatusCodes.ERROR;
+            }
+            DataInputStream dataIn = new DataInputStream(in);
+            long offset = dataIn.readLong();
+            if (offset < 0) {
+                // the receiver refused the transfer, and says why
+                return dataIn.readInt();
+            }
+            long length = file.length();
+            if (offset > length) {
+                throw new IOException("The receiver asked for an invalid offset: " + offset);
+            }
+            Utils.LOGD(TAG, "Sending " + file + " from " + offset + " of " + length);
+            source = new RandomAccessFile(file, "r");
+            source.seek(offset);
+            TransferProgress progress = progressListener != null
+                    ? new TransferProgress(progressListener, offset, length) : null;
+            DataOutputStream dataOut = new DataOutputStream(
+                    new BufferedOutputStream(out, CHUNK_SIZE + 8));
+            byte[] buffer = new byte[CHUNK_SIZE];
+            CRC32 crc = new CRC32();
+            long remaining = length - offset;
+            while (remaining > 0) {
+                int count = source.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count == -1) {
+                    throw new IOException(file + " was truncated while it was being sent");
+                }
+                crc.reset();
+                crc.update(buffer, 0, count);
+                dataOut.writeInt(count);
+                dataOut.write(buffer, 0, count);
+                dataOut.writeInt((int) crc.getValue());
+                remaining -= count;
+                if (progress != null) {
+                    progress.update(length - remaining);
+                }
+            }
+            dataOut.writeInt(0);
+            dataOut.flush();
+            return dataIn.readInt();
+        } finally {
+            closeQuietly(source);
+            closeQuietly(out);
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Receives the file of {@code requestId} over {@code channel}, appending to what was received
+     * by an earlier attempt, and reports the progress and the result to the consumers. The channel
+     * is closed when done.
+     */
+    void receive(final Channel channel, final String requestId, final String name,
+            final long size) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String nodeId = channel.getNodeId();
+                FileReceivePolicy policy = mWearManager.getFileReceivePolicy();
+                File outFile = policy.getDestination(mContext, nodeId, requestId, name, size);
+                File partialFile = null;
+                if (outFile != null) {
+                    partialFile = FileReceivePolicy.getTempFile(outFile,
+                            Uri.encode(nodeId + "-" + requestId));
+                    if (!acquire(partialFile)) {
+                        Log.e(TAG, "The file of " + requestId + " is already being received");
+                        mWearManager.closeChannel(channel);
+                        return;
+                    }
+                    FileReceivePolicy.deleteStaleTempFiles(outFile);
+                }
+                int statusCode = CommonStatusCodes.ERROR;
+                InputStream in = null;
+                OutputStream out = null;
+                try {
+                    in = mWearManager.getChannelInputStreamSynchronous(channel, TIMEOUT_MS);
+                    out = mWearManager.getChannelOutputStreamSynchronous(channel, TIMEOUT_MS);
+                    if (in != null && out != null) {
+                        DataOutputStream dataOut = new DataOutputStream(out);
+                        statusCode = receiveInternal(new DataInputStream(in), dataOut,
+                                partialFile, size, policy,
+                                mWearManager.getFileReceiveProgressListener(requestId));
+                        if (statusCode == CommonStatusCodes.SUCCESS
+                                && !FileReceivePolicy.commit(partialFile, outFile)) {
+                            statusCode = CommonStatusCodes.ERROR;
+                        }
+                        dataOut.writeInt(statusCode);
+                        dataOut.flush();
+                    }
+                } catch (IOException e) {
+                    // the verified chunks stay in the partial file, for the next attempt
+                    Log.e(TAG, "Failed to receive the file of " + requestId, e);
+                } finally {
+                    if (partialFile != null) {
+                        release(partialFile);
+                    }
+                    closeQuietly(in);
+                    closeQuietly(out);
+                    mWearManager.closeChannel(channel);
+                }
+                mWearManager.notifyFileReceived(statusCode, requestId, outFile, name);
+            }
+        });
+    }
+
+    /**
+     * Tells the sender where to start, then appends the chunks it sends to {@code partialFile}.
+     * Returns the status code of the transfer: a transfer is refused if there is no
+     * {@code partialFile} or not enough room for the rest of the file.
+     */
+    private int receiveInternal(DataInputStream dataIn, DataOutputStream dataOut,
+            @Nullable File partialFile, long size, FileReceivePolicy policy,
+            OnChannelTransferProgressListener progressListener) throws IOException {
+        if (partialFile == null) {
+            dataOut.writeLong(-1);
+            return FileReceivePolicy.STATUS_REJECTED;
+        }
+        if (partialFile.length() > size) {
+            // left by a different file with the same request id
+            partialFile.delete();
+        }
+        long received = partialFile.length();
+        if (!policy.hasSpaceFor(partialFile, size - received)) {
+            dataOut.writeLong(-1);
+            return FileReceivePolicy.STATUS_INSUFFICIENT_SPACE;
+        }
+        dataOut.writeLong(received);
+        dataOut.flush();
+        Utils.LOGD(TAG, "Receiving " + partialFile + " from " + received + " of " + size);
+        TransferProgress progress = new TransferProgress(progressListener, received, size);
+
+        FileOutputStream fileOut = new FileOutputStream(partialFile, true);
+        try {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            CRC32 crc = new CRC32();
+            int count;
+            while ((count = dataIn.readInt()) != 0) {
+                if (count < 0 || count > CHUNK_SIZE || received + count > size) {
+                    throw new IOException("Received a chunk of an invalid length: " + count);
+                }
+                dataIn.readFully(buffer, 0, count);
+                crc.reset();
+                crc.update(buffer, 0, count);
+                if (dataIn.readInt() != (int) crc.getValue()) {
+                    throw new IOException("The chunk at " + received + " failed its check");
+                }
+                fileOut.write(buffer, 0, count);
+                received += count;
+                progress.update(received);
+            }
+            fileOut.getFD().sync();
+        } finally {
+            closeQuietly(fileOut);
+        }
+        if (received != size) {
+            Log.e(TAG, "Received " + received + " bytes, expected " + size);
+            return CommonStatusCodes.ERROR;
+        }
+        return CommonStatusCodes.SUCCESS;
+    }
+
+    private synchronized boolean acquire(File partialFile) {
+        return mActive.add(partialFile.getAbsolutePath());
+    }
+
+    private synchronized void release(File partialFile) {
+        mActive.remove(partialFile.getAbsolutePath());
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Is notified of the result of sending a file.
+     */
+    interface OnTransferDoneListener {
+
+        void onTransferDone(int statusCode);
+    }
+}
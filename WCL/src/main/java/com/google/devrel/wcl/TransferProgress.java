@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import android.os.SystemClock;
+
+import com.google.devrel.wcl.connectivity.WearFileTransfer.OnChannelTransferProgressListener;
+import com.google.devrel.wcl.connectivity.WearFileTransfer.OnChannelTransferThroughputListener;
+
+/**
+ * Turns the byte counts of a transfer into progress updates for an
+ * {@link OnChannelTransferProgressListener}. Updates are sent at most once every
+ * {@link #MIN_INTERVAL_MS}, except for the one that completes the transfer. An
+ * {@link OnChannelTransferThroughputListener} is also given the throughput, smoothed over the
+ * recent updates so that a single slow write does not make it jump.
+ * The listener is called on the thread that calls {@link #update(long)}.
+ */
+class TransferProgress {
+
+    static final long MIN_INTERVAL_MS = 250;
+
+    // weight of the latest interval in the smoothed throughput
+    private static final double SMOOTHING = 0.3;
+
+    private final OnChannelTransferProgressListener mListener;
+    private final long mTotal;
+    private long mLastUpdateAt;
+    private long mLastProgress;
+    private double mBytesPerSecond = -1;
+
+    /**
+     * @param startProgress The bytes that were already transferred when this starts, for example
+     * by an earlier attempt; they do not count towards the throughput
+     */
+    TransferProgress(OnChannelTransferProgressListener listener, long startProgress, long total) {
+        mListener = listener;
+        mTotal = total;
+        mLastProgress = startProgress;
+        mLastUpdateAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Reports that {@code progress} bytes have now been transferred, if enough time has passed
+     * since the last update or if the transfer is complete.
+     */
+    void update(long progress) {
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - mLastUpdateAt;
+        if (elapsed < MIN_INTERVAL_MS && progress < mTotal) {
+            return;
+        }
+        if (elapsed > 0) {
+            double bytesPerSecond = (progress - mLastProgress) * 1000d / elapsed;
+            mBytesPerSecond = mBytesPerSecond < 0 ? bytesPerSecond
+                    : SMOOTHING * bytesPerSecond + (1 - SMOOTHING) * mBytesPerSecond;
+        }
+        mLastUpdateAt = now;
+        mLastProgress = progress;
+        if (mListener instanceof OnChannelTransferThroughputListener) {
+            ((OnChannelTransferThroughputListener) mListener).onProgressUpdated(progress, mTotal,
+                    Math.max(0, Math.round(mBytesPerSecond)));
+        } else {
+            mListener.onProgressUpdated(progress, mTotal);
+        }
+    }
+}
@@ -34,7 +34,9 @@ import com.google.android.gms.wearable.Asset;
 import com.google.android.gms.wearable.Node;
 
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
 import java.util.Set;
 import java.util.UUID;
 
@@ -49,6 +51,14 @@ public class Utils {
     public static final int WIFI_CONNECTED = 3;
 
     private static final boolean DEBUG = false;
+    private static final int MAX_RETAINED_BUFFER_BYTES = 1024 * 1024;
+
+    private static final ThreadLocal<ImageBuffer> sImageBuffers = new ThreadLocal<ImageBuffer>() {
+        @Override
+        protected ImageBuffer initialValue() {
+            return new ImageBuffer();
+        }
+    };
 
     /**
      * Returns the status of wifi connectivity. The possible states are
@@ -145,22 +155,57 @@ public class Utils {
      * Builds an {@link com.google.android.gms.wearable.Asset} from a bitmap. The image that we get
      * back from the camera in "data" is a thumbnail size. Typically, your image should not exceed
      * 320x320 and if you want to have zoom and parallax effect in your app, limit the size of your
-     * image to 640x400. Resize your image before transferring to your wearable device.
+     * image to 640x400. Resize your image before transferring to your wearable device, or use
+     * {@link #toAsset(Bitmap, ImageEncoding)} to have it resized.
      */
     public static Asset toAsset(Bitmap bitmap) {
-        ByteArrayOutputStream byteStream = null;
+        return toAsset(bitmap, ImageEncoding.PNG);
+    }
+
+    /**
+     * Builds an {@link com.google.android.gms.wearable.Asset} from a bitmap, encoded and scaled
+     * down as described by {@code encoding}.
+     */
+    public static Asset toAsset(Bitmap bitmap, ImageEncoding encoding) {
+        return Asset.createFromBytes(encodeBitmap(bitmap, encoding));
+    }
+
+    /**
+     * Encodes a bitmap, scaled down as described by {@code encoding}. Each thread keeps its output
+     * buffer between calls, so encoding images of similar sizes does not allocate a new buffer
+     * each time.
+     */
+    public static byte[] encodeBitmap(Bitmap bitmap, ImageEncoding encoding) {
+        assertNotNull(bitmap, "bitmap");
+        assertNotNull(encoding, "encoding");
+        Bitmap scaled = encoding.scale(bitmap);
+        ImageBuffer buffer = sImageBuffers.get();
         try {
-            byteStream = new ByteArrayOutputStream();
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, byteStream);
-            return Asset.createFromBytes(byteStream.toByteArray());
+            buffer.prepare(Math.min(encoding.estimateSize(scaled), MAX_RETAINED_BUFFER_BYTES));
+            scaled.compress(encoding.getFormat(), encoding.getQuality(), buffer);
+            return buffer.toByteArray();
         } finally {
-            if (null != byteStream) {
-                try {
-                    byteStream.close();
-                } catch (IOException e) {
-                    // ignore
-                }
+            buffer.trim();
+            if (scaled != bitmap) {
+                scaled.recycle();
+            }
+        }
+    }
+
+    /**
+     * Returns the SHA-1 digest of {@code data}, as a hexadecimal string.
+     */
+    static String sha1(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format(Locale.US, "%02x", b));
             }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is always available
+            throw new IllegalStateException(e);
         }
     }
 
@@ -206,4 +251,23 @@ public class Utils {
             Log.d(tag, "[v" + WearManager.getInstance().getVersion() + "] " + message);
         }
     }
+
+    /**
+     * A {@link ByteArrayOutputStream} whose buffer is kept between images.
+     */
+    private static final class ImageBuffer extends ByteArrayOutputStream {
+
+        void prepare(int capacity) {
+            reset();
+            if (buf.length < capacity) {
+                buf = new byte[capacity];
+            }
+        }
+
+        void trim() {
+            if (buf.length > MAX_RETAINED_BUFFER_BYTES) {
+                buf = new byte[32];
+            }
+        }
+    }
 }
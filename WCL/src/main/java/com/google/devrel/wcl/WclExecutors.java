@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A holder for the thread pools that are shared across this library. Pools are created lazily, the
+ * first time they are requested, and their idle threads time out so that an application that does
+ * not use a given feature does not pay for its threads.
+ */
+public final class WclExecutors {
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final int DISPATCH_POOL_SIZE = Math.max(2, Math.min(CPU_COUNT, 4));
+    private static final int IO_POOL_SIZE = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final Executor MAIN_THREAD_EXECUTOR = new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
+
+    private static ExecutorService sDispatchExecutor;
+    private static ExecutorService sIoExecutor;
+    private static ScheduledExecutorService sScheduler;
+
+    private WclExecutors() {
+        // no instances
+    }
+
+    /**
+     * Returns an {@link Executor} that runs its tasks on the main (UI) thread.
+     */
+    public static Executor getMainThreadExecutor() {
+        return MAIN_THREAD_EXECUTOR;
+    }
+
+    /**
+     * Returns the shared pool that is used to deliver {@link com.google.devrel.wcl.callbacks
+     * .WearConsumer} callbacks off the thread that received the event. The pool has a small, fixed
+     * number of background-priority threads; tasks beyond that are queued.
+     */
+    public static synchronized ExecutorService getDispatchExecutor() {
+        if (sDispatchExecutor == null) {
+            sDispatchExecutor = newBoundedPool("wcl-dispatch", DISPATCH_POOL_SIZE);
+        }
+        return sDispatchExecutor;
+    }
+
+    /**
+     * Returns the shared pool for blocking I/O, such as direct network calls. The number of threads
+     * is bounded; when all of them are busy, new tasks wait in a queue.
+     */
+    public static synchronized ExecutorService getIoExecutor() {
+        if (sIoExecutor == null) {
+            sIoExecutor = newBoundedPool("wcl-io", IO_POOL_SIZE);
+        }
+        return sIoExecutor;
+    }
+
+    /**
+     * Returns the shared, single-threaded scheduler that is used for timeouts and other delayed
+     * tasks. Scheduled tasks should be short; anything that blocks should be handed off to
+     * {@link #getIoExecutor()}.
+     */
+    public static synchronized ScheduledExecutorService getScheduler() {
+        if (sScheduler == null) {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+                    new WclThreadFactory("wcl-scheduler"));
+            scheduler.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            scheduler.allowCoreThreadTimeOut(true);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                // cancelled timeouts are the common case, so don't keep them around
+                scheduler.setRemoveOnCancelPolicy(true);
+            }
+            sScheduler = scheduler;
+        }
+        return sScheduler;
+    }
+
+    /**
+     * Creates a new pool of at most {@code size} background-priority threads, named after
+     * {@code name}, whose idle threads time out. Tasks beyond {@code size} are queued. This is meant
+     * for the components of the library that need their own concurrency limit.
+     */
+    public static ExecutorService newBoundedPool(String name, int size) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new WclThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * A {@link ThreadFactory} that creates named daemon threads running at background priority.
+     */
+    private static final class WclThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+        private final String mName;
+
+        WclThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, mName + "-" + mCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
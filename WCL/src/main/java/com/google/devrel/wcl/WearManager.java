@@ -41,6 +41,7 @@ import com.google.android.gms.wearable.Channel;
 import com.google.android.gms.wearable.ChannelApi;
 import com.google.android.gms.wearable.DataApi;
 import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataItem;
 import com.google.android.gms.wearable.DataItemBuffer;
 import com.google.android.gms.wearable.DataMap;
 import com.google.android.gms.wearable.MessageApi;
@@ -52,8 +53,11 @@ import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 import com.google.devrel.wcl.callbacks.AbstractWearConsumer;
 import com.google.devrel.wcl.callbacks.WearConsumer;
+import com.google.devrel.wcl.callbacks.WearConsumerDispatcher;
+import com.google.devrel.wcl.callbacks.WearConsumerDispatcher.ConsumerCall;
 import com.google.devrel.wcl.connectivity.WearFileTransfer;
 import com.google.devrel.wcl.connectivity.WearHttpHelper;
+import com.google.devrel.wcl.connectivity.WearHttpProxy;
 import com.google.devrel.wcl.filters.NearbyFilter;
 import com.google.devrel.wcl.filters.NodeSelectionFilter;
 import com.google.devrel.wcl.widgets.list.WclWearableListViewActivity;
@@ -69,10 +73,14 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -99,17 +107,31 @@ public class WearManager {
             = "com.google.devrel.wcl.KEY_START_ACTIVITY_BUNDLE";
     private static final String KEY_START_ACTIVITY_RELAUNCH
             = "com.google.devrel.wcl.KEY_START_ACTIVITY_RELAUNCH";
+    private static final long ASSET_TIMEOUT_MS = 30 * 1000;
     private static WearManager sInstance;
     private final Context mContext;
     private final String[] mCapabilitiesToBeAdded;
     private GoogleApiClient mGoogleApiClient;
-    private final Set<WearConsumer> mWearConsumers = new CopyOnWriteArraySet<>();
+    private final WearConsumerDispatcher mConsumerDispatcher = new WearConsumerDispatcher();
     private final Set<String> mWatchedCapabilities = new CopyOnWriteArraySet<>();
     private final Set<Node> mConnectedNodes = new CopyOnWriteArraySet<>();
     private final Map<String, Set<Node>> mCapabilityToNodesMapping = Collections
             .synchronizedMap(new HashMap<String, Set<Node>>());
     private final String mWclVersion;
     private boolean mAppForeground;
+    private volatile WearHttpProxy mHttpProxy;
+    private volatile boolean mPayloadCompressionEnabled;
+    private final Map<String, OutboundPolicy> mOutboundPolicies = new ConcurrentHashMap<>();
+    private final OutboundMessageQueue mOutboundQueue = new OutboundMessageQueue(this);
+    private final WearOutbox mOutbox;
+    private final DataMapSync mDataMapSync = new DataMapSync(this);
+    private final DataItemCache mDataItemCache = new DataItemCache();
+    private final AssetRegistry mAssetRegistry;
+    private final ResumableTransfer mResumableTransfer;
+    private final ArchiveTransfer mArchiveTransfer;
+    private final CompressedTransfer mCompressedTransfer;
+    private volatile FileReceivePolicy mFileReceivePolicy = new FileReceivePolicy.Builder().build();
+    private AssetBitmapLoader mBitmapLoader; // guarded by "this"
 
     /**
      * The private constructor which is called internally by the
@@ -120,6 +142,11 @@ public class WearManager {
         mCapabilitiesToBeAdded = capabilitiesToBeAdded != null ? Arrays.copyOf(
                 capabilitiesToBeAdded, capabilitiesToBeAdded.length) : null;
         mWclVersion = context.getString(R.string.wcl_version);
+        mOutbox = new WearOutbox(this, context);
+        mAssetRegistry = new AssetRegistry(context);
+        mResumableTransfer = new ResumableTransfer(this, context);
+        mArchiveTransfer = new ArchiveTransfer(this, context);
+        mCompressedTransfer = new CompressedTransfer(this, context);
         Log.i(TAG, "******** Wear Companion Library version " + mWclVersion + " ********");
     }
 
@@ -194,6 +221,23 @@ public class WearManager {
     public void sendMessage(String nodeId, String path, @Nullable byte[] bytes,
             @Nullable final ResultCallback<? super MessageApi.SendMessageResult> callback) {
         assertApiConnectivity();
+        OutboundPolicy policy = mOutboundPolicies.get(path);
+        if (policy != null) {
+            mOutboundQueue.enqueue(nodeId, path, bytes, callback, policy);
+        } else {
+            sendMessageNow(nodeId, path, bytes, callback);
+        }
+    }
+
+    /**
+     * Sends a message right away, bypassing the outbound queues.
+     */
+    void sendMessageNow(String nodeId, String path, @Nullable byte[] bytes,
+            @Nullable final ResultCallback<? super MessageApi.SendMessageResult> callback) {
+        assertApiConnectivity();
+        if (mPayloadCompressionEnabled) {
+            bytes = PayloadCodec.encode(bytes);
+        }
         Wearable.MessageApi.sendMessage(mGoogleApiClient, nodeId, path, bytes).setResultCallback(
                 new ResultCallback<MessageApi.SendMessageResult>() {
                     @Override
@@ -203,10 +247,7 @@ public class WearManager {
                                     .getStatus().getStatusCode());
                         }
                         if (callback == null) {
-                            for (WearConsumer consumer : mWearConsumers) {
-                                consumer.onWearableSendMessageResult(sendMessageResult.getStatus()
-                                        .getStatusCode());
-                            }
+                            dispatchSendMessageResult(sendMessageResult);
                         } else {
                             callback.onResult(sendMessageResult);
                         }
@@ -214,6 +255,45 @@ public class WearManager {
                 });
     }
 
+    /**
+     * The default callback of the messages that are sent without one.
+     */
+    void dispatchSendMessageResult(MessageApi.SendMessageResult sendMessageResult) {
+        final int statusCode = sendMessageResult.getStatus().getStatusCode();
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearableSendMessageResult(statusCode);
+            }
+        });
+    }
+
+    /**
+     * Sets the {@link OutboundPolicy} of the messages sent on {@code path}, or removes it if
+     * {@code policy} is {@code null}, in which case the queued messages on that path are sent right
+     * away. Messages on a path with a policy are queued, per target node, and then either
+     * coalesced or batched; see {@link OutboundPolicy}. The receiving nodes should be using a
+     * version of this library that understands batched messages.
+     */
+    public void setOutboundPolicy(String path, @Nullable OutboundPolicy policy) {
+        Utils.assertNotEmpty(path, "path");
+        if (policy == null) {
+            mOutboundPolicies.remove(path);
+            mOutboundQueue.flush(path);
+        } else {
+            mOutboundPolicies.put(path, policy);
+        }
+    }
+
+    /**
+     * Sends all the messages that are waiting in the outbound queues right away.
+     *
+     * @see #setOutboundPolicy(String, OutboundPolicy)
+     */
+    public void flushOutboundMessages() {
+        mOutboundQueue.flushAll();
+    }
+
     /**
      * Sends an asynchronous message to the node with the given {@code nodeId}.
      * A default callback will be used that provides a feedback to the caller using the
@@ -227,6 +307,44 @@ public class WearManager {
         sendMessage(nodeId, path, bytes, null);
     }
 
+    /**
+     * Sends a message to the node with the given {@code nodeId} through a durable outbox. Unlike
+     * {@link #sendMessage(String, String, byte[], ResultCallback)}, this can be called while the
+     * Google API Client is not connected: the message is stored in the private storage of the
+     * application and retried, with an exponential backoff, until it is delivered or
+     * {@code ttlMillis} milliseconds have passed. Pending messages survive a restart of the process
+     * and are retried as soon as the client or a peer connects. Since the outcome may only be known
+     * after a restart, no result is reported.
+     */
+    public void sendMessageDurably(String nodeId, String path, @Nullable byte[] bytes,
+            long ttlMillis) {
+        Utils.assertNotEmpty(nodeId, "nodeId");
+        Utils.assertNotEmpty(path, "path");
+        assertPositiveTtl(ttlMillis);
+        mOutbox.addMessage(nodeId, path, bytes, ttlMillis);
+    }
+
+    /**
+     * Adds a data item through a durable outbox; see
+     * {@link #sendMessageDurably(String, String, byte[], long)}. Only the path, payload and
+     * urgency of {@code request} are kept, so requests with assets are not supported.
+     */
+    public void putDataItemDurably(PutDataRequest request, long ttlMillis) {
+        Utils.assertNotNull(request, "request");
+        assertPositiveTtl(ttlMillis);
+        if (!request.getAssets().isEmpty()) {
+            throw new IllegalArgumentException("Requests with assets cannot be queued");
+        }
+        mOutbox.addDataItem(request.getUri().getPath(), request.getData(), request.isUrgent(),
+                ttlMillis);
+    }
+
+    private static void assertPositiveTtl(long ttlMillis) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("ttlMillis should be positive");
+        }
+    }
+
     /**
      * Sends an HTTP response to a node inside an asynchronous custom message. When a node makes an
      * HTTP Request using the {@link WearHttpHelper} class, a node capable of fulfilling that request
@@ -247,15 +365,43 @@ public class WearManager {
      */
     public void sendHttpResponse(@Nullable String response, int status, String nodeId,
             String requestId, ResultCallback<? super MessageApi.SendMessageResult> callback) {
+        sendHttpResponse(response, status, null, nodeId, requestId, callback);
+    }
+
+    /**
+     * Same as {@link #sendHttpResponse(String, int, String, String, ResultCallback)} but also
+     * sends the response headers that a {@link com.google.devrel.wcl.connectivity.WearHttpCache}
+     * on the originating node uses, keyed by {@link WearHttpHelper#KEY_ETAG},
+     * {@link WearHttpHelper#KEY_LAST_MODIFIED}, {@link WearHttpHelper#KEY_CACHE_CONTROL} and
+     * {@link WearHttpHelper#KEY_EXPIRES}.
+     *
+     * @param headers The response headers; it can be {@code null}
+     */
+    public void sendHttpResponse(@Nullable String response, int status, @Nullable DataMap headers,
+            String nodeId, String requestId,
+            ResultCallback<? super MessageApi.SendMessageResult> callback) {
         Utils.assertNotEmpty(nodeId, "nodeId");
         Utils.assertNotEmpty(requestId, "requestId");
         final DataMap dataMap = new DataMap();
+        if (headers != null) {
+            dataMap.putAll(headers);
+        }
         dataMap.putString(WearHttpHelper.KEY_REQUEST_ID, requestId);
         dataMap.putString(WearHttpHelper.KEY_RESPONSE_DATA, response);
         dataMap.putInt(WearHttpHelper.KEY_STATUS_CODE, status);
         sendMessage(nodeId, Constants.PATH_HTTP_RESPONSE, dataMap, callback);
     }
 
+    /**
+     * Installs a {@link WearHttpProxy} that executes the http requests made by other nodes through
+     * {@link WearHttpHelper} and sends the responses back. While a proxy is installed,
+     * {@link WearConsumer#onWearableHttpRequestReceived(String, String, String, String, String,
+     * String)} is no longer called. Pass {@code null} to remove the proxy.
+     */
+    public void setHttpProxy(@Nullable WearHttpProxy httpProxy) {
+        mHttpProxy = httpProxy;
+    }
+
     /**
      * Adds a data item asynchronously. Caller can specify a {@link ResultCallback} or pass a
      * {@code null}; if {@code null} is passed, a default {@link ResultCallback} will be used which
@@ -277,10 +423,7 @@ public class WearManager {
                                     .getStatusCode());
                         }
                         if (callback == null) {
-                            for (WearConsumer consumer : mWearConsumers) {
-                                consumer.onWearableSendDataResult(dataItemResult.getStatus()
-                                        .getStatusCode());
-                            }
+                            dispatchSendDataResult(dataItemResult.getStatus().getStatusCode());
                         } else {
                             callback.onResult(dataItemResult);
                         }
@@ -312,6 +455,97 @@ public class WearManager {
         return result.getStatus().getStatusCode();
     }
 
+    /**
+     * The default callback of the data items that are put without one.
+     */
+    void dispatchSendDataResult(final int statusCode) {
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearableSendDataResult(statusCode);
+            }
+        });
+    }
+
+    /**
+     * Synchronizes {@code dataMap} with the other nodes, under {@code path}, and only sends the
+     * top level keys whose value has changed since the last call for the same path. Each key is
+     * stored in a data item of its own, so the cost of an update is proportional to the size of
+     * what has changed and not to the size of {@code dataMap}. Keys that are no longer in
+     * {@code dataMap} are removed. The result is reported, once per call, through
+     * {@link WearConsumer#onWearableSendDataResult(int)}.
+     * <p/>
+     * On the other nodes, {@link WearConsumer#onWearableSyncedDataMapChanged(String, DataMap, Set)}
+     * is called with the whole {@link DataMap} and the keys that have changed, and
+     * {@link #getSyncedDataMapSynchronous(String)} returns the whole {@link DataMap}. A path
+     * should be synced by a single node.
+     */
+    public void syncDataMap(String path, DataMap dataMap, boolean isUrgent) {
+        Utils.assertNotEmpty(path, "path");
+        Utils.assertNotNull(dataMap, "dataMap");
+        if (!path.startsWith("/")) {
+            throw new IllegalArgumentException("path should start with '/'");
+        }
+        mDataMapSync.sync(path, dataMap, isUrgent);
+    }
+
+    /**
+     * Returns the latest version of the {@link DataMap} that another node synced under
+     * {@code path} through {@link #syncDataMap(String, DataMap, boolean)}, or an empty
+     * {@link DataMap} if there is none. This should only be called on a non-UI thread.
+     */
+    public DataMap getSyncedDataMapSynchronous(String path) throws InterruptedException {
+        Utils.assertNotEmpty(path, "path");
+        assertApiConnectivity();
+        Utils.assertNonUiThread();
+        return mDataMapSync.getViewSynchronous(path);
+    }
+
+    /**
+     * Clients can register to
+     * {@link WearConsumer#onWearableSyncedDataMapChanged(String, DataMap, Set)}.
+     */
+    void dispatchSyncedDataMapChanged(final String path, final DataMap dataMap,
+            final Set<String> changedKeys) {
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearableSyncedDataMapChanged(path, dataMap, changedKeys);
+            }
+        });
+    }
+
+    /**
+     * Enables or disables the compression of the payloads of the messages that are sent through
+     * this class. Received messages are decompressed before they reach the consumers, whether this
+     * is enabled or not, but all the nodes should be using a version of this library that
+     * understands compressed payloads before this is enabled; see {@link PayloadCodec}. Payloads
+     * that are small, or do not compress well, are sent as they are. Default is {@code false}.
+     * <p/>
+     * Data items are never compressed by this flag: they reach the consumers of
+     * {@link WearConsumer#onWearableDataChanged(DataEventBuffer)} as they are stored, and existing
+     * code reads them with {@link com.google.android.gms.wearable.DataMapItem#fromDataItem}.
+     * To compress a data item anyway, encode its payload with {@link PayloadCodec#encode(byte[])},
+     * and read it on all nodes with
+     * {@link PayloadCodec#getDataMap(com.google.android.gms.wearable.DataItem)}.
+     */
+    public void setPayloadCompressionEnabled(boolean enabled) {
+        mPayloadCompressionEnabled = enabled;
+    }
+
+    /**
+     * Sets the {@link FileReceivePolicy} that decides where the files and directories sent by
+     * {@link WearFileTransfer} are saved, and whether there is room for them. Passing {@code null}
+     * restores the default policy, which saves them in the private data storage of the app.
+     */
+    public void setFileReceivePolicy(@Nullable FileReceivePolicy policy) {
+        mFileReceivePolicy = policy != null ? policy : new FileReceivePolicy.Builder().build();
+    }
+
+    FileReceivePolicy getFileReceivePolicy() {
+        return mFileReceivePolicy;
+    }
+
     /**
      * Adds a {@code bitmap} image to a data item asynchronously. Caller can
      * specify a {@link ResultCallback} or pass a {@code null}; if a {@code null} is passed, a
@@ -345,6 +579,94 @@ public class WearManager {
         putDataItem(request, callback);
     }
 
+    /**
+     * Adds a {@code bitmap} image to a data item asynchronously, encoded and scaled down as
+     * described by {@code encoding}. Instead of a timestamp, the data map carries the digest of the
+     * encoded image under {@link Constants#KEY_IMAGE_DIGEST}, so putting an unchanged image again
+     * leaves the data item as it is and nothing is sent to the other nodes, while a changed image
+     * always updates it.
+     * <p/>
+     * The assets of the images put through this method are remembered across sessions, by the
+     * content of the bitmap, so putting an identical bitmap again, under any path, refers to the
+     * existing asset rather than encoding and sending the image again. This hashes the pixels of
+     * the bitmap, and encodes it if needed, on the calling thread, so it is best called on a
+     * background thread.
+     *
+     * @param bitmap The bitmap to be added.
+     * @param path The path for the data item.
+     * @param key The key to be used for this item in the data map.
+     * @param isUrgent If {@code true}, request will be set as urgent.
+     * @param encoding How the bitmap is encoded.
+     * @param callback The callback to be notified of the result (can be {@code null}).
+     */
+    public void putImageData(Bitmap bitmap, String path, String key, boolean isUrgent,
+            ImageEncoding encoding,
+            @Nullable ResultCallback<? super DataApi.DataItemResult> callback) {
+        Utils.assertNotNull(bitmap, "bitmap");
+        Utils.assertNotEmpty(path, "path");
+        Utils.assertNotEmpty(key, "key");
+        Utils.assertNotNull(encoding, "encoding");
+        String imageKey = AssetRegistry.getKey(bitmap, encoding);
+        putImageData(bitmap, path, key, isUrgent, encoding, imageKey,
+                mAssetRegistry.get(imageKey), callback);
+    }
+
+    private void putImageData(final Bitmap bitmap, final String path, final String key,
+            final boolean isUrgent, final ImageEncoding encoding, final String imageKey,
+            @Nullable final AssetRegistry.Entry entry,
+            @Nullable final ResultCallback<? super DataApi.DataItemResult> callback) {
+        final Asset asset;
+        final String imageDigest;
+        if (entry != null) {
+            Utils.LOGD(TAG, "Reusing the asset of an identical image for " + path);
+            asset = Asset.createFromRef(entry.mAssetDigest);
+            imageDigest = entry.mImageDigest;
+        } else {
+            byte[] image = Utils.encodeBitmap(bitmap, encoding);
+            asset = Asset.createFromBytes(image);
+            imageDigest = Utils.sha1(image);
+        }
+        PutDataMapRequest dataMap = PutDataMapRequest.create(path);
+        dataMap.getDataMap().putAsset(key, asset);
+        dataMap.getDataMap().putString(Constants.KEY_IMAGE_DIGEST, imageDigest);
+        PutDataRequest request = dataMap.asPutDataRequest();
+        if (isUrgent) {
+            request.setUrgent();
+        }
+        putDataItem(request, new ResultCallback<DataApi.DataItemResult>() {
+            @Override
+            public void onResult(DataApi.DataItemResult dataItemResult) {
+                if (dataItemResult.getStatus().isSuccess()) {
+                    if (entry == null) {
+                        // the assets of the item are indexed by position, not by the keys of the
+                        // data map, so the asset is looked up through the data map
+                        Asset itemAsset = PayloadCodec.getDataMap(dataItemResult.getDataItem())
+                                .getAsset(key);
+                        if (itemAsset != null && itemAsset.getDigest() != null) {
+                            mAssetRegistry.put(imageKey, itemAsset.getDigest(), imageDigest);
+                        }
+                    }
+                } else if (entry != null && !bitmap.isRecycled()) {
+                    // the asset is no longer in the data layer, so the image is sent again
+                    mAssetRegistry.remove(imageKey);
+                    WclExecutors.getIoExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            putImageData(bitmap, path, key, isUrgent, encoding, imageKey, null,
+                                    callback);
+                        }
+                    });
+                    return;
+                }
+                if (callback == null) {
+                    dispatchSendDataResult(dataItemResult.getStatus().getStatusCode());
+                } else {
+                    callback.onResult(dataItemResult);
+                }
+            }
+        });
+    }
+
     /**
      * Retrieves data items asynchronously. Caller can specify a {@link ResultCallback} or pass a
      * {@code null}; if a {@code null} is passed, a default {@link ResultCallback} will be used that
@@ -357,16 +679,19 @@ public class WearManager {
         Wearable.DataApi.getDataItems(mGoogleApiClient).setResultCallback(
                 new ResultCallback<DataItemBuffer>() {
                     @Override
-                    public void onResult(DataItemBuffer dataItems) {
+                    public void onResult(final DataItemBuffer dataItems) {
                         try {
-                            int statusCode = dataItems.getStatus().getStatusCode();
+                            final int statusCode = dataItems.getStatus().getStatusCode();
                             if (!dataItems.getStatus().isSuccess()) {
                                 Log.e(TAG, "Failed to get items, status code: " + statusCode);
                             }
                             if (callback == null) {
-                                for (WearConsumer consumer : mWearConsumers) {
-                                    consumer.onWearableGetDataItems(statusCode, dataItems);
-                                }
+                                mConsumerDispatcher.dispatchInline(new ConsumerCall() {
+                                    @Override
+                                    public void invoke(WearConsumer consumer) {
+                                        consumer.onWearableGetDataItems(statusCode, dataItems);
+                                    }
+                                });
                             } else {
                                 callback.onResult(dataItems);
                             }
@@ -391,15 +716,18 @@ public class WearManager {
         Wearable.DataApi.getDataItems(mGoogleApiClient, uri, filterType).setResultCallback(
                 new ResultCallback<DataItemBuffer>() {
                     @Override
-                    public void onResult(DataItemBuffer dataItems) {
-                        int statusCode = dataItems.getStatus().getStatusCode();
+                    public void onResult(final DataItemBuffer dataItems) {
+                        final int statusCode = dataItems.getStatus().getStatusCode();
                         if (!dataItems.getStatus().isSuccess()) {
                             Log.e(TAG, "Failed to get items, status code: " + statusCode);
                         }
                         if (callback == null) {
-                            for (WearConsumer consumer : mWearConsumers) {
-                                consumer.onWearableGetDataItems(statusCode, dataItems);
-                            }
+                            mConsumerDispatcher.dispatchInline(new ConsumerCall() {
+                                @Override
+                                public void invoke(WearConsumer consumer) {
+                                    consumer.onWearableGetDataItems(statusCode, dataItems);
+                                }
+                            });
                         } else {
                             callback.onResult(dataItems);
                         }
@@ -449,15 +777,18 @@ public class WearManager {
         Wearable.DataApi.getDataItem(mGoogleApiClient, dataItemUri).setResultCallback(
                 new ResultCallback<DataApi.DataItemResult>() {
                     @Override
-                    public void onResult(DataApi.DataItemResult dataItemResult) {
-                        int statusCode = dataItemResult.getStatus().getStatusCode();
+                    public void onResult(final DataApi.DataItemResult dataItemResult) {
+                        final int statusCode = dataItemResult.getStatus().getStatusCode();
                         if (!dataItemResult.getStatus().isSuccess()) {
                             Log.e(TAG, "Failed to get the data item, status code: " + statusCode);
                         }
                         if (callback == null) {
-                            for (WearConsumer consumer : mWearConsumers) {
-                                consumer.onWearableGetDataItem(statusCode, dataItemResult);
-                            }
+                            mConsumerDispatcher.dispatch(new ConsumerCall() {
+                                @Override
+                                public void invoke(WearConsumer consumer) {
+                                    consumer.onWearableGetDataItem(statusCode, dataItemResult);
+                                }
+                            });
                         } else {
                             callback.onResult(dataItemResult);
                         }
@@ -477,6 +808,77 @@ public class WearManager {
                 timeoutInMillis, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Returns the {@link DataMap} of the data item with the given {@code dataItemUri}, or
+     * {@code null} if there is no such item. Items are kept in an in-memory cache that is updated
+     * as the items change, so only the first read of an item blocks, for at most
+     * {@code timeoutInMillis} milliseconds, and should be made on a non-UI thread; see
+     * {@link #peekCachedDataMap(Uri)} for a read that never blocks. Unlike
+     * {@link #getDataItemSynchronous(Uri, long)}, there is nothing to release.
+     */
+    @Nullable
+    public DataMap getCachedDataMapSynchronous(Uri dataItemUri, long timeoutInMillis) {
+        Utils.assertNotNull(dataItemUri, "dataItemUri");
+        if (mDataItemCache.contains(dataItemUri)) {
+            return mDataItemCache.get(dataItemUri);
+        }
+        long generation = mDataItemCache.getGeneration();
+        DataApi.DataItemResult result = getDataItemSynchronous(dataItemUri, timeoutInMillis);
+        if (!result.getStatus().isSuccess()) {
+            Log.e(TAG, "Failed to get the data item, status code: "
+                    + result.getStatus().getStatusCode());
+            return null;
+        }
+        DataItem dataItem = result.getDataItem();
+        mDataItemCache.put(dataItemUri, dataItem, generation);
+        return dataItem != null ? PayloadCodec.getDataMap(dataItem) : null;
+    }
+
+    /**
+     * Returns the {@link DataMap}s of the data items that match {@code uri} as a prefix, keyed by
+     * the {@link Uri} of each item; if {@code uri} has no host, the items of all the nodes are
+     * returned. The items are read through the same cache as
+     * {@link #getCachedDataMapSynchronous(Uri, long)}, so only the first read of a prefix blocks.
+     */
+    public Map<Uri, DataMap> getCachedDataMapsSynchronous(Uri uri, long timeoutInMillis) {
+        Utils.assertNotNull(uri, "uri");
+        Map<Uri, DataMap> cached = mDataItemCache.getAll(uri);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = mDataItemCache.getGeneration();
+        DataItemBuffer dataItems = getDataItemsSynchronous(uri, DataApi.FILTER_PREFIX,
+                timeoutInMillis);
+        Map<Uri, DataMap> result = new LinkedHashMap<>();
+        try {
+            if (!dataItems.getStatus().isSuccess()) {
+                Log.e(TAG, "Failed to get the data items, status code: "
+                        + dataItems.getStatus().getStatusCode());
+                return result;
+            }
+            mDataItemCache.putAll(uri, dataItems, generation);
+            for (DataItem dataItem : dataItems) {
+                result.put(dataItem.getUri(), PayloadCodec.getDataMap(dataItem));
+            }
+        } finally {
+            dataItems.release();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the cached {@link DataMap} of the data item with the given {@code dataItemUri}, or
+     * {@code null} if it is not cached or does not exist. This never blocks, so it can be called on
+     * the UI thread.
+     *
+     * @see #getCachedDataMapSynchronous(Uri, long)
+     */
+    @Nullable
+    public DataMap peekCachedDataMap(Uri dataItemUri) {
+        Utils.assertNotNull(dataItemUri, "dataItemUri");
+        return mDataItemCache.get(dataItemUri);
+    }
+
     /**
      * Deletes a data items asynchronously. Caller can specify a {@link ResultCallback} or
      * pass a {@code null}; if a {@code null} is passed, a default {@link ResultCallback} will be
@@ -489,16 +891,19 @@ public class WearManager {
                 new ResultCallback<DataApi.DeleteDataItemsResult>() {
                     @Override
                     public void onResult(DataApi.DeleteDataItemsResult deleteDataItemsResult) {
-                        int statusCode = deleteDataItemsResult.getStatus().getStatusCode();
+                        final int statusCode = deleteDataItemsResult.getStatus().getStatusCode();
                         if (!deleteDataItemsResult.getStatus().isSuccess()) {
                             Log.e(TAG, String.format(
                                     "Failed to delete data items (status code=%d): %s",
                                     statusCode, dataItemUri));
                         }
                         if (callback == null) {
-                            for (WearConsumer consumer : mWearConsumers) {
-                                consumer.onWearableDeleteDataItemsResult(statusCode);
-                            }
+                            mConsumerDispatcher.dispatch(new ConsumerCall() {
+                                @Override
+                                public void invoke(WearConsumer consumer) {
+                                    consumer.onWearableDeleteDataItemsResult(statusCode);
+                                }
+                            });
                         } else {
                             callback.onResult(deleteDataItemsResult);
                         }
@@ -519,6 +924,20 @@ public class WearManager {
                 .await(timeoutInMillis, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Returns the id of the local node, waiting at most {@code timeoutInMillis} milliseconds.
+     */
+    String getLocalNodeIdSynchronous(long timeoutInMillis) {
+        assertApiConnectivity();
+        NodeApi.GetLocalNodeResult result = Wearable.NodeApi.getLocalNode(mGoogleApiClient)
+                .await(timeoutInMillis, TimeUnit.MILLISECONDS);
+        if (!result.getStatus().isSuccess()) {
+            throw new IllegalStateException("Failed to get the local node, status code: "
+                    + result.getStatus().getStatusCode());
+        }
+        return result.getNode().getId();
+    }
+
     /**
      * Adds one or more capabilities to the client at runtime. Make sure you balance this with a
      * similar call to {@link #removeCapabilities(String...)}
@@ -536,18 +955,21 @@ public class WearManager {
                             new ResultCallback<CapabilityApi.AddLocalCapabilityResult>() {
                                 @Override
                                 public void onResult(
-                                        CapabilityApi.AddLocalCapabilityResult
+                                        final CapabilityApi.AddLocalCapabilityResult
                                                 addLocalCapabilityResult) {
                                     if (!addLocalCapabilityResult.getStatus().isSuccess()) {
                                         Log.e(TAG, "Failed to add the capability " + capability);
                                     } else {
                                         mWatchedCapabilities.add(capability);
                                     }
-                                    for (WearConsumer consumer : mWearConsumers) {
-                                        consumer.onWearableAddCapabilityResult(
-                                                addLocalCapabilityResult.getStatus()
-                                                        .getStatusCode());
-                                    }
+                                    mConsumerDispatcher.dispatch(new ConsumerCall() {
+                                        @Override
+                                        public void invoke(WearConsumer consumer) {
+                                            consumer.onWearableAddCapabilityResult(
+                                                    addLocalCapabilityResult.getStatus()
+                                                            .getStatusCode());
+                                        }
+                                    });
                                 }
                             });
         }
@@ -568,18 +990,21 @@ public class WearManager {
                             new ResultCallback<CapabilityApi.RemoveLocalCapabilityResult>() {
                                 @Override
                                 public void onResult(
-                                        CapabilityApi.RemoveLocalCapabilityResult
+                                        final CapabilityApi.RemoveLocalCapabilityResult
                                                 removeLocalCapabilityResult) {
                                     if (!removeLocalCapabilityResult.getStatus().isSuccess()) {
                                         Log.e(TAG, "Failed to remove the capability " + capability);
                                     } else {
                                         mWatchedCapabilities.remove(capability);
                                     }
-                                    for (WearConsumer consumer : mWearConsumers) {
-                                        consumer.onWearableRemoveCapabilityResult(
-                                                removeLocalCapabilityResult.getStatus()
-                                                        .getStatusCode());
-                                    }
+                                    mConsumerDispatcher.dispatch(new ConsumerCall() {
+                                        @Override
+                                        public void invoke(WearConsumer consumer) {
+                                            consumer.onWearableRemoveCapabilityResult(
+                                                    removeLocalCapabilityResult.getStatus()
+                                                            .getStatusCode());
+                                        }
+                                    });
                                 }
                             });
         }
@@ -602,25 +1027,112 @@ public class WearManager {
      * should consider building a {@link WearConsumer} by extending
      * {@link AbstractWearConsumer} instead of implementing {@link WearConsumer} directly.
      *
+     * <p>Callbacks are delivered on the thread that receives the event; for the events coming from
+     * the Wearable APIs, this is the binder thread of {@link WclWearableListenerService}, so
+     * consumers registered this way should return quickly. Consumers that do heavier work should
+     * use {@link #addWearConsumer(WearConsumer, Executor)} or
+     * {@link #addWearConsumerOnSerialQueue(WearConsumer)} instead.
+     *
      * @see AbstractWearConsumer
      */
     public void addWearConsumer(WearConsumer consumer) {
-        mWearConsumers.add(Utils.assertNotNull(consumer, "consumer"));
+        addWearConsumer(consumer, null);
+    }
+
+    /**
+     * Adds the {@link WearConsumer} and delivers its callbacks on the given {@code executor}. Each
+     * such consumer has its own queue; callbacks are delivered in the order the events were
+     * received and never concurrently, even if {@code executor} is a thread pool. As a result, a
+     * slow consumer does not hold up the delivery to other consumers or the thread that received
+     * the event. If {@code executor} is {@code null}, callbacks are delivered inline, as in
+     * {@link #addWearConsumer(WearConsumer)}.
+     *
+     * <p>Note that {@link WearConsumer#onWearableDataChanged(DataEventBuffer)} and
+     * {@link WearConsumer#onWearableGetDataItems(int, DataItemBuffer)} are always delivered
+     * inline since their buffers are released as soon as the callback returns.
+     *
+     * @see #getWearConsumerStats(WearConsumer)
+     */
+    public void addWearConsumer(WearConsumer consumer, @Nullable Executor executor) {
+        addWearConsumer(null, consumer, executor);
+    }
+
+    /**
+     * Adds the {@link WearConsumer} so that it only receives the messages whose path starts with
+     * {@code pathPrefix}, in {@link WearConsumer#onWearableMessageReceived(MessageEvent)}; its
+     * other callbacks are delivered as usual. Incoming messages are routed through an index of the
+     * registered prefixes, so consumers that are only interested in a few paths do not add to the
+     * cost of delivering unrelated messages. A consumer can only be registered once, with a single
+     * prefix.
+     *
+     * @see #addWearConsumer(String, WearConsumer, Executor)
+     */
+    public void addWearConsumer(String pathPrefix, WearConsumer consumer) {
+        addWearConsumer(Utils.assertNotNull(pathPrefix, "pathPrefix"), consumer, null);
+    }
+
+    /**
+     * Adds the {@link WearConsumer} for the messages whose path starts with {@code pathPrefix} and
+     * delivers its callbacks on the given {@code executor}. A {@code null} {@code pathPrefix}
+     * matches all messages and a {@code null} {@code executor} results in inline delivery.
+     *
+     * @see #addWearConsumer(String, WearConsumer)
+     * @see #addWearConsumer(WearConsumer, Executor)
+     */
+    public void addWearConsumer(@Nullable String pathPrefix, WearConsumer consumer,
+            @Nullable Executor executor) {
+        mConsumerDispatcher.add(pathPrefix, Utils.assertNotNull(consumer, "consumer"), executor);
         // if we were connected to the Google Api Client earlier, let's call the
         // onWearableApiConnected() on new consumer manually since it won't be called again
         if (isConnected()) {
-            consumer.onWearableApiConnected();
+            mConsumerDispatcher.dispatchTo(consumer, new ConsumerCall() {
+                @Override
+                public void invoke(WearConsumer consumer) {
+                    consumer.onWearableApiConnected();
+                }
+            });
         }
     }
 
+    /**
+     * Adds the {@link WearConsumer} and delivers its callbacks, in order, on a serial queue that is
+     * backed by the library's shared background threads.
+     *
+     * @see #addWearConsumer(WearConsumer, Executor)
+     */
+    public void addWearConsumerOnSerialQueue(WearConsumer consumer) {
+        addWearConsumer(consumer, WclExecutors.getDispatchExecutor());
+    }
+
     /**
      * Removes the {@link WearConsumer} from this singleton. This should be when there is no need
-     * for the registered {@link WearConsumer} to avoid leaks.
+     * for the registered {@link WearConsumer} to avoid leaks. Callbacks that are still queued for
+     * this consumer will be dropped.
      *
      * @see #addWearConsumer(WearConsumer)
      */
     public void removeWearConsumer(WearConsumer consumer) {
-        mWearConsumers.remove(Utils.assertNotNull(consumer, "consumer"));
+        mConsumerDispatcher.remove(Utils.assertNotNull(consumer, "consumer"));
+    }
+
+    /**
+     * Returns the queue counters for a {@link WearConsumer} that was registered with an executor,
+     * or {@code null} if the consumer is not registered. These can be used to detect a consumer
+     * that cannot keep up with the rate of incoming events.
+     *
+     * @see #getPendingCallbackCount()
+     */
+    @Nullable
+    public WearConsumerDispatcher.Stats getWearConsumerStats(WearConsumer consumer) {
+        return mConsumerDispatcher.getStats(Utils.assertNotNull(consumer, "consumer"));
+    }
+
+    /**
+     * Returns the number of callbacks, across all consumers, that are queued and not yet
+     * delivered.
+     */
+    public int getPendingCallbackCount() {
+        return mConsumerDispatcher.getPendingCount();
     }
 
     /**
@@ -628,10 +1140,14 @@ public class WearManager {
      */
     private void onConnected(Bundle bundle) {
         Utils.LOGD(TAG, "Google Api Connected");
-        for (WearConsumer consumer : mWearConsumers) {
-            consumer.onWearableApiConnected();
-        }
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearableApiConnected();
+            }
+        });
         addCapabilities(mCapabilitiesToBeAdded);
+        mOutbox.replay();
         Wearable.CapabilityApi.getAllCapabilities(mGoogleApiClient,
                 CapabilityApi.FILTER_REACHABLE).setResultCallback(
 
@@ -823,10 +1339,13 @@ public class WearManager {
         if (callback == null) {
             callback = new ResultCallback<Status>() {
                 @Override
-                public void onResult(Status status) {
-                    for (WearConsumer consumer : mWearConsumers) {
-                        consumer.onWearableSendFileResult(status.getStatusCode(), requestId);
-                    }
+                public void onResult(final Status status) {
+                    mConsumerDispatcher.dispatch(new ConsumerCall() {
+                        @Override
+                        public void invoke(WearConsumer consumer) {
+                            consumer.onWearableSendFileResult(status.getStatusCode(), requestId);
+                        }
+                    });
                 }
             };
         }
@@ -834,6 +1353,155 @@ public class WearManager {
         result.setResultCallback(callback);
     }
 
+    /**
+     * Sends {@code file} over {@code channel}, which should have been opened with a path that
+     * starts with {@link Constants#PATH_FILE_TRANSFER_TYPE_RESUMABLE}. The receiver first reports
+     * how much of the file it already has for {@code requestId}, from an earlier attempt that was
+     * cut short, and only the rest is sent, in chunks that each carry a CRC32 checksum. The channel
+     * is closed when the transfer is over, and {@code callback}, or if it is {@code null}
+     * {@link WearConsumer#onWearableSendFileResult(int, String)}, is called on the main thread with
+     * the status reported by the receiver.
+     */
+    public void sendFileResumable(String requestId, Channel channel, File file,
+            @Nullable ResultCallback<Status> callback) {
+        sendFileResumable(requestId, channel, file, null, callback);
+    }
+
+    /**
+     * Same as {@link #sendFileResumable(String, Channel, File, ResultCallback)} but also reports
+     * the progress of the transfer to {@code progressListener} on the main thread, at most a few
+     * times a second, and its throughput too if the listener is a
+     * {@link WearFileTransfer.OnChannelTransferThroughputListener}.
+     */
+    public void sendFileResumable(String requestId, Channel channel, File file,
+            @Nullable WearFileTransfer.OnChannelTransferProgressListener progressListener,
+            @Nullable ResultCallback<Status> callback) {
+        Utils.assertNotNull(channel, "channel");
+        Utils.assertNotNull(file, "file");
+        mResumableTransfer.send(channel, file, onMainThread(progressListener),
+                newTransferDoneListener(requestId, callback));
+    }
+
+    /**
+     * Sends all the files under {@code directory}, at any depth, over {@code channel}, which should
+     * have been opened with a path that starts with
+     * {@link Constants#PATH_FILE_TRANSFER_TYPE_ARCHIVE}. The files are streamed one after the
+     * other, each with a CRC32 checksum, and the receiver unpacks them into a directory of the same
+     * layout. If {@code compressed} is {@code true}, the stream is compressed on the fly, in which
+     * case the path of the channel should end with {@link WearFileTransfer#ENCODING_DEFLATE}. The
+     * progress of the transfer, if requested, is reported to {@code progressListener} on the main
+     * thread. The channel is closed when the transfer is over, and {@code callback}, or
+     * if it is {@code null}
+     * {@link WearConsumer#onWearableSendFileResult(int, String)}, is called on the main thread with
+     * the status reported by the receiver.
+     */
+    public void sendDirectory(String requestId, Channel channel, File directory,
+            boolean compressed,
+            @Nullable WearFileTransfer.OnChannelTransferProgressListener progressListener,
+            @Nullable ResultCallback<Status> callback) {
+        Utils.assertNotNull(directory, "directory");
+        sendDirectory(requestId, channel, DirectorySnapshot.of(directory), compressed,
+                progressListener, callback);
+    }
+
+    /**
+     * Sends the files of {@code snapshot}, with the sizes they had when it was taken, like
+     * {@link #sendDirectory(String, Channel, File, boolean,
+     * WearFileTransfer.OnChannelTransferProgressListener, ResultCallback)}. The size in the path
+     * of the channel should be {@link DirectorySnapshot#getTotalSize()}.
+     */
+    public void sendDirectory(String requestId, Channel channel, DirectorySnapshot snapshot,
+            boolean compressed,
+            @Nullable WearFileTransfer.OnChannelTransferProgressListener progressListener,
+            @Nullable ResultCallback<Status> callback) {
+        Utils.assertNotNull(channel, "channel");
+        Utils.assertNotNull(snapshot, "snapshot");
+        mArchiveTransfer.send(channel, snapshot, compressed, onMainThread(progressListener),
+                newTransferDoneListener(requestId, callback));
+    }
+
+    /**
+     * Sends {@code file}, compressed on the fly, over {@code channel}, which should have been
+     * opened with a path that starts with {@link Constants#PATH_FILE_TRANSFER_TYPE_FILE} and ends
+     * with {@link WearFileTransfer#ENCODING_DEFLATE}; the receiver inflates it as it arrives. The
+     * progress of the transfer, in uncompressed bytes, is reported to {@code progressListener}, if
+     * any, on the main thread. The channel is closed when the transfer is over, and
+     * {@code callback}, or if it is {@code null}
+     * {@link WearConsumer#onWearableSendFileResult(int, String)}, is called on the main thread with
+     * the status reported by the receiver.
+     */
+    public void sendFileCompressed(String requestId, Channel channel, File file,
+            @Nullable WearFileTransfer.OnChannelTransferProgressListener progressListener,
+            @Nullable ResultCallback<Status> callback) {
+        Utils.assertNotNull(channel, "channel");
+        Utils.assertNotNull(file, "file");
+        mCompressedTransfer.send(channel, file, onMainThread(progressListener),
+                newTransferDoneListener(requestId, callback));
+    }
+
+    @Nullable
+    private static WearFileTransfer.OnChannelTransferProgressListener onMainThread(
+            @Nullable final WearFileTransfer.OnChannelTransferProgressListener listener) {
+        if (listener == null) {
+            return null;
+        }
+        return new WearFileTransfer.OnChannelTransferThroughputListener() {
+            @Override
+            public void onProgressUpdated(final long progress, final long total) {
+                WclExecutors.getMainThreadExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onProgressUpdated(progress, total);
+                    }
+                });
+            }
+
+            @Override
+            public void onProgressUpdated(final long progress, final long total,
+                    final long bytesPerSecond) {
+                if (!(listener instanceof WearFileTransfer.OnChannelTransferThroughputListener)) {
+                    onProgressUpdated(progress, total);
+                    return;
+                }
+                WclExecutors.getMainThreadExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ((WearFileTransfer.OnChannelTransferThroughputListener) listener)
+                                .onProgressUpdated(progress, total, bytesPerSecond);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Returns a listener that passes the result of a transfer to {@code callback}, or if it is
+     * {@code null} to the consumers, on the main thread.
+     */
+    private ResumableTransfer.OnTransferDoneListener newTransferDoneListener(
+            final String requestId, @Nullable final ResultCallback<Status> callback) {
+        return new ResumableTransfer.OnTransferDoneListener() {
+            @Override
+            public void onTransferDone(final int statusCode) {
+                WclExecutors.getMainThreadExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (callback != null) {
+                            callback.onResult(new Status(statusCode));
+                            return;
+                        }
+                        mConsumerDispatcher.dispatch(new ConsumerCall() {
+                            @Override
+                            public void invoke(WearConsumer consumer) {
+                                consumer.onWearableSendFileResult(statusCode, requestId);
+                            }
+                        });
+                    }
+                });
+            }
+        };
+    }
+
     /**
      * Initiates opening a channel to a nearby node. When done, it will call the {@code listener}
      * and passes the status code of the request and the channel that was opened. Note that if the
@@ -884,7 +1552,10 @@ public class WearManager {
      * <p>Caller should register a
      * {@link WearFileTransfer.OnWearableChannelOutputStreamListener}
      * listener to be notified of the status of the request and to obtain a reference to the
-     * {@link OutputStream} that is opened upon successful execution.
+     * {@link OutputStream} that is opened upon successful execution. Writes to that
+     * {@link OutputStream} block while the link is congested; see
+     * {@link com.google.devrel.wcl.connectivity.ManagedChannelOutputStream} for a stream that does
+     * not.
      *
      * @param node The node to open a channel for data transfer. Note that this node should be
      * nearby otherwise this method will return immediately without performing any additional tasks.
@@ -946,26 +1617,108 @@ public class WearManager {
         }
     }
 
+    /**
+     * Opens the {@link InputStream} of {@code channel}, waiting at most {@code timeoutInMillis}
+     * milliseconds. Returns {@code null} if that fails.
+     */
+    @Nullable
+    InputStream getChannelInputStreamSynchronous(Channel channel, long timeoutInMillis) {
+        Channel.GetInputStreamResult result = channel.getInputStream(mGoogleApiClient)
+                .await(timeoutInMillis, TimeUnit.MILLISECONDS);
+        if (!result.getStatus().isSuccess()) {
+            Log.e(TAG, "Failed to open InputStream from channel, status code: "
+                    + result.getStatus().getStatusCode());
+            return null;
+        }
+        return result.getInputStream();
+    }
+
+    /**
+     * Opens the {@link OutputStream} of {@code channel}, waiting at most {@code timeoutInMillis}
+     * milliseconds. Returns {@code null} if that fails.
+     */
+    @Nullable
+    OutputStream getChannelOutputStreamSynchronous(Channel channel, long timeoutInMillis) {
+        Channel.GetOutputStreamResult result = channel.getOutputStream(mGoogleApiClient)
+                .await(timeoutInMillis, TimeUnit.MILLISECONDS);
+        if (!result.getStatus().isSuccess()) {
+            Log.e(TAG, "Failed to open OutputStream from channel, status code: "
+                    + result.getStatus().getStatusCode());
+            return null;
+        }
+        return result.getOutputStream();
+    }
+
+    /**
+     * Opens the content of an {@link com.google.android.gms.wearable.Asset}, waiting at most
+     * {@code timeoutInMillis} milliseconds, in a blocking way, hence should not be called on the UI
+     * thread. Returns {@code null} if the asset is unknown. The caller should close the returned
+     * stream.
+     */
+    @Nullable
+    public InputStream getAssetInputStreamSynchronous(Asset asset, long timeoutInMillis) {
+        assertApiConnectivity();
+        Utils.assertNonUiThread();
+        Utils.assertNotNull(asset, "asset");
+        DataApi.GetFdForAssetResult result = Wearable.DataApi.getFdForAsset(mGoogleApiClient,
+                asset).await(timeoutInMillis, TimeUnit.MILLISECONDS);
+        if (!result.getStatus().isSuccess()) {
+            Log.e(TAG, "Failed to open an asset, status code: "
+                    + result.getStatus().getStatusCode());
+            return null;
+        }
+        return result.getInputStream();
+    }
+
     /**
      * Extracts {@link android.graphics.Bitmap} data from an
      * {@link com.google.android.gms.wearable.Asset}, in a blocking way, hence should not be called
-     * on the UI thread. This may return {@code null}.
+     * on the UI thread. This may return {@code null}. The image is decoded at its full size every
+     * time; {@link #loadBitmapFromAssetSynchronous(Asset, int, int)} decodes it at the size it is
+     * displayed at, and caches it.
      */
+    @Nullable
     public Bitmap loadBitmapFromAssetSynchronous(Asset asset) {
-        assertApiConnectivity();
-        Utils.assertNonUiThread();
         if (asset == null) {
             throw new IllegalArgumentException("Asset must be non-null");
         }
-
-        InputStream assetInputStream = Wearable.DataApi.getFdForAsset(
-                mGoogleApiClient, asset).await().getInputStream();
-
+        InputStream assetInputStream = getAssetInputStreamSynchronous(asset, ASSET_TIMEOUT_MS);
         if (assetInputStream == null) {
-            Log.w(TAG, "Requested an unknown Asset.");
             return null;
         }
-        return BitmapFactory.decodeStream(assetInputStream);
+        try {
+            return BitmapFactory.decodeStream(assetInputStream);
+        } finally {
+            try {
+                assetInputStream.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Extracts {@link android.graphics.Bitmap} data from an
+     * {@link com.google.android.gms.wearable.Asset}, downsampled so that it is not much larger
+     * than {@code reqWidth} x {@code reqHeight}, in a blocking way, hence should not be called on
+     * the UI thread. This may return {@code null}. The images are cached by a shared
+     * {@link AssetBitmapLoader}, so the returned bitmap should not be modified or recycled.
+     */
+    @Nullable
+    public Bitmap loadBitmapFromAssetSynchronous(Asset asset, int reqWidth, int reqHeight) {
+        try {
+            return getBitmapLoader().loadSynchronous(asset, reqWidth, reqHeight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private synchronized AssetBitmapLoader getBitmapLoader() {
+        if (mBitmapLoader == null) {
+            mBitmapLoader = new AssetBitmapLoader.Builder(mContext).build();
+        }
+        return mBitmapLoader;
     }
 
     /**
@@ -998,17 +1751,17 @@ public class WearManager {
      */
     private void handleLaunchMessageEvent(MessageEvent messageEvent) {
         DataMap dataMap = DataMap.fromByteArray(messageEvent.getData());
-        boolean relaunchIfRunning = dataMap.getBoolean(KEY_START_ACTIVITY_RELAUNCH, false);
+        final boolean relaunchIfRunning = dataMap.getBoolean(KEY_START_ACTIVITY_RELAUNCH, false);
         DataMap bundleData = dataMap.getDataMap(KEY_START_ACTIVITY_BUNDLE);
         String activityName = dataMap.getString(KEY_START_ACTIVITY_NAME);
-        Bundle bundle = null;
-        if (bundleData != null) {
-            bundle = bundleData.toBundle();
-        }
+        final Bundle bundle = bundleData != null ? bundleData.toBundle() : null;
         if (activityName == null) {
-            for (WearConsumer consumer : mWearConsumers) {
-                consumer.onWearableApplicationLaunchRequestReceived(bundle, relaunchIfRunning);
-            }
+            mConsumerDispatcher.dispatch(new ConsumerCall() {
+                @Override
+                public void invoke(WearConsumer consumer) {
+                    consumer.onWearableApplicationLaunchRequestReceived(bundle, relaunchIfRunning);
+                }
+            });
         } else {
             try {
                 if (!TextUtils.isEmpty(activityName)) {
@@ -1032,85 +1785,138 @@ public class WearManager {
     }
 
     /**
-     * Handles the special message when the response to an http request is received.
+     * Handles the special message when an http request is received. The request is executed by the
+     * {@link WearHttpProxy}, if one is installed, or else handed to the consumers.
      */
     private void handleHttpMessageEvent(MessageEvent messageEvent) {
-        String nodeId = messageEvent.getSourceNodeId();
+        final String nodeId = messageEvent.getSourceNodeId();
         DataMap dataMap = DataMap.fromByteArray(messageEvent.getData());
-        String requestId = dataMap.get(WearHttpHelper.KEY_REQUEST_ID);
-        String url = dataMap.get(WearHttpHelper.KEY_URL);
-        String method = dataMap.get(WearHttpHelper.KEY_METHOD_TYPE);
-        String charset = dataMap.get(WearHttpHelper.KEY_CHARSET);
-        if (TextUtils.isEmpty(method)) {
-            method = WearHttpHelper.METHOD_GET;
+        WearHttpProxy httpProxy = mHttpProxy;
+        if (httpProxy != null) {
+            httpProxy.execute(nodeId, dataMap);
+            return;
         }
-        String query = dataMap.get(WearHttpHelper.KEY_QUERY_PARAMS);
-        for (WearConsumer consumer : mWearConsumers) {
-            consumer.onWearableHttpRequestReceived(url, method, query, charset, nodeId,
-                    requestId);
+        List<DataMap> batch = dataMap.getDataMapArrayList(WearHttpHelper.KEY_BATCH);
+        if (batch != null) {
+            // the consumers handle, and respond to, each request of a batch separately
+            for (DataMap request : batch) {
+                dispatchHttpRequest(nodeId, request);
+            }
+        } else {
+            dispatchHttpRequest(nodeId, dataMap);
         }
     }
 
+    private void dispatchHttpRequest(final String nodeId, DataMap dataMap) {
+        final String requestId = dataMap.get(WearHttpHelper.KEY_REQUEST_ID);
+        final String url = dataMap.get(WearHttpHelper.KEY_URL);
+        String methodType = dataMap.get(WearHttpHelper.KEY_METHOD_TYPE);
+        final String method = TextUtils.isEmpty(methodType) ? WearHttpHelper.METHOD_GET
+                : methodType;
+        final String charset = dataMap.get(WearHttpHelper.KEY_CHARSET);
+        final String query = dataMap.get(WearHttpHelper.KEY_QUERY_PARAMS);
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearableHttpRequestReceived(url, method, query, charset, nodeId,
+                        requestId);
+            }
+        });
+    }
+
     /**
      * Clients can register to {@link WearConsumer#onWearableApiConnectionSuspended()}.
      */
     private void onConnectionSuspended(int i) {
-        for(WearConsumer consumer : mWearConsumers) {
-            consumer.onWearableApiConnectionSuspended();
-        }
+        // changes could be missed until the connection is back
+        mDataItemCache.clear();
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearableApiConnectionSuspended();
+            }
+        });
     }
 
     /**
      * Clients can register to {@link WearConsumer#onWearableApiConnectionFailed()}.
      */
     private void onConnectionFailed(ConnectionResult connectionResult) {
-        for(WearConsumer consumer : mWearConsumers) {
-            consumer.onWearableApiConnectionFailed();
-        }
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearableApiConnectionFailed();
+            }
+        });
     }
 
     /**
      * Clients can register to {@link WearConsumer#onWearableMessageReceived(MessageEvent)}.
      */
-    void onMessageReceived(MessageEvent messageEvent) {
-        Utils.LOGD(TAG, "Received a message with path: " + messageEvent.getPath());
+    void onMessageReceived(MessageEvent event) {
+        Utils.LOGD(TAG, "Received a message with path: " + event.getPath());
+        MessageEvent messageEvent = PayloadCodec.decode(event);
+        List<byte[]> batch = OutboundMessageQueue.unbatch(messageEvent.getData());
+        if (batch == null) {
+            deliverMessage(messageEvent);
+            return;
+        }
+        for (byte[] data : batch) {
+            deliverMessage(new ForwardingMessageEvent(messageEvent, data));
+        }
+    }
+
+    private void deliverMessage(final MessageEvent messageEvent) {
         if (!handleSpecialMessages(messageEvent)) {
-            for (WearConsumer consumer : mWearConsumers) {
-                consumer.onWearableMessageReceived(messageEvent);
-            }
+            mConsumerDispatcher.dispatchMessage(messageEvent.getPath(), new ConsumerCall() {
+                @Override
+                public void invoke(WearConsumer consumer) {
+                    consumer.onWearableMessageReceived(messageEvent);
+                }
+            });
         }
     }
 
     /**
      * Clients can register to {@link WearConsumer#onWearablePeerConnected(Node)}.
      */
-    void onPeerConnected(Node peer) {
+    void onPeerConnected(final Node peer) {
         Utils.LOGD(TAG, "onPeerConnected: " + peer);
-        for (WearConsumer consumer : mWearConsumers) {
-            consumer.onWearablePeerConnected(peer);
-        }
+        mOutbox.replay();
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearablePeerConnected(peer);
+            }
+        });
     }
 
     /**
      * Clients can register to {@link WearConsumer#onWearablePeerDisconnected(Node)}.
      */
-    void onPeerDisconnected(Node peer) {
+    void onPeerDisconnected(final Node peer) {
         Utils.LOGD(TAG, "onPeerDisconnected: " + peer);
-        for (WearConsumer consumer : mWearConsumers) {
-            consumer.onWearablePeerDisconnected(peer);
-        }
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearablePeerDisconnected(peer);
+            }
+        });
     }
 
     /**
      * Clients can register to {@link WearConsumer#onWearableConnectedNodes(List)}.
      */
-    void onConnectedNodes(List<Node> connectedNodes) {
+    void onConnectedNodes(final List<Node> connectedNodes) {
         Utils.LOGD(TAG, "onConnectedNodes: " + connectedNodes);
         mConnectedNodes.clear();
         mConnectedNodes.addAll(connectedNodes);
-        for (WearConsumer consumer : mWearConsumers) {
-            consumer.onWearableConnectedNodes(connectedNodes);
-        }
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearableConnectedNodes(connectedNodes);
+            }
+        });
     }
 
     /**
@@ -1118,30 +1924,39 @@ public class WearManager {
      */
     void onConnectedInitialNodesReceived() {
         Utils.LOGD(TAG, "onConnectedInitialNodesReceived");
-        for (WearConsumer consumer : mWearConsumers) {
-            consumer.onWearableInitialConnectedNodesReceived();
-        }
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearableInitialConnectedNodesReceived();
+            }
+        });
     }
 
     /**
      * Clients can register to {@link WearConsumer#onWearableCapabilityChanged(String, Set)}.
      */
     void onCapabilityChanged(CapabilityInfo capabilityInfo) {
-        String capability = capabilityInfo.getName();
-        Set<Node> nodes = capabilityInfo.getNodes();
+        final String capability = capabilityInfo.getName();
+        final Set<Node> nodes = capabilityInfo.getNodes();
         mCapabilityToNodesMapping.put(capability, nodes);
-        for (WearConsumer consumer : mWearConsumers) {
-            consumer.onWearableCapabilityChanged(capability, nodes);
-        }
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearableCapabilityChanged(capability, nodes);
+            }
+        });
     }
 
     /**
      * Clients can register to {@link WearConsumer#onWearableInitialConnectedCapabilitiesReceived().
      */
     void onConnectedInitialCapabilitiesReceived() {
-        for (WearConsumer consumer : mWearConsumers) {
-            consumer.onWearableInitialConnectedCapabilitiesReceived();
-        }
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearableInitialConnectedCapabilitiesReceived();
+            }
+        });
     }
 
     /**
@@ -1151,19 +1966,45 @@ public class WearManager {
     void onChannelOpened(final Channel channel) {
         String path = channel.getPath();
         Utils.LOGD(TAG, "onChannelOpened(): Path =" + path);
-        if (path.startsWith(Constants.PATH_FILE_TRANSFER_TYPE_FILE)) {
+        if (path.startsWith(Constants.PATH_FILE_TRANSFER_TYPE_RESUMABLE)) {
+            // we are receiving a file sent by WearFileTransfer, possibly the rest of it
+            Map<String, String> paramsMap = getFileTransferParams(path,
+                    Constants.PATH_FILE_TRANSFER_TYPE_RESUMABLE);
+            mResumableTransfer.receive(channel, paramsMap.get(WearFileTransfer.PARAM_REQUEST_ID),
+                    paramsMap.get(WearFileTransfer.PARAM_NAME),
+                    Long.valueOf(paramsMap.get(WearFileTransfer.PARAM_SIZE)));
+        } else if (path.startsWith(Constants.PATH_FILE_TRANSFER_TYPE_ARCHIVE)) {
+            // we are receiving the files of a directory sent by WearFileTransfer
+            Map<String, String> paramsMap = getFileTransferParams(path,
+                    Constants.PATH_FILE_TRANSFER_TYPE_ARCHIVE);
+            mArchiveTransfer.receive(channel, paramsMap.get(WearFileTransfer.PARAM_REQUEST_ID),
+                    paramsMap.get(WearFileTransfer.PARAM_NAME),
+                    Long.valueOf(paramsMap.get(WearFileTransfer.PARAM_SIZE)),
+                    isDeflated(paramsMap));
+        } else if (path.startsWith(Constants.PATH_FILE_TRANSFER_TYPE_FILE)) {
             // we are receiving a file sent by WearFileTransfer
-            final Map<String, String> paramsMap = getFileTransferParams(path);
+            final Map<String, String> paramsMap = getFileTransferParams(path,
+                    Constants.PATH_FILE_TRANSFER_TYPE_FILE);
             final String name = paramsMap.get(WearFileTransfer.PARAM_NAME);
             final String requestId = paramsMap.get(WearFileTransfer.PARAM_REQUEST_ID);
             final long size = Long.valueOf(paramsMap.get(WearFileTransfer.PARAM_SIZE));
+            if (isDeflated(paramsMap)) {
+                // the file is compressed, so it is streamed rather than received as is
+                mCompressedTransfer.receive(channel, requestId, name, size);
+                return;
+            }
             try {
-                final File outFile = prepareFile(name);
-                if (outFile == null || !outFile.exists()) {
-                    Log.e(TAG, "Failed to create the file: " + name);
+                final File outFile = prepareFile(channel.getNodeId(), requestId, name, size);
+                if (outFile == null) {
+                    closeChannel(channel);
                     return;
                 }
-                channel.receiveFile(mGoogleApiClient, Uri.fromFile(outFile), false)
+                final File tempFile = FileReceivePolicy.getTempFile(outFile,
+                        Uri.encode(channel.getNodeId() + "-" + requestId));
+                if (tempFile.exists() && !tempFile.delete()) {
+                    throw new IOException("Failed to delete " + tempFile);
+                }
+                channel.receiveFile(mGoogleApiClient, Uri.fromFile(tempFile), false)
                         .setResultCallback(
                                 new ResultCallback<Status>() {
                                     @Override
@@ -1175,48 +2016,17 @@ public class WearManager {
                                                     + ", and status: " + status.getStatus());
 
                                             // Notify consumers of the failure
-                                            for (WearConsumer consumer : mWearConsumers) {
-                                                consumer.onWearableFileReceivedResult(statusCode,
-                                                        requestId, outFile, name);
-                                            }
+                                            tempFile.delete();
+                                            notifyFileReceived(statusCode, requestId, outFile,
+                                                    name);
                                         } else {
-                                            // Add a listener to be notified when the transfer is over
-                                            channel.addListener(mGoogleApiClient, new ChannelApi.ChannelListener() {
-                                                @Override
-                                                public void onChannelOpened(Channel channel) {}
-
-                                                @Override
-                                                public void onChannelClosed(Channel channel, int closeReason,
-                                                                            int appSpecificErrorCode) {}
-
-                                                @Override
-                                                public void onInputClosed(Channel channel, int closeReason,
-                                                                          int appSpecificErrorCode) {
-                                                    // File transfer is finished
-                                                    int resultStatusCode;
-                                                    if (closeReason != CLOSE_REASON_NORMAL) {
-                                                        Log.e(TAG, "receiveFile(): Failed to receive file with "
-                                                                + "status closeReason = " + closeReason
-                                                                + ", and appSpecificErrorCode: " + appSpecificErrorCode);
-                                                        resultStatusCode = CommonStatusCodes.ERROR;
-                                                    } else if (size != outFile.length()) {
-                                                        Log.e(TAG, "receiveFile(): Size of the transferred "
-                                                                + "file doesn't match the original size");
-                                                        resultStatusCode = CommonStatusCodes.ERROR;
-                                                    } else {
-                                                        resultStatusCode = CommonStatusCodes.SUCCESS;
-                                                    }
-                                                    // Notify consumers
-                                                    for (WearConsumer consumer : mWearConsumers) {
-                                                        consumer.onWearableFileReceivedResult(resultStatusCode,
-                                                                requestId, outFile, name);
-                                                    }
-                                                }
-
-                                                @Override
-                                                public void onOutputClosed(Channel channel, int closeReason,
-                                                                           int appSpecificErrorCode) {}
-                                            });
+                                            // Add a listener to be notified when the transfer is
+                                            // over
+                                            FileReceiverChannelListener listener
+                                                    = new FileReceiverChannelListener(requestId,
+                                                            tempFile, outFile, name, size);
+                                            channel.addListener(mGoogleApiClient, listener);
+                                            listener.startProgressUpdates();
                                         }
                                     }
                                 });
@@ -1228,32 +2038,108 @@ public class WearManager {
             // we are receiving data by low level InputStream, sent by WearFileTransfer
             final Map<String, String> paramsMap = getStreamTransferParams(path);
             final String requestId = paramsMap.get(WearFileTransfer.PARAM_REQUEST_ID);
+            final boolean deflated = isDeflated(paramsMap);
             channel.getInputStream(mGoogleApiClient).setResultCallback(
                     new ResultCallback<Channel.GetInputStreamResult>() {
                         @Override
                         public void onResult(Channel.GetInputStreamResult getInputStreamResult) {
-                            int statusCode = getInputStreamResult.getStatus().getStatusCode();
+                            final int statusCode = getInputStreamResult.getStatus().getStatusCode();
                             if (!getInputStreamResult.getStatus().isSuccess()) {
                                 Log.e(TAG, "Failed to open InputStream from channel, status code: "
                                         + statusCode);
                             }
-                            for (WearConsumer consumer : mWearConsumers) {
-                                consumer.onWearableInputStreamForChannelOpened(statusCode,
-                                        requestId, channel, getInputStreamResult.getInputStream());
+                            InputStream rawInputStream = getInputStreamResult.getInputStream();
+                            final InputStream inputStream = deflated && rawInputStream != null
+                                    ? CompressedTransfer.newInflaterStream(rawInputStream)
+                                    : rawInputStream;
+                            mConsumerDispatcher.dispatch(new ConsumerCall() {
+                                @Override
+                                public void invoke(WearConsumer consumer) {
+                                    consumer.onWearableInputStreamForChannelOpened(statusCode,
+                                            requestId, channel, inputStream);
+                                }
+                            });
+                        }
+                    });
+        } else if (path.startsWith(Constants.PATH_HTTP_RESPONSE_STREAM)) {
+            // we are receiving the body of a large http response, sent by WearHttpProxy; only
+            // the consumers registered for this path (i.e. WearHttpHelper) are interested
+            final String requestId = path.substring(
+                    Constants.PATH_HTTP_RESPONSE_STREAM.length()).split("/")[0];
+            channel.getInputStream(mGoogleApiClient).setResultCallback(
+                    new ResultCallback<Channel.GetInputStreamResult>() {
+                        @Override
+                        public void onResult(Channel.GetInputStreamResult getInputStreamResult) {
+                            final int statusCode = getInputStreamResult.getStatus().getStatusCode();
+                            if (!getInputStreamResult.getStatus().isSuccess()) {
+                                Log.e(TAG, "Failed to open InputStream from channel, status code: "
+                                        + statusCode);
                             }
+                            final InputStream inputStream = getInputStreamResult.getInputStream();
+                            mConsumerDispatcher.dispatchScoped(channel.getPath(),
+                                    new ConsumerCall() {
+                                        @Override
+                                        public void invoke(WearConsumer consumer) {
+                                            consumer.onWearableInputStreamForChannelOpened(
+                                                    statusCode, requestId, channel, inputStream);
+                                        }
+                                    });
                         }
                     });
         } else {
-            for (WearConsumer consumer : mWearConsumers) {
-                consumer.onWearableChannelOpened(channel);
-            }
+            mConsumerDispatcher.dispatch(new ConsumerCall() {
+                @Override
+                public void invoke(WearConsumer consumer) {
+                    consumer.onWearableChannelOpened(channel);
+                }
+            });
         }
     }
 
-    private Map<String, String> getFileTransferParams(String path) {
+    /**
+     * Returns a listener that reports the progress of receiving the file of {@code requestId} to
+     * the consumers.
+     */
+    WearFileTransfer.OnChannelTransferProgressListener getFileReceiveProgressListener(
+            final String requestId) {
+        return new WearFileTransfer.OnChannelTransferThroughputListener() {
+            @Override
+            public void onProgressUpdated(long progress, long total) {
+                onProgressUpdated(progress, total, 0);
+            }
+
+            @Override
+            public void onProgressUpdated(final long progress, final long total,
+                    final long bytesPerSecond) {
+                mConsumerDispatcher.dispatch(new ConsumerCall() {
+                    @Override
+                    public void invoke(WearConsumer consumer) {
+                        consumer.onWearableFileReceiveProgress(requestId, progress, total,
+                                bytesPerSecond);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Notifies the consumers of the result of receiving a file.
+     */
+    void notifyFileReceived(final int statusCode, final String requestId,
+            final File savedFile, final String originalName) {
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearableFileReceivedResult(statusCode, requestId, savedFile,
+                        originalName);
+            }
+        });
+    }
+
+    private Map<String, String> getFileTransferParams(String path, String prefix) {
         Map<String, String> result = new HashMap<>();
-        if (path.startsWith(Constants.PATH_FILE_TRANSFER_TYPE_FILE)) {
-            String[] pieces = path.replace(Constants.PATH_FILE_TRANSFER_TYPE_FILE, "").split("\\/");
+        if (path.startsWith(prefix)) {
+            String[] pieces = path.substring(prefix.length()).split("\\/");
             try {
                 result.put(WearFileTransfer.PARAM_NAME, URLDecoder.decode(pieces[0], "utf-8"));
             } catch (UnsupportedEncodingException e) {
@@ -1261,19 +2147,30 @@ public class WearManager {
             }
             result.put(WearFileTransfer.PARAM_SIZE, pieces[1]);
             result.put(WearFileTransfer.PARAM_REQUEST_ID, pieces[2]);
+            if (pieces.length > 3) {
+                result.put(WearFileTransfer.PARAM_ENCODING, pieces[3]);
+            }
         } else {
-            throw new IllegalArgumentException(
-                    "Path doesn't start with " + Constants.PATH_FILE_TRANSFER_TYPE_FILE);
+            throw new IllegalArgumentException("Path doesn't start with " + prefix);
         }
 
         return result;
     }
 
+    private static boolean isDeflated(Map<String, String> params) {
+        return WearFileTransfer.ENCODING_DEFLATE.equals(
+                params.get(WearFileTransfer.PARAM_ENCODING));
+    }
+
     private Map<String, String> getStreamTransferParams(String path) {
         Map<String, String> result = new HashMap<>();
         if (path.startsWith(Constants.PATH_FILE_TRANSFER_TYPE_STREAM)) {
-            String[] pieces = path.replace(Constants.PATH_FILE_TRANSFER_TYPE_FILE, "").split("\\/");
+            String[] pieces = path.substring(Constants.PATH_FILE_TRANSFER_TYPE_STREAM.length())
+                    .split("\\/");
             result.put(WearFileTransfer.PARAM_REQUEST_ID, pieces[0]);
+            if (pieces.length > 1) {
+                result.put(WearFileTransfer.PARAM_ENCODING, pieces[1]);
+            }
         } else {
             throw new IllegalArgumentException(
                     "Path doesn't start with " + Constants.PATH_FILE_TRANSFER_TYPE_STREAM);
@@ -1282,52 +2179,79 @@ public class WearManager {
         return result;
     }
 
-    private File prepareFile(String name) throws IOException {
-        File file = new File(mContext.getFilesDir(), name);
-        if (!file.exists()) {
-            if (!file.createNewFile()) {
-                return null;
-            }
+    /**
+     * Returns the file that an incoming file should be saved to, as decided by the
+     * {@link FileReceivePolicy}, or {@code null} if the transfer is refused, in which case the
+     * consumers have been notified.
+     */
+    @Nullable
+    private File prepareFile(String nodeId, String requestId, String name, long size) {
+        FileReceivePolicy policy = mFileReceivePolicy;
+        File file = policy.getDestination(mContext, nodeId, requestId, name, size);
+        if (file == null) {
+            Log.e(TAG, "The file " + name + " was refused by the receive policy");
+            notifyFileReceived(FileReceivePolicy.STATUS_REJECTED, requestId, null, name);
+            return null;
+        }
+        if (!policy.hasSpaceFor(file, size)) {
+            Log.e(TAG, "Not enough space to receive " + name + " of " + size + " bytes");
+            notifyFileReceived(FileReceivePolicy.STATUS_INSUFFICIENT_SPACE, requestId, null, name);
+            return null;
         }
-
         return file;
     }
 
     /**
      * Clients can register to {@link WearConsumer#onWearableChannelClosed(Channel, int, int)}.
      */
-    void onChannelClosed(Channel channel, int closeReason,
-            int appSpecificErrorCode) {
-        for (WearConsumer consumer : mWearConsumers) {
-            consumer.onWearableChannelClosed(channel, closeReason, appSpecificErrorCode);
-        }
+    void onChannelClosed(final Channel channel, final int closeReason,
+            final int appSpecificErrorCode) {
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearableChannelClosed(channel, closeReason, appSpecificErrorCode);
+            }
+        });
     }
 
     /**
      * Clients can register to {@link WearConsumer#onWearableInputClosed(Channel, int, int)}.
      */
-    void onInputClosed(Channel channel, int closeReason, int appSpecificErrorCode) {
-        for (WearConsumer consumer : mWearConsumers) {
-            consumer.onWearableInputClosed(channel, closeReason, appSpecificErrorCode);
-        }
+    void onInputClosed(final Channel channel, final int closeReason,
+            final int appSpecificErrorCode) {
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearableInputClosed(channel, closeReason, appSpecificErrorCode);
+            }
+        });
     }
 
     /**
      * Clients can register to {@link WearConsumer#onWearableOutputClosed(Channel, int, int)}.
      */
-    void onOutputClosed(Channel channel, int closeReason, int appSpecificErrorCode) {
-        for (WearConsumer consumer : mWearConsumers) {
-            consumer.onWearableOutputClosed(channel, closeReason, appSpecificErrorCode);
-        }
+    void onOutputClosed(final Channel channel, final int closeReason,
+            final int appSpecificErrorCode) {
+        mConsumerDispatcher.dispatch(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearableOutputClosed(channel, closeReason, appSpecificErrorCode);
+            }
+        });
     }
 
     /**
      * Clients can register to {@link WearConsumer#onWearableDataChanged(DataEventBuffer)}.
      */
-    void onDataChanged(DataEventBuffer dataEvents) {
-        for (WearConsumer consumer : mWearConsumers) {
-            consumer.onWearableDataChanged(dataEvents);
-        }
+    void onDataChanged(final DataEventBuffer dataEvents) {
+        mDataItemCache.onDataChanged(dataEvents);
+        mDataMapSync.onDataChanged(dataEvents);
+        mConsumerDispatcher.dispatchInline(new ConsumerCall() {
+            @Override
+            public void invoke(WearConsumer consumer) {
+                consumer.onWearableDataChanged(dataEvents);
+            }
+        });
     }
 
     /**
@@ -1342,7 +2266,9 @@ public class WearManager {
                     .toArray(new String[mWatchedCapabilities.size()]);
             removeCapabilities(capabilities);
         }
-        mWearConsumers.clear();
+        mOutboundQueue.flushAll();
+        mDataItemCache.clear();
+        mConsumerDispatcher.clear();
     }
 
     /**
@@ -1431,6 +2357,98 @@ public class WearManager {
         }
     }
 
+    /**
+     * A listener that is added to the channel of an incoming file to be notified when the transfer
+     * is over.
+     */
+    private final class FileReceiverChannelListener implements ChannelApi.ChannelListener {
+
+        private final String mRequestId;
+        private final File mTempFile;
+        private final File mOutFile;
+        private final String mName;
+        private final long mSize;
+        private final TransferProgress mProgress;
+        private ScheduledFuture<?> mProgressUpdates;
+        private boolean mDone;
+
+        FileReceiverChannelListener(String requestId, File tempFile, File outFile, String name,
+                long size) {
+            mRequestId = requestId;
+            mTempFile = tempFile;
+            mOutFile = outFile;
+            mName = name;
+            mSize = size;
+            mProgress = new TransferProgress(getFileReceiveProgressListener(requestId), 0, size);
+        }
+
+        /**
+         * Starts reporting the progress of the transfer, which is the size of the temporary file
+         * that receives it against the size that the sender put in the path of the channel.
+         */
+        synchronized void startProgressUpdates() {
+            if (mDone) {
+                return;
+            }
+            mProgressUpdates = WclExecutors.getScheduler().scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    updateProgress();
+                }
+            }, TransferProgress.MIN_INTERVAL_MS, TransferProgress.MIN_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void stopProgressUpdates() {
+            mDone = true;
+            if (mProgressUpdates != null) {
+                mProgressUpdates.cancel(false);
+            }
+        }
+
+        private synchronized void updateProgress() {
+            mProgress.update(Math.min(mTempFile.length(), mSize));
+        }
+
+        @Override
+        public void onChannelOpened(Channel channel) {
+        }
+
+        @Override
+        public void onChannelClosed(Channel channel, int closeReason, int appSpecificErrorCode) {
+        }
+
+        @Override
+        public void onInputClosed(Channel channel, int closeReason, int appSpecificErrorCode) {
+            // File transfer is finished
+            stopProgressUpdates();
+            int resultStatusCode;
+            if (closeReason != CLOSE_REASON_NORMAL) {
+                Log.e(TAG, "receiveFile(): Failed to receive file with "
+                        + "status closeReason = " + closeReason
+                        + ", and appSpecificErrorCode: " + appSpecificErrorCode);
+                resultStatusCode = CommonStatusCodes.ERROR;
+            } else if (mSize != mTempFile.length()) {
+                Log.e(TAG, "receiveFile(): Size of the transferred "
+                        + "file doesn't match the original size");
+                resultStatusCode = CommonStatusCodes.ERROR;
+            } else {
+                updateProgress();
+                resultStatusCode = FileReceivePolicy.commit(mTempFile, mOutFile)
+                        ? CommonStatusCodes.SUCCESS : CommonStatusCodes.ERROR;
+            }
+            if (resultStatusCode != CommonStatusCodes.SUCCESS) {
+                mTempFile.delete();
+            }
+            // Notify consumers
+            notifyFileReceived(resultStatusCode, mRequestId, mOutFile, mName);
+        }
+
+        @Override
+        public void onOutputClosed(Channel channel, int closeReason, int appSpecificErrorCode) {
+        }
+    }
+
     private  class MyChannelListener implements ChannelApi.ChannelListener {
         @Override
         public void onChannelOpened(Channel channel) {
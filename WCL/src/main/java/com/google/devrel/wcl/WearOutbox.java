@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.MessageApi;
+import com.google.android.gms.wearable.PutDataRequest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A durable queue for the messages and data items that should reach their destination even if
+ * the Google API Client is disconnected, or the target node is out of reach, when they are sent.
+ * Entries are kept in an append-only file in the private storage of the application, so they
+ * survive a restart of the process, and are retried with an exponential backoff until they are
+ * delivered or their time-to-live runs out. The backoff is reset, and all the pending entries are
+ * retried, whenever the client connects or a peer connects.
+ * <p/>
+ * The file is a sequence of records: one to add an entry and one to remove it once it is
+ * delivered or expired. It is rewritten with only the pending entries when it is first loaded and
+ * whenever the removed entries outnumber the pending ones. All the work, including the file I/O,
+ * happens on a single background thread.
+ */
+class WearOutbox {
+
+    private static final String TAG = "WearOutbox";
+    private static final String FILE_NAME = "wcl-outbox";
+
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final byte TYPE_MESSAGE = 1;
+    private static final byte TYPE_DATA_ITEM = 2;
+
+    private static final long INITIAL_BACKOFF_MS = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final int MIN_REMOVED_TO_COMPACT = 64;
+
+    private final WearManager mWearManager;
+    private final Context mContext;
+    private final ExecutorService mExecutor = WclExecutors.newBoundedPool("wcl-outbox", 1);
+
+    // only accessed on mExecutor
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<>();
+    private final Set<Long> mInFlight = new HashSet<>();
+    private File mFile;
+    private DataOutputStream mOut;
+    private boolean mLoaded;
+    private long mNextId;
+    private int mRemovedCount;
+    private long mBackoffMs = INITIAL_BACKOFF_MS;
+    private ScheduledFuture<?> mRetryFuture;
+
+    WearOutbox(WearManager wearManager, Context context) {
+        mWearManager = wearManager;
+        mContext = context;
+    }
+
+    /**
+     * Queues a message and tries to send it right away.
+     */
+    void addMessage(String nodeId, String path, @Nullable byte[] bytes, long ttlMillis) {
+        add(new Entry(TYPE_MESSAGE, nodeId, path, bytes, false,
+                System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * Queues a data item and tries to put it right away.
+     */
+    void addDataItem(String path, @Nullable byte[] bytes, boolean isUrgent, long ttlMillis) {
+        add(new Entry(TYPE_DATA_ITEM, "", path, bytes, isUrgent,
+                System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * Resets the backoff and retries all the pending entries.
+     */
+    void replay() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                if (mRetryFuture != null) {
+                    mRetryFuture.cancel(false);
+                    mRetryFuture = null;
+                }
+                mBackoffMs = INITIAL_BACKOFF_MS;
+                sendAll();
+            }
+        });
+    }
+
+    private void add(final Entry entry) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                entry.mId = mNextId++;
+                mEntries.put(entry.mId, entry);
+                try {
+                    if (mOut == null) {
+                        throw new IOException("The outbox file is not open");
+                    }
+                    writeAdd(mOut, entry);
+                    mOut.flush();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to persist an entry, it will be lost on a restart", e);
+                }
+                send(entry);
+            }
+        });
+    }
+
+    private void sendAll() {
+        long now = System.currentTimeMillis();
+        for (Entry entry : new ArrayList<>(mEntries.values())) {
+            if (entry.mExpiresAt <= now) {
+                Log.e(TAG, "Dropped an expired entry for " + entry.mPath);
+                remove(entry);
+            } else {
+                send(entry);
+            }
+        }
+    }
+
+    private void send(final Entry entry) {
+        if (mInFlight.contains(entry.mId)) {
+            return;
+        }
+        if (!mWearManager.isConnected()) {
+            scheduleRetry();
+            return;
+        }
+        mInFlight.add(entry.mId);
+        try {
+            if (entry.mType == TYPE_MESSAGE) {
+                mWearManager.sendMessageNow(entry.mNodeId, entry.mPath, entry.mData,
+                        new ResultCallback<MessageApi.SendMessageResult>() {
+                            @Override
+                            public void onResult(MessageApi.SendMessageResult result) {
+                                onSendResult(entry, result.getStatus());
+                            }
+                        });
+            } else {
+                PutDataRequest request = PutDataRequest.create(entry.mPath);
+                request.setData(entry.mData);
+                if (entry.mIsUrgent) {
+                    request.setUrgent();
+                }
+                mWearManager.putDataItem(request, new ResultCallback<DataApi.DataItemResult>() {
+                    @Override
+                    public void onResult(DataApi.DataItemResult result) {
+                        onSendResult(entry, result.getStatus());
+                    }
+                });
+            }
+        } catch (IllegalStateException e) {
+            // the client got disconnected in the meantime
+            mInFlight.remove(entry.mId);
+            scheduleRetry();
+        }
+    }
+
+    private void onSendResult(final Entry entry, final Status status) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mInFlight.remove(entry.mId);
+                if (!mEntries.containsKey(entry.mId)) {
+                    return;
+                }
+                if (status.isSuccess()) {
+                    Utils.LOGD(TAG, "Delivered a queued entry for " + entry.mPath);
+                    mBackoffMs = INITIAL_BACKOFF_MS;
+                    remove(entry);
+                } else if (entry.mExpiresAt <= System.currentTimeMillis()) {
+                    Log.e(TAG, "Dropped an expired entry for " + entry.mPath + ", status code: "
+                            + status.getStatusCode());
+                    remove(entry);
+                } else {
+                    scheduleRetry();
+                }
+            }
+        });
+    }
+
+    private void scheduleRetry() {
+        if (mRetryFuture != null || mEntries.isEmpty()) {
+            return;
+        }
+        Utils.LOGD(TAG, "Retrying " + mEntries.size() + " queued entries in " + mBackoffMs + "ms");
+        mRetryFuture = WclExecutors.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRetryFuture = null;
+                        sendAll();
+                    }
+                });
+            }
+        }, mBackoffMs, TimeUnit.MILLISECONDS);
+        mBackoffMs = Math.min(mBackoffMs * 2, MAX_BACKOFF_MS);
+    }
+
+    private void remove(Entry entry) {
+        mEntries.remove(entry.mId);
+        mRemovedCount++;
+        if (mRemovedCount >= MIN_REMOVED_TO_COMPACT && mRemovedCount > mEntries.size()) {
+            compact();
+            return;
+        }
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.writeByte(RECORD_REMOVE);
+            mOut.writeLong(entry.mId);
+            mOut.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to persist the removal of an entry", e);
+        }
+    }
+
+    /**
+     * Reads the pending entries from the file, the first time this is called.
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        mFile = new File(mContext.getFilesDir(), FILE_NAME);
+        if (mFile.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+                while (true) {
+                    byte record = in.readByte();
+                    if (record == RECORD_ADD) {
+                        Entry entry = readAdd(in);
+                        mEntries.put(entry.mId, entry);
+                        mNextId = Math.max(mNextId, entry.mId + 1);
+                    } else if (record == RECORD_REMOVE) {
+                        mEntries.remove(in.readLong());
+                    } else {
+                        throw new IOException("Unknown record: " + record);
+                    }
+                }
+            } catch (EOFException e) {
+                // done; a record that was cut short by a crash is dropped
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read all the entries of the outbox", e);
+            } finally {
+                closeQuietly(in);
+            }
+            Utils.LOGD(TAG, "Loaded " + mEntries.size() + " pending entries");
+        }
+
+        // rewriting the file also drops any partial record at its end
+        compact();
+    }
+
+    /**
+     * Rewrites the file with the pending entries only, and reopens it for appending.
+     */
+    private void compact() {
+        closeQuietly(mOut);
+        mOut = null;
+        mRemovedCount = 0;
+        long now = System.currentTimeMillis();
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            Iterator<Entry> iterator = mEntries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.mExpiresAt <= now && !mInFlight.contains(entry.mId)) {
+                    iterator.remove();
+                } else {
+                    writeAdd(out, entry);
+                }
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(mFile)) {
+                throw new IOException("Failed to rename " + tempFile);
+            }
+            mOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mFile, true)));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write the outbox", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void writeAdd(DataOutputStream out, Entry entry) throws IOException {
+        out.writeByte(RECORD_ADD);
+        out.writeLong(entry.mId);
+        out.writeByte(entry.mType);
+        out.writeLong(entry.mExpiresAt);
+        out.writeBoolean(entry.mIsUrgent);
+        out.writeUTF(entry.mNodeId);
+        out.writeUTF(entry.mPath);
+        if (entry.mData == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(entry.mData.length);
+            out.write(entry.mData);
+        }
+    }
+
+    private static Entry readAdd(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        byte type = in.readByte();
+        long expiresAt = in.readLong();
+        boolean isUrgent = in.readBoolean();
+        String nodeId = in.readUTF();
+        String path = in.readUTF();
+        int length = in.readInt();
+        byte[] data = null;
+        if (length >= 0) {
+            data = new byte[length];
+            in.readFully(data);
+        }
+        Entry entry = new Entry(type, nodeId, path, data, isUrgent, expiresAt);
+        entry.mId = id;
+        return entry;
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * A message or a data item waiting to be sent.
+     */
+    private static final class Entry {
+
+        long mId;
+        final byte mType;
+        final String mNodeId;
+        final String mPath;
+        final byte[] mData;
+        final boolean mIsUrgent;
+        final long mExpiresAt;
+
+        Entry(byte type, String nodeId, String path, @Nullable byte[] data, boolean isUrgent,
+                long expiresAt) {
+            mType = type;
+            mNodeId = nodeId;
+            mPath = path;
+            mData = data;
+            mIsUrgent = isUrgent;
+            mExpiresAt = expiresAt;
+        }
+    }
+}
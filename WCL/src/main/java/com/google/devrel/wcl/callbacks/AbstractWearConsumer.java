@@ -22,6 +22,7 @@ import com.google.android.gms.wearable.Channel;
 import com.google.android.gms.wearable.DataApi;
 import com.google.android.gms.wearable.DataEventBuffer;
 import com.google.android.gms.wearable.DataItemBuffer;
+import com.google.android.gms.wearable.DataMap;
 import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.Node;
 import com.google.devrel.wcl.WearManager;
@@ -114,6 +115,12 @@ public abstract class AbstractWearConsumer implements WearConsumer {
         //no-op
     }
 
+    @Override
+    public void onWearableFileReceiveProgress(String requestId, long progress, long total,
+            long bytesPerSecond) {
+        //no-op
+    }
+
     @Override
     public void onWearableChannelClosed(Channel channel, int closeReason,
             int appSpecificErrorCode) {
@@ -186,4 +193,10 @@ public abstract class AbstractWearConsumer implements WearConsumer {
             OutputStream outputStream) {
         //no-op
     }
+
+    @Override
+    public void onWearableSyncedDataMapChanged(String path, DataMap dataMap,
+            Set<String> changedKeys) {
+        //no-op
+    }
 }
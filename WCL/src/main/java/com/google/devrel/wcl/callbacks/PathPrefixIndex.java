@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl.callbacks;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A character trie that maps path prefixes to values. Looking up all the values whose prefix
+ * matches a given path costs O(length of the path), independent of the number of registered
+ * prefixes. Lookups are lock-free and can run concurrently with each other; writers should be
+ * serialized by the caller.
+ */
+class PathPrefixIndex<V> {
+
+    private final Node<V> mRoot = new Node<>();
+
+    /**
+     * Associates {@code value} with the given {@code prefix}.
+     */
+    void add(String prefix, V value) {
+        Node<V> node = mRoot;
+        for (int i = 0; i < prefix.length(); i++) {
+            Character key = prefix.charAt(i);
+            Node<V> child = node.mChildren.get(key);
+            if (child == null) {
+                child = new Node<>();
+                node.mChildren.put(key, child);
+            }
+            node = child;
+        }
+        node.mValues.add(value);
+    }
+
+    /**
+     * Removes the association between {@code value} and {@code prefix}. Returns {@code true} if
+     * such an association existed.
+     */
+    boolean remove(String prefix, V value) {
+        Node<V> node = mRoot;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.mChildren.get(prefix.charAt(i));
+        }
+        return node != null && node.mValues.remove(value);
+    }
+
+    /**
+     * Removes all the entries.
+     */
+    void clear() {
+        mRoot.mChildren.clear();
+        mRoot.mValues.clear();
+    }
+
+    /**
+     * Adds all the values whose prefix is a prefix of {@code path} to {@code out}, shortest prefix
+     * first.
+     */
+    void collect(String path, Collection<V> out) {
+        Node<V> node = mRoot;
+        out.addAll(node.mValues);
+        for (int i = 0; i < path.length(); i++) {
+            node = node.mChildren.get(path.charAt(i));
+            if (node == null) {
+                return;
+            }
+            out.addAll(node.mValues);
+        }
+    }
+
+    private static final class Node<V> {
+        final ConcurrentHashMap<Character, Node<V>> mChildren = new ConcurrentHashMap<>(4);
+        final List<V> mValues = new CopyOnWriteArrayList<>();
+    }
+}
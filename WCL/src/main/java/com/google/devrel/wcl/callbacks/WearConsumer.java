@@ -24,6 +24,7 @@ import com.google.android.gms.wearable.Channel;
 import com.google.android.gms.wearable.DataApi;
 import com.google.android.gms.wearable.DataEventBuffer;
 import com.google.android.gms.wearable.DataItemBuffer;
+import com.google.android.gms.wearable.DataMap;
 import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.Node;
 import com.google.android.gms.wearable.PutDataRequest;
@@ -153,7 +154,9 @@ public interface WearConsumer extends WearFileTransfer.OnWearableChannelOutputSt
     void onWearableOutputClosed(Channel channel, int closeReason, int appSpecificErrorCode);
 
     /**
-     * Called when Data layer reports a change in the stored data.
+     * Called when Data layer reports a change in the stored data. Data items whose payload the
+     * app compressed itself should be read with
+     * {@link com.google.devrel.wcl.PayloadCodec#getDataMap(com.google.android.gms.wearable.DataItem)}.
      */
     void onWearableDataChanged(DataEventBuffer dataEvents);
 
@@ -260,12 +263,39 @@ public interface WearConsumer extends WearFileTransfer.OnWearableChannelOutputSt
      *
      * @param statusCode The status code corresponding to the attempt to transfer a file. Successful
      * operation will be identified by
-     * {@link com.google.android.gms.wearable.WearableStatusCodes#SUCCESS}
+     * {@link com.google.android.gms.wearable.WearableStatusCodes#SUCCESS}; a transfer that was
+     * refused by the {@link com.google.devrel.wcl.FileReceivePolicy} will be identified by
+     * {@link com.google.devrel.wcl.FileReceivePolicy#STATUS_REJECTED} or
+     * {@link com.google.devrel.wcl.FileReceivePolicy#STATUS_INSUFFICIENT_SPACE}
      * @param requestId The unique id for this operation.
-     * @param savedFile The {@link File} object pointing to the file that has been transferred.
+     * @param savedFile The {@link File} object pointing to the file that has been transferred, or
+     * {@code null} if the transfer was refused.
      * @param originalName The original name of the ile that was sent from the sender node.
      */
     void onWearableFileReceivedResult(int statusCode, String requestId, File savedFile,
             String originalName);
 
+    /**
+     * Called periodically while a file sent by {@link WearFileTransfer#startTransfer()} is being
+     * received, at most a few times a second, and once more when all of it has arrived.
+     *
+     * @param requestId The unique id for this operation.
+     * @param progress The number of bytes received so far, including those that were received by
+     * an earlier attempt of a resumed transfer
+     * @param total The size of the file
+     * @param bytesPerSecond The recent throughput of the transfer
+     */
+    void onWearableFileReceiveProgress(String requestId, long progress, long total,
+            long bytesPerSecond);
+
+    /**
+     * Called when another node has synced a {@link DataMap} through
+     * {@link WearManager#syncDataMap(String, DataMap, boolean)}.
+     *
+     * @param path The path that the {@link DataMap} was synced under
+     * @param dataMap The whole {@link DataMap}, as last synced
+     * @param changedKeys The keys that were changed or removed
+     */
+    void onWearableSyncedDataMapChanged(String path, DataMap dataMap, Set<String> changedKeys);
+
 }
@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl.callbacks;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.devrel.wcl.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers callbacks to the registered {@link WearConsumer}s. Each consumer is registered with an
+ * optional {@link Executor}:
+ * <ul>
+ *     <li>Consumers without an executor are called inline, on the thread that dispatches the
+ *     event; this is how the library has always behaved.</li>
+ *     <li>Consumers with an executor get their own queue. Callbacks are appended to that queue
+ *     and drained on the executor, in order and never concurrently, so a slow consumer only
+ *     delays itself and the dispatching thread returns right away.</li>
+ * </ul>
+ * For each queued consumer, a set of counters is kept to expose how far behind the consumer is;
+ * see {@link #getStats(WearConsumer)}.
+ *
+ * <p>A consumer can also be registered for a path prefix, in which case it only receives the
+ * messages whose path starts with that prefix. Such consumers are kept in a {@link PathPrefixIndex}
+ * so that routing a message costs O(length of the path) rather than O(number of consumers).
+ */
+public class WearConsumerDispatcher {
+
+    private static final String TAG = "WearConsumerDispatcher";
+
+    // max number of callbacks that are drained in one go before yielding the executor thread
+    private static final int MAX_DRAIN_BATCH = 32;
+
+    private final List<Registration> mRegistrations = new CopyOnWriteArrayList<>();
+    private final List<Registration> mUnscopedRegistrations = new CopyOnWriteArrayList<>();
+    private final PathPrefixIndex<Registration> mPathIndex = new PathPrefixIndex<>();
+
+    /**
+     * A single callback invocation on a {@link WearConsumer}.
+     */
+    public interface ConsumerCall {
+
+        /**
+         * Invokes the callback on the given {@code consumer}.
+         */
+        void invoke(WearConsumer consumer);
+    }
+
+    /**
+     * Registers the {@code consumer}. If {@code executor} is {@code null}, callbacks are delivered
+     * inline. If the consumer is already registered, this call is ignored and {@code false} is
+     * returned.
+     */
+    public boolean add(WearConsumer consumer, @Nullable Executor executor) {
+        return add(null, consumer, executor);
+    }
+
+    /**
+     * Registers the {@code consumer} for the messages whose path starts with {@code pathPrefix}.
+     * If {@code pathPrefix} is {@code null}, the consumer receives all messages. All other
+     * callbacks are delivered regardless of the prefix. If {@code executor} is {@code null},
+     * callbacks are delivered inline. A consumer can be registered only once; if it is already
+     * registered, this call is ignored and {@code false} is returned.
+     */
+    public synchronized boolean add(@Nullable String pathPrefix, WearConsumer consumer,
+            @Nullable Executor executor) {
+        Utils.assertNotNull(consumer, "consumer");
+        if (find(consumer) != null) {
+            return false;
+        }
+        Registration registration = new Registration(consumer, executor, pathPrefix);
+        mRegistrations.add(registration);
+        if (pathPrefix == null) {
+            mUnscopedRegistrations.add(registration);
+        } else {
+            mPathIndex.add(pathPrefix, registration);
+        }
+        return true;
+    }
+
+    /**
+     * Unregisters the {@code consumer}. Callbacks that are still queued for this consumer are
+     * dropped.
+     */
+    public synchronized boolean remove(WearConsumer consumer) {
+        Registration registration = find(consumer);
+        if (registration == null) {
+            return false;
+        }
+        registration.mActive = false;
+        if (registration.mPathPrefix == null) {
+            mUnscopedRegistrations.remove(registration);
+        } else {
+            mPathIndex.remove(registration.mPathPrefix, registration);
+        }
+        return mRegistrations.remove(registration);
+    }
+
+    /**
+     * Removes all the registered consumers.
+     */
+    public synchronized void clear() {
+        for (Registration registration : mRegistrations) {
+            registration.mActive = false;
+        }
+        mRegistrations.clear();
+        mUnscopedRegistrations.clear();
+        mPathIndex.clear();
+    }
+
+    /**
+     * Returns {@code true} if and only if no consumer is registered.
+     */
+    public boolean isEmpty() {
+        return mRegistrations.isEmpty();
+    }
+
+    /**
+     * Delivers {@code call} to all registered consumers, each according to its registration.
+     */
+    public void dispatch(ConsumerCall call) {
+        for (Registration registration : mRegistrations) {
+            registration.enqueue(call);
+        }
+    }
+
+    /**
+     * Delivers {@code call}, which carries a message with the given {@code path}, to the consumers
+     * that are registered for all messages and to those whose path prefix matches {@code path}.
+     */
+    public void dispatchMessage(String path, ConsumerCall call) {
+        for (Registration registration : mUnscopedRegistrations) {
+            registration.enqueue(call);
+        }
+        List<Registration> matches = new ArrayList<>(2);
+        mPathIndex.collect(path, matches);
+        for (Registration registration : matches) {
+            registration.enqueue(call);
+        }
+    }
+
+    /**
+     * Delivers {@code call} only to the consumers whose path prefix matches {@code path}. This is
+     * used for the events on paths that are private to the library, which are of no interest to
+     * consumers that have not asked for them explicitly.
+     */
+    public void dispatchScoped(String path, ConsumerCall call) {
+        List<Registration> matches = new ArrayList<>(2);
+        mPathIndex.collect(path, matches);
+        for (Registration registration : matches) {
+            registration.enqueue(call);
+        }
+    }
+
+    /**
+     * Delivers {@code call} to a single {@code consumer}, honoring its registration. If the
+     * consumer is not registered, nothing happens.
+     */
+    public void dispatchTo(WearConsumer consumer, ConsumerCall call) {
+        Registration registration = find(consumer);
+        if (registration != null) {
+            registration.enqueue(call);
+        }
+    }
+
+    /**
+     * Delivers {@code call} to all registered consumers on the calling thread, regardless of their
+     * executors. This is used for callbacks whose arguments (such as a
+     * {@link com.google.android.gms.wearable.DataEventBuffer}) are released as soon as the
+     * dispatching method returns and therefore cannot be handed to another thread.
+     */
+    public void dispatchInline(ConsumerCall call) {
+        for (Registration registration : mRegistrations) {
+            call.invoke(registration.mConsumer);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the queue counters for the given {@code consumer}, or {@code null} if
+     * the consumer is not registered.
+     */
+    @Nullable
+    public Stats getStats(WearConsumer consumer) {
+        Registration registration = find(consumer);
+        return registration == null ? null : registration.snapshot();
+    }
+
+    /**
+     * Returns the total number of callbacks that are queued, across all consumers, and have not
+     * been delivered yet.
+     */
+    public int getPendingCount() {
+        int pending = 0;
+        for (Registration registration : mRegistrations) {
+            pending += registration.mPendingCount.get();
+        }
+        return pending;
+    }
+
+    @Nullable
+    private Registration find(WearConsumer consumer) {
+        for (Registration registration : mRegistrations) {
+            if (registration.mConsumer.equals(consumer)) {
+                return registration;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A snapshot of the counters kept for a consumer that is registered with an executor. For
+     * consumers that are called inline, all the queue related values are zero.
+     */
+    public static final class Stats {
+
+        private final int mPendingCount;
+        private final int mMaxPendingCount;
+        private final long mDeliveredCount;
+        private final long mRejectedCount;
+        private final long mTotalWaitMillis;
+        private final long mMaxWaitMillis;
+
+        private Stats(int pendingCount, int maxPendingCount, long deliveredCount,
+                long rejectedCount, long totalWaitMillis, long maxWaitMillis) {
+            mPendingCount = pendingCount;
+            mMaxPendingCount = maxPendingCount;
+            mDeliveredCount = deliveredCount;
+            mRejectedCount = rejectedCount;
+            mTotalWaitMillis = totalWaitMillis;
+            mMaxWaitMillis = maxWaitMillis;
+        }
+
+        /**
+         * Number of callbacks that are queued and not yet delivered.
+         */
+        public int getPendingCount() {
+            return mPendingCount;
+        }
+
+        /**
+         * The highest number of queued callbacks observed since registration.
+         */
+        public int getMaxPendingCount() {
+            return mMaxPendingCount;
+        }
+
+        /**
+         * Number of callbacks that have been delivered.
+         */
+        public long getDeliveredCount() {
+            return mDeliveredCount;
+        }
+
+        /**
+         * Number of times the executor refused to run the queue.
+         */
+        public long getRejectedCount() {
+            return mRejectedCount;
+        }
+
+        /**
+         * Average time, in milliseconds, that a callback spent in the queue before delivery.
+         */
+        public long getAverageWaitMillis() {
+            return mDeliveredCount == 0 ? 0 : mTotalWaitMillis / mDeliveredCount;
+        }
+
+        /**
+         * Longest time, in milliseconds, that a callback spent in the queue before delivery.
+         */
+        public long getMaxWaitMillis() {
+            return mMaxWaitMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{pending=" + mPendingCount + ", maxPending=" + mMaxPendingCount
+                    + ", delivered=" + mDeliveredCount + ", rejected=" + mRejectedCount
+                    + ", avgWaitMs=" + getAverageWaitMillis() + ", maxWaitMs=" + mMaxWaitMillis
+                    + "}";
+        }
+    }
+
+    /**
+     * A queued callback along with the time it was queued.
+     */
+    private static final class PendingCall {
+        final ConsumerCall mCall;
+        final long mQueuedAt;
+
+        PendingCall(ConsumerCall call, long queuedAt) {
+            mCall = call;
+            mQueuedAt = queuedAt;
+        }
+    }
+
+    /**
+     * The registration of a single consumer. When an executor is present, this doubles as the
+     * {@link Runnable} that drains the consumer's queue.
+     */
+    private static final class Registration implements Runnable {
+
+        private final WearConsumer mConsumer;
+        private final Executor mExecutor;
+        private final String mPathPrefix;
+        private final Queue<PendingCall> mQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+        private final AtomicInteger mPendingCount = new AtomicInteger();
+        private final AtomicInteger mMaxPendingCount = new AtomicInteger();
+        private final AtomicLong mDeliveredCount = new AtomicLong();
+        private final AtomicLong mRejectedCount = new AtomicLong();
+        private final AtomicLong mTotalWaitMillis = new AtomicLong();
+        private final AtomicLong mMaxWaitMillis = new AtomicLong();
+        private volatile boolean mActive = true;
+
+        Registration(WearConsumer consumer, @Nullable Executor executor,
+                @Nullable String pathPrefix) {
+            mConsumer = consumer;
+            mExecutor = executor;
+            mPathPrefix = pathPrefix;
+        }
+
+        void enqueue(ConsumerCall call) {
+            if (mExecutor == null) {
+                call.invoke(mConsumer);
+                mDeliveredCount.incrementAndGet();
+                return;
+            }
+            mQueue.offer(new PendingCall(call, SystemClock.uptimeMillis()));
+            int pending = mPendingCount.incrementAndGet();
+            int max;
+            while (pending > (max = mMaxPendingCount.get())) {
+                if (mMaxPendingCount.compareAndSet(max, pending)) {
+                    break;
+                }
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (!mScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                mExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                mScheduled.set(false);
+                mRejectedCount.incrementAndGet();
+                Log.e(TAG, "Executor rejected the callbacks for consumer " + mConsumer, e);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                int budget = MAX_DRAIN_BATCH;
+                PendingCall pendingCall;
+                while (budget-- > 0 && (pendingCall = mQueue.poll()) != null) {
+                    mPendingCount.decrementAndGet();
+                    if (!mActive) {
+                        continue;
+                    }
+                    long wait = SystemClock.uptimeMillis() - pendingCall.mQueuedAt;
+                    mTotalWaitMillis.addAndGet(wait);
+                    long max;
+                    while (wait > (max = mMaxWaitMillis.get())) {
+                        if (mMaxWaitMillis.compareAndSet(max, wait)) {
+                            break;
+                        }
+                    }
+                    try {
+                        pendingCall.mCall.invoke(mConsumer);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Consumer " + mConsumer + " threw an exception", e);
+                    }
+                    mDeliveredCount.incrementAndGet();
+                }
+            } finally {
+                mScheduled.set(false);
+                // pick up anything that was queued while we were finishing up
+                if (!mQueue.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+
+        Stats snapshot() {
+            return new Stats(mPendingCount.get(), mMaxPendingCount.get(), mDeliveredCount.get(),
+                    mRejectedCount.get(), mTotalWaitMillis.get(), mMaxWaitMillis.get());
+        }
+    }
+}
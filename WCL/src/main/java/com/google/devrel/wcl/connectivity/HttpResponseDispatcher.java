@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl.connectivity;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.wearable.Channel;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.MessageEvent;
+import com.google.devrel.wcl.Constants;
+import com.google.devrel.wcl.Utils;
+import com.google.devrel.wcl.WclExecutors;
+import com.google.devrel.wcl.WearManager;
+import com.google.devrel.wcl.callbacks.AbstractWearConsumer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Routes the responses to the HTTP requests that were made through {@link WearHttpHelper}. A single
+ * consumer is registered for {@link Constants#PATH_HTTP_RESPONSE}; each response is decoded once
+ * and handed to the pending request with the same request id, looked up in a concurrent map.
+ * Identical GET requests that are in flight at the same time share a single request on the wire
+ * (single-flight); its response is handed to each of them.
+ * Responses that are too large for a message arrive on a channel under
+ * {@link Constants#PATH_HTTP_RESPONSE_STREAM} (see {@link WearHttpProxy}); their bodies are read on
+ * the shared I/O pool.
+ */
+final class HttpResponseDispatcher {
+
+    private static final String TAG = "HttpResponseDispatcher";
+    private static final HttpResponseDispatcher INSTANCE = new HttpResponseDispatcher();
+
+    // wire request id -> flight
+    private final ConcurrentHashMap<String, Flight> mFlights = new ConcurrentHashMap<>();
+
+    // guarded by "this"
+    private final Map<String, Flight> mFlightsByKey = new HashMap<>();
+    private final Map<WearHttpHelper, Flight> mMemberships = new HashMap<>();
+
+    private final AbstractWearConsumer mWearConsumer = new AbstractWearConsumer() {
+        @Override
+        public void onWearableMessageReceived(MessageEvent messageEvent) {
+            onResponseReceived(messageEvent);
+        }
+
+        @Override
+        public void onWearableInputStreamForChannelOpened(int statusCode, String requestId,
+                Channel channel, InputStream inputStream) {
+            onResponseStreamOpened(statusCode, requestId, channel, inputStream);
+        }
+    };
+
+    private HttpResponseDispatcher() {
+        // singleton
+    }
+
+    static HttpResponseDispatcher getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts routing the responses for the given {@code request}. If {@code flightKey} is not
+     * {@code null} and an identical request, with the same key, is already in flight,
+     * {@code request} joins it and receives its response; in that case this method returns
+     * {@code false} and the request should not be sent.
+     *
+     * @return {@code true} if the request should be sent to the target node
+     */
+    synchronized boolean register(WearHttpHelper request, @Nullable String flightKey) {
+        // registration is idempotent; this also covers the case where WearManager was cleaned up
+        WearManager.getInstance().addWearConsumer(Constants.PATH_HTTP_RESPONSE, mWearConsumer);
+        Flight flight = flightKey == null ? null : mFlightsByKey.get(flightKey);
+        boolean leader = flight == null;
+        if (leader) {
+            flight = new Flight(request.getRequestId(), request.getTargetNodeId(), flightKey);
+            mFlights.put(flight.mRequestId, flight);
+            if (flightKey != null) {
+                mFlightsByKey.put(flightKey, flight);
+            }
+        } else {
+            Utils.LOGD(TAG, "Request " + request.getRequestId() + " joined " + flight.mRequestId);
+        }
+        flight.mMembers.add(request);
+        mMemberships.put(request, flight);
+        return leader;
+    }
+
+    /**
+     * Stops routing the responses for the given {@code request}. The request that is on the wire
+     * stays in flight as long as other identical requests are waiting for it.
+     */
+    synchronized void unregister(WearHttpHelper request) {
+        Flight flight = mMemberships.remove(request);
+        if (flight != null && flight.mMembers.remove(request) && flight.mMembers.isEmpty()) {
+            removeFlight(flight);
+        }
+    }
+
+    /**
+     * Fails all the requests that are waiting for the request with id {@code requestId}, which
+     * could not be sent.
+     */
+    void onSendFailed(String requestId) {
+        Flight flight = takeFlight(requestId, null);
+        if (flight != null) {
+            for (WearHttpHelper request : flight.mMembers) {
+                request.onResponse(WearHttpHelper.ERROR_REQUEST_FAILED, null);
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the flight for {@code requestId}, provided that it was sent to
+     * {@code nodeId}, or to any node if {@code nodeId} is {@code null}.
+     */
+    @Nullable
+    private synchronized Flight takeFlight(String requestId, @Nullable String nodeId) {
+        Flight flight = mFlights.get(requestId);
+        if (flight == null) {
+            Utils.LOGD(TAG, "No pending request for the response with id " + requestId);
+            return null;
+        }
+        if (nodeId != null && !flight.mNodeId.equals(nodeId)) {
+            Utils.LOGD(TAG, "Ignoring response for " + requestId + " from an unexpected node");
+            return null;
+        }
+        removeFlight(flight);
+        for (WearHttpHelper request : flight.mMembers) {
+            mMemberships.remove(request);
+        }
+        return flight;
+    }
+
+    private void removeFlight(Flight flight) {
+        mFlights.remove(flight.mRequestId, flight);
+        if (flight.mKey != null) {
+            mFlightsByKey.remove(flight.mKey);
+        }
+    }
+
+    private void onResponseReceived(MessageEvent messageEvent) {
+        byte[] data = messageEvent.getData();
+        if (data == null || mFlights.isEmpty()) {
+            return;
+        }
+        DataMap dataMap = DataMap.fromByteArray(data);
+        List<DataMap> batch = dataMap.getDataMapArrayList(WearHttpHelper.KEY_BATCH);
+        if (batch != null) {
+            for (DataMap response : batch) {
+                onResponseReceived(messageEvent.getSourceNodeId(), response);
+            }
+        } else {
+            onResponseReceived(messageEvent.getSourceNodeId(), dataMap);
+        }
+    }
+
+    private void onResponseReceived(String nodeId, DataMap dataMap) {
+        String requestId = dataMap.getString(WearHttpHelper.KEY_REQUEST_ID);
+        if (requestId == null) {
+            return;
+        }
+        Flight flight = takeFlight(requestId, nodeId);
+        if (flight == null) {
+            return;
+        }
+
+        // the response headers, if any, are carried in the same DataMap; the body is either a
+        // string or, when sent by a WearHttpProxy, bytes
+        int statusCode = dataMap.getInt(WearHttpHelper.KEY_STATUS_CODE);
+        byte[] body = dataMap.getByteArray(WearHttpHelper.KEY_RESPONSE_BYTES);
+        String response = dataMap.getString(WearHttpHelper.KEY_RESPONSE_DATA);
+        for (WearHttpHelper request : flight.mMembers) {
+            if (body != null) {
+                request.onResponseBytes(statusCode, body, dataMap);
+            } else {
+                request.onResponse(statusCode, response, dataMap);
+            }
+        }
+    }
+
+    private void onResponseStreamOpened(int statusCode, String requestId, final Channel channel,
+            final InputStream inputStream) {
+        final Flight flight = requestId == null ? null : takeFlight(requestId, channel.getNodeId());
+        if (flight == null) {
+            closeQuietly(inputStream);
+            WearManager.getInstance().closeChannel(channel);
+            return;
+        }
+        if (inputStream == null) {
+            Log.e(TAG, "Failed to open the stream for " + requestId + ", status: " + statusCode);
+            for (WearHttpHelper request : flight.mMembers) {
+                request.onResponse(WearHttpHelper.ERROR_REQUEST_FAILED, null);
+            }
+            WearManager.getInstance().closeChannel(channel);
+            return;
+        }
+
+        // the response has started to arrive; a large body should not be cut short by the timeout
+        for (WearHttpHelper request : flight.mMembers) {
+            request.cancelTimer();
+        }
+        final int httpStatus = parseStatusCode(channel.getPath());
+        WclExecutors.getIoExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // the body is preceded by the response headers, as a length-prefixed DataMap
+                    DataInputStream in = new DataInputStream(inputStream);
+                    byte[] headerBytes = new byte[in.readInt()];
+                    in.readFully(headerBytes);
+                    DataMap headers = DataMap.fromByteArray(headerBytes);
+                    // reading a body that was cut short fails, rather than ending early
+                    InputStream body = new ResponseBodyFraming.FramedInputStream(inputStream);
+                    if (flight.mMembers.size() == 1) {
+                        // the body is handed over as it arrives
+                        flight.mMembers.get(0).onResponseBody(httpStatus, body, headers);
+                        return;
+                    }
+
+                    // several requests share this response, so the body has to be buffered
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[8 * 1024];
+                    int read;
+                    while ((read = body.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                    byte[] bytes = out.toByteArray();
+                    for (WearHttpHelper request : flight.mMembers) {
+                        request.onResponseBytes(httpStatus, bytes, headers);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read the response for " + flight.mRequestId, e);
+                    for (WearHttpHelper request : flight.mMembers) {
+                        request.onResponse(WearHttpHelper.ERROR_REQUEST_FAILED, null);
+                    }
+                } finally {
+                    closeQuietly(inputStream);
+                    WearManager.getInstance().closeChannel(channel);
+                }
+            }
+        });
+    }
+
+    /**
+     * Extracts the http status code from a path of the form
+     * {@code PATH_HTTP_RESPONSE_STREAM + requestId + "/" + statusCode}.
+     */
+    private static int parseStatusCode(String path) {
+        try {
+            return Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+        } catch (NumberFormatException e) {
+            return WearHttpHelper.ERROR_REQUEST_FAILED;
+        }
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * A request on the wire, along with all the identical requests that wait for its response.
+     */
+    private static final class Flight {
+
+        final String mRequestId;
+        final String mNodeId;
+        final String mKey;
+        final List<WearHttpHelper> mMembers = new CopyOnWriteArrayList<>();
+
+        Flight(String requestId, String nodeId, @Nullable String key) {
+            mRequestId = requestId;
+            mNodeId = nodeId;
+            mKey = key;
+        }
+    }
+}
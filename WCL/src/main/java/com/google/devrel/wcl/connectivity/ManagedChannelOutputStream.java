@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl.connectivity;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.devrel.wcl.Utils;
+import com.google.devrel.wcl.WclExecutors;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * An {@link OutputStream} that sits in front of the {@link OutputStream} of a channel, as obtained
+ * from {@link WearFileTransfer#requestOutputStream()} or
+ * {@link com.google.devrel.wcl.WearManager#getOutputStreamViaChannel}, and decouples the producer
+ * from the link. What is written goes into a ring buffer and is written to the channel by a
+ * background thread, so that a slow or congested link does not stall the thread that produces the
+ * data, for example the one that captures audio:
+ * <pre>
+ * OutputStream out = new ManagedChannelOutputStream.Builder(channelOutputStream)
+ *     .setOverflowPolicy(ManagedChannelOutputStream.OVERFLOW_DROP_OLDEST)
+ *     .setFrameSize(2)
+ *     .build();
+ * </pre>
+ * When the buffer is full, the overflow policy decides what happens to new bytes: with
+ * {@link #OVERFLOW_BLOCK}, the default, {@link #write(byte[], int, int)} waits for room like any
+ * other stream, while real-time data is better served by {@link #OVERFLOW_DROP_NEWEST} or
+ * {@link #OVERFLOW_DROP_OLDEST}, with which writes never block. {@link #offer(byte[], int, int)}
+ * never blocks, whatever the policy. The stream is congested while the buffer holds at least its
+ * high-water mark; producers can check {@link #isCongested()} to lower their rate, and the time
+ * spent congested is counted, as is the time spent blocked and the bytes that were dropped.
+ */
+public class ManagedChannelOutputStream extends OutputStream {
+
+    private static final String TAG = "ManagedChannelStream";
+
+    /**
+     * When the buffer is full, writes wait for room and offers are refused.
+     */
+    public static final int OVERFLOW_BLOCK = 0;
+
+    /**
+     * When the buffer is full, the new bytes are dropped.
+     */
+    public static final int OVERFLOW_DROP_NEWEST = 1;
+
+    /**
+     * When the buffer is full, the oldest bytes that have not been sent yet are dropped to make
+     * room for the new ones.
+     */
+    public static final int OVERFLOW_DROP_OLDEST = 2;
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_WRITE_SIZE = 8 * 1024;
+
+    private final OutputStream mOut;
+    private final byte[] mBuffer;
+    private final int mHighWaterMark;
+    private final int mOverflowPolicy;
+    private final int mFrameSize;
+    private final ExecutorService mExecutor = WclExecutors.newBoundedPool("wcl-channel-stream", 1);
+
+    // all the state below is guarded by "this"
+    private int mReadPosition;
+    private int mCount;
+    private boolean mFlushRequested;
+    private boolean mClosed;
+    private boolean mDrained;
+    private IOException mFailure;
+    private boolean mCongested;
+    private long mCongestedSince;
+    private long mStalledTimeMs;
+    private int mStallCount;
+    private long mBlockedTimeMs;
+    private long mBytesSent;
+    private long mBytesDropped;
+
+    private ManagedChannelOutputStream(Builder builder) {
+        mOut = builder.mOut;
+        mBuffer = new byte[builder.mBufferSize];
+        mHighWaterMark = builder.mHighWaterMark > 0 ? builder.mHighWaterMark
+                : builder.mBufferSize / 2;
+        mOverflowPolicy = builder.mOverflowPolicy;
+        mFrameSize = builder.mFrameSize;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Builder for {@link ManagedChannelOutputStream}.
+     */
+    public static final class Builder {
+        private final OutputStream mOut;
+        private int mBufferSize = DEFAULT_BUFFER_SIZE;
+        private int mHighWaterMark;
+        private int mOverflowPolicy = OVERFLOW_BLOCK;
+        private int mFrameSize = 1;
+
+        /**
+         * A Builder class to help with the construction of a {@link ManagedChannelOutputStream}.
+         *
+         * @param outputStream The {@link OutputStream} of the channel. It is closed when the
+         * {@link ManagedChannelOutputStream} is closed, or when writing to it fails.
+         */
+        public Builder(OutputStream outputStream) {
+            mOut = Utils.assertNotNull(outputStream, "outputStream");
+        }
+
+        /**
+         * Sets the size of the buffer, in bytes. Default is 64KB.
+         */
+        public Builder setBufferSize(int bufferSize) {
+            if (bufferSize < 1) {
+                throw new IllegalArgumentException("bufferSize should be at least 1");
+            }
+            mBufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * Sets the number of buffered bytes at and above which the stream is congested. Default
+         * is half of the buffer size.
+         */
+        public Builder setHighWaterMark(int highWaterMark) {
+            if (highWaterMark < 1) {
+                throw new IllegalArgumentException("highWaterMark should be at least 1");
+            }
+            mHighWaterMark = highWaterMark;
+            return this;
+        }
+
+        /**
+         * Sets what happens to new bytes when the buffer is full; one of {@link #OVERFLOW_BLOCK},
+         * {@link #OVERFLOW_DROP_NEWEST} or {@link #OVERFLOW_DROP_OLDEST}. Default is
+         * {@link #OVERFLOW_BLOCK}.
+         */
+        public Builder setOverflowPolicy(int overflowPolicy) {
+            if (overflowPolicy != OVERFLOW_BLOCK && overflowPolicy != OVERFLOW_DROP_NEWEST
+                    && overflowPolicy != OVERFLOW_DROP_OLDEST) {
+                throw new IllegalArgumentException("Unknown overflow policy: " + overflowPolicy);
+            }
+            mOverflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Sets the size, in bytes, of the units that the data is made of, such as the samples of
+         * an audio stream, so that {@link #OVERFLOW_DROP_OLDEST} only ever drops whole units and
+         * the receiver stays aligned. Writes and offers are expected to be made of whole units
+         * too. Default is 1.
+         */
+        public Builder setFrameSize(int frameSize) {
+            if (frameSize < 1) {
+                throw new IllegalArgumentException("frameSize should be at least 1");
+            }
+            mFrameSize = frameSize;
+            return this;
+        }
+
+        public ManagedChannelOutputStream build() {
+            if (mHighWaterMark > mBufferSize) {
+                throw new IllegalArgumentException(
+                        "highWaterMark cannot be larger than the buffer size");
+            }
+            if (mBufferSize % mFrameSize != 0) {
+                throw new IllegalArgumentException(
+                        "The buffer size should be a multiple of the frame size");
+            }
+            return new ManagedChannelOutputStream(this);
+        }
+    }
+
+    /**
+     * Adds {@code len} bytes of {@code b} to the buffer without blocking, applying the overflow
+     * policy if there is no room for them. The bytes are either all accepted or all refused.
+     *
+     * @return {@code true} if the bytes were accepted, {@code false} if they were refused, either
+     * because they were dropped or, with {@link #OVERFLOW_BLOCK}, because the caller should try
+     * again later
+     * @throws IOException if the stream is closed or writing to the channel failed
+     */
+    public boolean offer(byte[] b, int off, int len) throws IOException {
+        checkBounds(b, off, len);
+        synchronized (this) {
+            checkOpenLocked();
+            return enqueueLocked(b, off, len);
+        }
+    }
+
+    /**
+     * Writes {@code len} bytes of {@code b} to the buffer. With {@link #OVERFLOW_BLOCK}, this waits
+     * until there is room for all of them; otherwise, it never blocks, and the bytes that do not
+     * fit are dropped as the overflow policy says.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkBounds(b, off, len);
+        if (mOverflowPolicy != OVERFLOW_BLOCK) {
+            offer(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            int count;
+            synchronized (this) {
+                checkOpenLocked();
+                if (mCount == mBuffer.length) {
+                    long blockedAt = SystemClock.elapsedRealtime();
+                    try {
+                        while (mCount == mBuffer.length && mFailure == null && !mClosed) {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for room");
+                    } finally {
+                        mBlockedTimeMs += SystemClock.elapsedRealtime() - blockedAt;
+                    }
+                    checkOpenLocked();
+                }
+                count = Math.min(len, mBuffer.length - mCount);
+                enqueueLocked(b, off, count);
+            }
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    /**
+     * Asks for the channel to be flushed once what is buffered now has been written to it. This
+     * does not wait for that to happen.
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (this) {
+            checkOpenLocked();
+            mFlushRequested = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Closes this stream, then waits for what is buffered to be written to the channel, and closes
+     * the {@link OutputStream} of the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            notifyAll();
+            try {
+                while (!mDrained) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                // the buffered bytes are still written, in the background
+                Thread.currentThread().interrupt();
+            }
+        }
+        mExecutor.shutdown();
+        Utils.LOGD(TAG, "Closed; sent: " + getBytesSent() + ", dropped: " + getBytesDropped()
+                + ", stalled: " + getStalledTimeMillis() + "ms in " + getStallCount()
+                + " stalls, blocked: " + getBlockedTimeMillis() + "ms");
+    }
+
+    /**
+     * Returns the number of bytes that are waiting to be written to the channel.
+     */
+    public synchronized int getBufferedBytes() {
+        return mCount;
+    }
+
+    /**
+     * Returns {@code true} if the buffer holds at least its high-water mark, that is, if the
+     * channel is not keeping up with the producer.
+     */
+    public synchronized boolean isCongested() {
+        return mCongested;
+    }
+
+    /**
+     * Returns the number of bytes that have been written to the channel.
+     */
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * Returns the number of bytes that were dropped by the overflow policy.
+     */
+    public synchronized long getBytesDropped() {
+        return mBytesDropped;
+    }
+
+    /**
+     * Returns the total time, in milliseconds, that the stream has been congested.
+     */
+    public synchronized long getStalledTimeMillis() {
+        long stalledTimeMs = mStalledTimeMs;
+        if (mCongested) {
+            stalledTimeMs += SystemClock.elapsedRealtime() - mCongestedSince;
+        }
+        return stalledTimeMs;
+    }
+
+    /**
+     * Returns the number of times the stream has become congested.
+     */
+    public synchronized int getStallCount() {
+        return mStallCount;
+    }
+
+    /**
+     * Returns the total time, in milliseconds, that writers have spent waiting for room in the
+     * buffer; always 0 unless the overflow policy is {@link #OVERFLOW_BLOCK}.
+     */
+    public synchronized long getBlockedTimeMillis() {
+        return mBlockedTimeMs;
+    }
+
+    private boolean enqueueLocked(byte[] b, int off, int len) {
+        int capacity = mBuffer.length;
+        if (len > capacity - mCount) {
+            if (mOverflowPolicy != OVERFLOW_DROP_OLDEST) {
+                if (mOverflowPolicy == OVERFLOW_DROP_NEWEST) {
+                    mBytesDropped += len;
+                }
+                return false;
+            }
+            if (len > capacity) {
+                // only the newest bytes fit
+                int skipped = roundUpToFrame(len - capacity);
+                off += skipped;
+                len -= skipped;
+                mBytesDropped += skipped;
+            }
+            int dropped = Math.min(mCount, roundUpToFrame(len - (capacity - mCount)));
+            mReadPosition = (mReadPosition + dropped) % capacity;
+            mCount -= dropped;
+            mBytesDropped += dropped;
+        }
+        int writePosition = (mReadPosition + mCount) % capacity;
+        int first = Math.min(len, capacity - writePosition);
+        System.arraycopy(b, off, mBuffer, writePosition, first);
+        System.arraycopy(b, off + first, mBuffer, 0, len - first);
+        mCount += len;
+        updateCongestionLocked();
+        notifyAll();
+        return true;
+    }
+
+    private int roundUpToFrame(int count) {
+        return (count + mFrameSize - 1) / mFrameSize * mFrameSize;
+    }
+
+    private void updateCongestionLocked() {
+        boolean congested = mCount >= mHighWaterMark;
+        if (congested == mCongested) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (congested) {
+            mCongestedSince = now;
+            mStallCount++;
+        } else {
+            mStalledTimeMs += now - mCongestedSince;
+        }
+        mCongested = congested;
+    }
+
+    private void checkOpenLocked() throws IOException {
+        if (mFailure != null) {
+            throw new IOException("Failed to write to the channel", mFailure);
+        }
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private static void checkBounds(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    /**
+     * Moves the buffered bytes to the channel until the stream is closed and empty, or the channel
+     * fails. Runs on the thread of {@link #mExecutor}.
+     */
+    private void drain() {
+        byte[] chunk = new byte[Math.min(MAX_WRITE_SIZE, mBuffer.length)];
+        try {
+            while (true) {
+                int count;
+                boolean flush;
+                synchronized (this) {
+                    while (mCount == 0 && !mFlushRequested && !mClosed) {
+                        wait();
+                    }
+                    if (mCount == 0 && !mFlushRequested) {
+                        break;
+                    }
+                    count = Math.min(mCount, chunk.length);
+                    int first = Math.min(count, mBuffer.length - mReadPosition);
+                    System.arraycopy(mBuffer, mReadPosition, chunk, 0, first);
+                    System.arraycopy(mBuffer, 0, chunk, first, count - first);
+                    mReadPosition = (mReadPosition + count) % mBuffer.length;
+                    mCount -= count;
+                    flush = mFlushRequested && mCount == 0;
+                    if (flush) {
+                        mFlushRequested = false;
+                    }
+                    updateCongestionLocked();
+                    notifyAll();
+                }
+                mOut.write(chunk, 0, count);
+                if (flush) {
+                    mOut.flush();
+                }
+                synchronized (this) {
+                    mBytesSent += count;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write to the channel", e);
+            synchronized (this) {
+                mFailure = e;
+                mBytesDropped += mCount;
+                mCount = 0;
+                updateCongestionLocked();
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while draining the buffer", e);
+        } finally {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            synchronized (this) {
+                mDrained = true;
+                notifyAll();
+            }
+        }
+    }
+}
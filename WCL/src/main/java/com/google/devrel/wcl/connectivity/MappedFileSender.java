@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl.connectivity;
+
+import com.google.devrel.wcl.Utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes files, or ranges of them, to the {@link OutputStream} of a channel, as obtained from
+ * {@link WearFileTransfer#requestOutputStream()}, without going through a new heap buffer for
+ * every read. When the stream is backed by a file descriptor, as the streams of a channel are,
+ * the bytes are moved with {@link FileChannel#transferTo}, which lets the kernel copy them, or else
+ * through a direct buffer. Otherwise, for example when the stream is compressed, the file is
+ * memory-mapped and copied in large chunks through a single buffer. For example:
+ * <pre>
+ * MappedFileSender sender = new MappedFileSender.Builder().build();
+ * sender.send(file, 0, file.length(), outputStream);
+ * </pre>
+ * The buffers are allocated on first use and reused by the later calls, so a sender should be kept
+ * for all the files that a thread sends. A sender is not thread-safe, and its methods block, so
+ * they should not be called on the main thread.
+ */
+public class MappedFileSender {
+
+    private static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    // how much of a file is mapped at a time
+    private static final long MAP_WINDOW_SIZE = 8 * 1024 * 1024;
+
+    private final int mChunkSize;
+    private ByteBuffer mDirectBuffer;
+    private byte[] mHeapBuffer;
+
+    private MappedFileSender(Builder builder) {
+        mChunkSize = builder.mChunkSize;
+    }
+
+    /**
+     * Builder for {@link MappedFileSender}.
+     */
+    public static final class Builder {
+        private int mChunkSize = DEFAULT_CHUNK_SIZE;
+
+        /**
+         * Sets the size, in bytes, of the chunks that are written to the channel. Larger chunks
+         * mean fewer calls, and fewer wake-ups, for the same file. Default is 256KB.
+         */
+        public Builder setChunkSize(int chunkSize) {
+            if (chunkSize < 1) {
+                throw new IllegalArgumentException("chunkSize should be at least 1");
+            }
+            mChunkSize = chunkSize;
+            return this;
+        }
+
+        public MappedFileSender build() {
+            return new MappedFileSender(this);
+        }
+    }
+
+    /**
+     * Writes the whole of {@code file} to {@code outputStream}.
+     *
+     * @see #send(File, long, long, OutputStream)
+     */
+    public long send(File file, OutputStream outputStream) throws IOException {
+        return send(file, 0, -1, outputStream);
+    }
+
+    /**
+     * Writes {@code length} bytes of {@code file}, starting at {@code offset}, to
+     * {@code outputStream}, which is left open.
+     *
+     * @param length The number of bytes to send, or -1 to send up to the end of the file
+     * @return The number of bytes that were sent
+     * @throws EOFException if the range goes beyond the end of the file
+     */
+    public long send(File file, long offset, long length, OutputStream outputStream)
+            throws IOException {
+        Utils.assertNotNull(file, "file");
+        Utils.assertNotNull(outputStream, "outputStream");
+        if (offset < 0 || length < -1) {
+            throw new IllegalArgumentException("Invalid range: " + offset + ", " + length);
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel source = in.getChannel();
+            long size = source.size();
+            if (length == -1) {
+                length = Math.max(0, size - offset);
+            }
+            if (offset + length > size) {
+                throw new EOFException("The range " + offset + "+" + length + " is beyond the end"
+                        + " of " + file + ", of " + size + " bytes");
+            }
+            if (outputStream instanceof FileOutputStream) {
+                sendToChannel(source, offset, length,
+                        ((FileOutputStream) outputStream).getChannel());
+            } else {
+                sendToStream(source, offset, length, outputStream);
+            }
+            return length;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void sendToChannel(FileChannel source, long position, long length,
+            FileChannel target) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            long transferred = source.transferTo(position, Math.min(mChunkSize, end - position),
+                    target);
+            if (transferred <= 0) {
+                // the kernel cannot copy between these two; do it through user space
+                break;
+            }
+            position += transferred;
+        }
+        if (position == end) {
+            return;
+        }
+        if (mDirectBuffer == null) {
+            mDirectBuffer = ByteBuffer.allocateDirect(mChunkSize);
+        }
+        while (position < end) {
+            mDirectBuffer.clear();
+            mDirectBuffer.limit((int) Math.min(mChunkSize, end - position));
+            int read = source.read(mDirectBuffer, position);
+            if (read < 0) {
+                throw new EOFException("The file was truncated while it was being sent");
+            }
+            mDirectBuffer.flip();
+            while (mDirectBuffer.hasRemaining()) {
+                target.write(mDirectBuffer);
+            }
+            position += read;
+        }
+    }
+
+    private void sendToStream(FileChannel source, long position, long length,
+            OutputStream outputStream) throws IOException {
+        if (mHeapBuffer == null) {
+            mHeapBuffer = new byte[mChunkSize];
+        }
+        long end = position + length;
+        while (position < end) {
+            long windowSize = Math.min(MAP_WINDOW_SIZE, end - position);
+            MappedByteBuffer window = source.map(FileChannel.MapMode.READ_ONLY, position,
+                    windowSize);
+            while (window.hasRemaining()) {
+                int count = Math.min(mHeapBuffer.length, window.remaining());
+                window.get(mHeapBuffer, 0, count);
+                outputStream.write(mHeapBuffer, 0, count);
+            }
+            position += windowSize;
+        }
+    }
+}
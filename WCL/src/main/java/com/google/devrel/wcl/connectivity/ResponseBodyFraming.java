@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl.connectivity;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The framing of the response bodies that a {@link WearHttpProxy} streams over a channel. A channel
+ * that is closed early looks like the normal end of the stream, so the body is sent as frames of
+ * an {@code int} length followed by that many bytes, and ends with a frame of length
+ * {@link #END_OF_BODY}, or of length {@link #BODY_FAILED} if the proxy could not read all of it.
+ * A body that ends in any other way is truncated, and reading it fails.
+ */
+final class ResponseBodyFraming {
+
+    static final int END_OF_BODY = 0;
+    static final int BODY_FAILED = -1;
+
+    private ResponseBodyFraming() {
+        // no instances
+    }
+
+    /**
+     * Writes each chunk of the body as a frame. {@link #finish()} or {@link #fail()} ends the body;
+     * neither closes the underlying stream.
+     */
+    static final class FramedOutputStream extends FilterOutputStream {
+
+        private final DataOutputStream mOut;
+
+        FramedOutputStream(OutputStream out) {
+            super(out);
+            mOut = new DataOutputStream(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            mOut.writeInt(len);
+            mOut.write(b, off, len);
+        }
+
+        /**
+         * Marks the end of a complete body.
+         */
+        void finish() throws IOException {
+            mOut.writeInt(END_OF_BODY);
+            mOut.flush();
+        }
+
+        /**
+         * Marks the body as cut short, if the underlying stream can still be written to.
+         */
+        void fail() {
+            try {
+                mOut.writeInt(BODY_FAILED);
+                mOut.flush();
+            } catch (IOException e) {
+                // the receiver sees the stream end without a trailer, which also fails
+            }
+        }
+    }
+
+    /**
+     * Reads the bytes of the frames, and fails unless the body ends with {@link #END_OF_BODY}.
+     */
+    static final class FramedInputStream extends InputStream {
+
+        private final DataInputStream mIn;
+        private int mRemaining;
+        private boolean mEnded;
+
+        FramedInputStream(InputStream in) {
+            mIn = new DataInputStream(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (mRemaining == 0) {
+                if (mEnded) {
+                    return -1;
+                }
+                // an EOFException here means the channel was closed before the trailer
+                int length = mIn.readInt();
+                if (length == END_OF_BODY) {
+                    mEnded = true;
+                } else if (length < 0) {
+                    throw new IOException("The proxy failed to read the whole body");
+                } else {
+                    mRemaining = length;
+                }
+            }
+            int read = mIn.read(b, off, Math.min(len, mRemaining));
+            if (read == -1) {
+                throw new EOFException("The body was cut short");
+            }
+            mRemaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(mRemaining, mIn.available());
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.google.devrel.wcl.connectivity;
 
 import android.net.Uri;
+import android.os.Build;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
@@ -27,6 +28,7 @@ import com.google.android.gms.wearable.Channel;
 import com.google.android.gms.wearable.Node;
 import com.google.android.gms.wearable.WearableStatusCodes;
 import com.google.devrel.wcl.Constants;
+import com.google.devrel.wcl.DirectorySnapshot;
 import com.google.devrel.wcl.Utils;
 import com.google.devrel.wcl.WearManager;
 import com.google.devrel.wcl.callbacks.WearConsumer;
@@ -36,6 +38,7 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.UUID;
+import java.util.zip.DeflaterOutputStream;
 
 /**
  * A helper class to facilitate the transfer of a file or bytes across the wearable network. For
@@ -99,31 +102,45 @@ public class WearFileTransfer {
     public static final String PARAM_NAME = "name";
     public static final String PARAM_SIZE = "size";
     public static final String PARAM_REQUEST_ID = "request-id";
+    public static final String PARAM_ENCODING = "encoding";
+    public static final String ENCODING_DEFLATE = "deflate";
     private static final String PATH_SEPARATOR = "/";
     private final File mFile;
+    private final File mDirectory;
     private final String mTargetName;
     private final Node mNode;
     private final String mRequestId;
     private final OnFileTransferRequestListener mFileTransferResultListener;
     private final OnWearableChannelOutputStreamListener mOnChannelOutputStreamListener;
+    private final boolean mResumable;
+    private final OnChannelTransferProgressListener mProgressListener;
+    private final boolean mCompressed;
 
     private WearFileTransfer(Builder builder) {
         mFile = builder.mFile;
+        mDirectory = builder.mDirectory;
         mTargetName = builder.mTargetName;
         mNode = builder.mNode;
         mRequestId = builder.mRequestId;
         mFileTransferResultListener = builder.mFileTransferResultListener;
         mOnChannelOutputStreamListener = builder.mOnChannelOutputStreamListener;
+        mResumable = builder.mResumable;
+        mProgressListener = builder.mProgressListener;
+        mCompressed = builder.mCompressed;
     }
 
     /** Builder for {@link WearFileTransfer}. */
     public static final class Builder {
         private File mFile;
+        private File mDirectory;
         private String mTargetName;
         private Node mNode;
         private String mRequestId;
         private OnFileTransferRequestListener mFileTransferResultListener;
         private OnWearableChannelOutputStreamListener mOnChannelOutputStreamListener;
+        private boolean mResumable;
+        private OnChannelTransferProgressListener mProgressListener;
+        private boolean mCompressed;
 
         /**
          * A Builder class to help with the construction of a {@link WearFileTransfer} object.
@@ -146,6 +163,23 @@ public class WearFileTransfer {
             return this;
         }
 
+        /**
+         * Sets a directory whose files, at any depth, should be transferred instead of a single
+         * file. The files are sent together over a single channel, which is much faster than one
+         * transfer per file when there are many small ones, and the receiver unpacks them, keeping
+         * their layout, into a directory in the private data storage of the app. That directory
+         * replaces any earlier one of the same name, but only once all the files have been
+         * received and verified. Empty directories are not transferred.
+         */
+        public Builder setDirectory(File directory) {
+            mDirectory = Utils.assertNotNull(directory, "directory");
+            if (!directory.isDirectory()) {
+                throw new IllegalArgumentException(
+                        "Not a directory: " + directory.getAbsolutePath());
+            }
+            return this;
+        }
+
         /**
          * Sets the name of the transferred file at the destination. This is optional and if not
          * set, the name of the original file will be used.
@@ -189,6 +223,46 @@ public class WearFileTransfer {
             return this;
         }
 
+        /**
+         * Makes {@link #startTransfer()} resumable: the file is sent in chunks that each carry a
+         * checksum, and the receiver keeps the chunks that arrived intact. If a transfer fails, a
+         * new {@link WearFileTransfer} for the same file and with the same request id (see
+         * {@link #setRequestId(String)}) only sends what the receiver is missing. Both nodes need
+         * to use a version of this library that supports resumable transfers. Default is
+         * {@code false}.
+         */
+        public Builder setResumable(boolean resumable) {
+            mResumable = resumable;
+            return this;
+        }
+
+        /**
+         * Sets an optional {@link OnChannelTransferProgressListener} that is called on the main
+         * thread, at most a few times a second, with the progress of {@link #startTransfer()}, and
+         * with its throughput if it is an {@link OnChannelTransferThroughputListener}. The file
+         * is then sent as a stream, the same way as a resumable transfer (see
+         * {@link #setResumable(boolean)}), since the progress of a plain transfer cannot be
+         * observed.
+         */
+        public Builder setOnChannelTransferProgressListener(
+                OnChannelTransferProgressListener progressListener) {
+            mProgressListener = Utils.assertNotNull(progressListener, "progressListener");
+            return this;
+        }
+
+        /**
+         * Compresses the file, the files of the directory or the stream on the fly, and
+         * decompresses them as they arrive, which shortens the transfer of text, such as logs and
+         * JSON, several times. Media that is already compressed, such as photos and audio, gains
+         * nothing from this. Both nodes need to use a version of this library that supports
+         * compressed transfers, and a compressed transfer cannot be resumable. Default is
+         * {@code false}.
+         */
+        public Builder setCompressed(boolean compressed) {
+            mCompressed = compressed;
+            return this;
+        }
+
         /**
          * Builds the {@link WearFileTransfer} object.
          */
@@ -196,9 +270,18 @@ public class WearFileTransfer {
             if (TextUtils.isEmpty(mRequestId)) {
                 mRequestId = UUID.randomUUID().toString();
             }
+            if (mFile != null && mDirectory != null) {
+                throw new IllegalArgumentException("Either a file or a directory can be set");
+            }
+            if (mCompressed && mResumable) {
+                throw new IllegalArgumentException("A resumable transfer cannot be compressed");
+            }
             if (TextUtils.isEmpty(mTargetName) && mFile != null) {
                 mTargetName = mFile.getName();
             }
+            if (TextUtils.isEmpty(mTargetName) && mDirectory != null) {
+                mTargetName = mDirectory.getName();
+            }
             return new WearFileTransfer(this);
         }
 
@@ -211,11 +294,30 @@ public class WearFileTransfer {
      * to be notified when the transfer is completed or when it fails.
      * Using {@link WearConsumer#onWearableSendFileResult(int, String)}, the sender node can also
      * learn about the status of the file transfer request.
+     *
+     * @see Builder#setResumable(boolean)
+     * @see Builder#setDirectory(File)
+     * @see Builder#setCompressed(boolean)
      */
     public void startTransfer() {
         assertFileTransferParams();
-        final Uri uri = Uri.fromFile(mFile);
-        String path = buildPath(mTargetName, mRequestId, mFile.length());
+        // the progress of a compressed transfer is known, since it is streamed
+        final boolean resumable = mResumable || (mProgressListener != null && !mCompressed);
+        String path;
+        // the files of a directory may change while it is sent, so they are listed only once
+        final DirectorySnapshot snapshot = mDirectory != null
+                ? DirectorySnapshot.of(mDirectory) : null;
+        if (snapshot != null) {
+            path = buildPath(Constants.PATH_FILE_TRANSFER_TYPE_ARCHIVE, mTargetName, mRequestId,
+                    snapshot.getTotalSize());
+        } else {
+            path = buildPath(resumable ? Constants.PATH_FILE_TRANSFER_TYPE_RESUMABLE
+                    : Constants.PATH_FILE_TRANSFER_TYPE_FILE, mTargetName, mRequestId,
+                    mFile.length());
+        }
+        if (mCompressed) {
+            path += PATH_SEPARATOR + ENCODING_DEFLATE;
+        }
         final WearManager wearManager = WearManager.getInstance();
         wearManager.openChannel(mNode, path, new OnChannelReadyListener() {
             @Override
@@ -228,7 +330,7 @@ public class WearFileTransfer {
                     return;
                 }
 
-                wearManager.sendFile(mRequestId, channel, uri, 0, -1, new ResultCallback<Status>() {
+                ResultCallback<Status> callback = new ResultCallback<Status>() {
                     @Override
                     public void onResult(Status status) {
                         if (status.getStatusCode() != WearableStatusCodes.SUCCESS) {
@@ -240,7 +342,20 @@ public class WearFileTransfer {
                                     .onFileTransferStatusResult(status.getStatusCode());
                         }
                     }
-                });
+                };
+                if (snapshot != null) {
+                    wearManager.sendDirectory(mRequestId, channel, snapshot, mCompressed,
+                            mProgressListener, callback);
+                } else if (mCompressed) {
+                    wearManager.sendFileCompressed(mRequestId, channel, mFile, mProgressListener,
+                            callback);
+                } else if (resumable) {
+                    wearManager.sendFileResumable(mRequestId, channel, mFile, mProgressListener,
+                            callback);
+                } else {
+                    wearManager.sendFile(mRequestId, channel, Uri.fromFile(mFile), 0, -1,
+                            callback);
+                }
             }
         });
     }
@@ -253,22 +368,51 @@ public class WearFileTransfer {
      * {@link java.io.InputStream} for writing data to. On the receiver node, the client has to
      * register to {@link WearConsumer#onOutputStreamForChannelReady(int, Channel, OutputStream)}
      * to be notified when an {@link java.io.InputStream} is available to read the bytes from.
+     * <p/>
+     * If the transfer is compressed, the {@link OutputStream} compresses what is written to it and
+     * the {@link java.io.InputStream} on the receiver decompresses it. On API 19 and higher,
+     * {@link OutputStream#flush()} sends all that was written so far; before that, some of it may
+     * be held back until the stream is closed.
+     * <p/>
+     * Writing to the {@link OutputStream} blocks when the link is congested. Real-time producers
+     * should wrap it in a {@link ManagedChannelOutputStream}, which buffers and, if need be, drops
+     * data instead. Files, or ranges of them, are best written to it with a
+     * {@link MappedFileSender}, which avoids copying them through the heap.
      */
     public void requestOutputStream() {
         assertStreamParams();
         String path = Constants.PATH_FILE_TRANSFER_TYPE_STREAM + mRequestId;
         final WearManager wearManager = WearManager.getInstance();
-        wearManager.getOutputStreamViaChannel(mNode, path, mOnChannelOutputStreamListener);
+        if (!mCompressed) {
+            wearManager.getOutputStreamViaChannel(mNode, path, mOnChannelOutputStreamListener);
+            return;
+        }
+        wearManager.getOutputStreamViaChannel(mNode, path + PATH_SEPARATOR + ENCODING_DEFLATE,
+                new OnWearableChannelOutputStreamListener() {
+                    @Override
+                    public void onOutputStreamForChannelReady(int statusCode, Channel channel,
+                            OutputStream outputStream) {
+                        mOnChannelOutputStreamListener.onOutputStreamForChannelReady(statusCode,
+                                channel, outputStream != null ? deflate(outputStream) : null);
+                    }
+                });
     }
 
-    private String buildPath(String name, String requestId, long size) {
+    private static OutputStream deflate(OutputStream outputStream) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return new DeflaterOutputStream(outputStream, true);
+        }
+        return new DeflaterOutputStream(outputStream);
+    }
+
+    private String buildPath(String prefix, String name, String requestId, long size) {
         String encodedName = null;
         try {
             encodedName = URLEncoder.encode(name, "utf-8");
         } catch (UnsupportedEncodingException e) {
             Log.e(TAG, "buildPath(): Failed to encode name " + name, e);
         }
-        return Constants.PATH_FILE_TRANSFER_TYPE_FILE + encodedName + PATH_SEPARATOR + size
+        return prefix + encodedName + PATH_SEPARATOR + size
                 + PATH_SEPARATOR + requestId;
     }
 
@@ -279,7 +423,7 @@ public class WearFileTransfer {
     }
 
     private void assertFileTransferParams() {
-        if (mFile == null) {
+        if (mFile == null && mDirectory == null) {
             throw new IllegalArgumentException("File to transfer is missing");
         }
     }
@@ -322,15 +466,31 @@ public class WearFileTransfer {
     }
 
     /**
-     * A helper interface that clients can use to report the progress of a transfer.
+     * An interface to be notified of the progress of a transfer; see
+     * {@link Builder#setOnChannelTransferProgressListener(OnChannelTransferProgressListener)}.
      */
     public interface OnChannelTransferProgressListener {
 
         /**
-         * Show the progress of data transfer. {@code progress} indicates the progress and
-         * {@code max} shows the total (max) value.
+         * Show the progress of data transfer. {@code progress} indicates the number of bytes that
+         * have been transferred and {@code total} shows the total (max) value.
          */
         void onProgressUpdated(long progress, long total);
     }
 
+    /**
+     * An {@link OnChannelTransferProgressListener} that is also told the throughput of the
+     * transfer. Its {@link #onProgressUpdated(long, long, long)} is called in place of
+     * {@link #onProgressUpdated(long, long)}.
+     */
+    public interface OnChannelTransferThroughputListener
+            extends OnChannelTransferProgressListener {
+
+        /**
+         * Show the progress of data transfer, as {@link #onProgressUpdated(long, long)} does, and
+         * {@code bytesPerSecond} the recent throughput of the transfer.
+         */
+        void onProgressUpdated(long progress, long total, long bytesPerSecond);
+    }
+
 }
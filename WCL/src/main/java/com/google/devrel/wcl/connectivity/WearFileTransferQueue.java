@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl.connectivity;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.WearableStatusCodes;
+import com.google.devrel.wcl.FileReceivePolicy;
+import com.google.devrel.wcl.Utils;
+import com.google.devrel.wcl.WclExecutors;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a number of files to a node, a few at a time. Files are started in order of priority,
+ * then in the order they were added, on at most {@link Builder#setMaxConcurrentTransfers(int)}
+ * channels at once, so that a large batch neither waits on one file at a time nor floods the
+ * link. Each file is sent as a resumable {@link WearFileTransfer}; one that fails is retried on its
+ * own, after a delay, and continues from where it stopped. For example:
+ * <pre>
+ * WearFileTransferQueue queue = new WearFileTransferQueue.Builder(targetNode)
+ *     .setMaxConcurrentTransfers(2)
+ *     .setOnQueueListener(myQueueListener)
+ *     .build();
+ * for (File clip : clips) {
+ *     queue.add(clip);
+ * }
+ * queue.add(cover, "cover.jpg", WearFileTransferQueue.PRIORITY_HIGH);
+ * </pre>
+ * The listener is called on the main thread, with the result of each file, the progress of all the
+ * files added since the queue was last idle, and once all of them are done.
+ */
+public class WearFileTransferQueue {
+
+    private static final String TAG = "WearFileTransferQueue";
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private final Node mNode;
+    private final int mMaxConcurrentTransfers;
+    private final int mMaxRetries;
+    private final OnQueueListener mListener;
+
+    // all the state below is guarded by "this"
+    private final PriorityQueue<Item> mPending = new PriorityQueue<>();
+    private final Map<String, Item> mActive = new HashMap<>();
+    private int mRetrying;
+    private long mSequence;
+    private long mTotalBytes;
+    private long mCompletedBytes;
+    private int mSucceeded;
+    private int mFailed;
+
+    private WearFileTransferQueue(Builder builder) {
+        mNode = builder.mNode;
+        mMaxConcurrentTransfers = builder.mMaxConcurrentTransfers;
+        mMaxRetries = builder.mMaxRetries;
+        mListener = builder.mListener;
+    }
+
+    /** Builder for {@link WearFileTransferQueue}. */
+    public static final class Builder {
+        private final Node mNode;
+        private int mMaxConcurrentTransfers = 2;
+        private int mMaxRetries = 3;
+        private OnQueueListener mListener;
+
+        /**
+         * A Builder class to help with the construction of a {@link WearFileTransferQueue}.
+         *
+         * @param targetNode The {@link Node} to send the files to.
+         */
+        public Builder(Node targetNode) {
+            mNode = Utils.assertNotNull(targetNode, "targetNode");
+        }
+
+        /**
+         * Sets how many files can be sent at the same time. Default is 2.
+         */
+        public Builder setMaxConcurrentTransfers(int maxConcurrentTransfers) {
+            if (maxConcurrentTransfers < 1) {
+                throw new IllegalArgumentException("maxConcurrentTransfers should be at least 1");
+            }
+            mMaxConcurrentTransfers = maxConcurrentTransfers;
+            return this;
+        }
+
+        /**
+         * Sets how many more times a file is tried after it fails. Default is 3.
+         */
+        public Builder setMaxRetries(int maxRetries) {
+            if (maxRetries < 0) {
+                throw new IllegalArgumentException("maxRetries cannot be negative");
+            }
+            mMaxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * Sets an optional {@link OnQueueListener} to be notified of the results and the progress
+         * of the transfers.
+         */
+        public Builder setOnQueueListener(OnQueueListener listener) {
+            mListener = Utils.assertNotNull(listener, "listener");
+            return this;
+        }
+
+        public WearFileTransferQueue build() {
+            return new WearFileTransferQueue(this);
+        }
+    }
+
+    /**
+     * Adds {@code file} to the queue, with {@link #PRIORITY_NORMAL} and under its own name.
+     *
+     * @return The request id of the transfer of {@code file}
+     */
+    public String add(File file) {
+        return add(file, null, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Adds {@code file} to the queue. It is sent as soon as fewer than the maximum number of
+     * transfers are running and no file of a higher priority is waiting.
+     *
+     * @param targetName The name of the file at the destination, or {@code null} to use the name
+     * of {@code file}
+     * @param priority Files with a higher priority are sent first, for example
+     * {@link #PRIORITY_HIGH}
+     * @return The request id of the transfer of {@code file}
+     */
+    public String add(File file, @Nullable String targetName, int priority) {
+        Utils.assertNotNull(file, "file");
+        if (!file.exists()) {
+            throw new IllegalArgumentException(
+                    "The file to be transferred doesn't exist: " + file.getAbsolutePath());
+        }
+        Item item = new Item(file, targetName, priority);
+        synchronized (this) {
+            item.mSequence = mSequence++;
+            mTotalBytes += item.mSize;
+            mPending.add(item);
+        }
+        startNext();
+        return item.mRequestId;
+    }
+
+    /**
+     * Removes the files that have not started yet from the queue. The running transfers, and the
+     * failed ones waiting for a retry, are not affected.
+     */
+    public void clearPending() {
+        synchronized (this) {
+            for (Item item : mPending) {
+                mTotalBytes -= item.mSize;
+            }
+            mPending.clear();
+        }
+        notifyIfIdle();
+    }
+
+    /**
+     * Returns the number of files that are waiting or being sent.
+     */
+    public synchronized int size() {
+        return mPending.size() + mActive.size() + mRetrying;
+    }
+
+    private void startNext() {
+        while (true) {
+            final Item item;
+            synchronized (this) {
+                if (mActive.size() >= mMaxConcurrentTransfers || mPending.isEmpty()) {
+                    return;
+                }
+                item = mPending.poll();
+                mActive.put(item.mRequestId, item);
+            }
+            item.mAttempts++;
+            WearFileTransfer fileTransfer = new WearFileTransfer.Builder(mNode)
+                    .setFile(item.mFile)
+                    .setTargetName(item.mTargetName)
+                    .setRequestId(item.mRequestId)
+                    .setResumable(true)
+                    .setOnChannelTransferProgressListener(
+                            new WearFileTransfer.OnChannelTransferThroughputListener() {
+                                @Override
+                                public void onProgressUpdated(long progress, long total) {
+                                    onItemProgress(item, progress, 0);
+                                }
+
+                                @Override
+                                public void onProgressUpdated(long progress, long total,
+                                        long bytesPerSecond) {
+                                    onItemProgress(item, progress, bytesPerSecond);
+                                }
+                            })
+                    .setOnFileTransferResultListener(
+                            new WearFileTransfer.OnFileTransferRequestListener() {
+                                @Override
+                                public void onFileTransferStatusResult(int statusCode) {
+                                    onItemDone(item, statusCode);
+                                }
+                            })
+                    .build();
+            try {
+                fileTransfer.startTransfer();
+            } catch (RuntimeException e) {
+                // the node is no longer nearby, or the client is disconnected; either way the item
+                // has to leave mActive, or its slot is lost and the queue never completes
+                Log.e(TAG, "Failed to start the transfer of " + item.mFile, e);
+                final int statusCode = e instanceof IllegalArgumentException
+                        ? WearableStatusCodes.TARGET_NODE_NOT_CONNECTED : CommonStatusCodes.ERROR;
+                WclExecutors.getMainThreadExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onItemDone(item, statusCode);
+                    }
+                });
+            }
+        }
+    }
+
+    private void onItemProgress(Item item, long progress, long bytesPerSecond) {
+        long totalProgress;
+        long totalBytesPerSecond = 0;
+        long totalBytes;
+        synchronized (this) {
+            if (!mActive.containsKey(item.mRequestId)) {
+                return;
+            }
+            item.mProgress = progress;
+            item.mBytesPerSecond = bytesPerSecond;
+            totalProgress = mCompletedBytes;
+            for (Item active : mActive.values()) {
+                totalProgress += active.mProgress;
+                totalBytesPerSecond += active.mBytesPerSecond;
+            }
+            totalBytes = mTotalBytes;
+        }
+        if (mListener != null) {
+            mListener.onProgressUpdated(totalProgress, totalBytes, totalBytesPerSecond);
+        }
+    }
+
+    private void onItemDone(final Item item, int statusCode) {
+        boolean retry = false;
+        synchronized (this) {
+            if (mActive.remove(item.mRequestId) == null) {
+                return;
+            }
+            if (statusCode == CommonStatusCodes.SUCCESS) {
+                mSucceeded++;
+                mCompletedBytes += item.mSize;
+            } else if (item.mAttempts <= mMaxRetries && isRetriable(statusCode)) {
+                retry = true;
+                mRetrying++;
+            } else {
+                mFailed++;
+                mTotalBytes -= item.mSize;
+            }
+            item.mProgress = 0;
+            item.mBytesPerSecond = 0;
+        }
+        if (retry) {
+            // back off, in case the link is down for a while
+            long delay = RETRY_DELAY_MS << Math.min(item.mAttempts - 1, 5);
+            Log.e(TAG, "Failed to send " + item.mFile + ", status code: " + statusCode
+                    + ", retrying in " + delay + "ms");
+            WclExecutors.getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    WclExecutors.getMainThreadExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (WearFileTransferQueue.this) {
+                                mRetrying--;
+                                mPending.add(item);
+                            }
+                            startNext();
+                        }
+                    });
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } else if (mListener != null) {
+            mListener.onFileTransferResult(item.mRequestId, item.mFile, statusCode);
+        }
+        startNext();
+        notifyIfIdle();
+    }
+
+    /**
+     * Returns {@code false} for the failures that would only happen again, such as the receiver
+     * refusing the file.
+     */
+    private static boolean isRetriable(int statusCode) {
+        return statusCode != FileReceivePolicy.STATUS_REJECTED
+                && statusCode != FileReceivePolicy.STATUS_INSUFFICIENT_SPACE;
+    }
+
+    private void notifyIfIdle() {
+        int succeeded;
+        int failed;
+        synchronized (this) {
+            if (!mPending.isEmpty() || !mActive.isEmpty() || mRetrying > 0
+                    || mSucceeded + mFailed == 0) {
+                return;
+            }
+            succeeded = mSucceeded;
+            failed = mFailed;
+            mSucceeded = 0;
+            mFailed = 0;
+            mTotalBytes = 0;
+            mCompletedBytes = 0;
+        }
+        if (mListener != null) {
+            mListener.onQueueCompleted(succeeded, failed);
+        }
+    }
+
+    /**
+     * A file in the queue.
+     */
+    private static final class Item implements Comparable<Item> {
+
+        private final File mFile;
+        private final String mTargetName;
+        private final int mPriority;
+        private final long mSize;
+        private final String mRequestId = UUID.randomUUID().toString();
+        private long mSequence;
+        private int mAttempts;
+        private long mProgress;
+        private long mBytesPerSecond;
+
+        Item(File file, @Nullable String targetName, int priority) {
+            mFile = file;
+            mTargetName = targetName;
+            mPriority = priority;
+            mSize = file.length();
+        }
+
+        @Override
+        public int compareTo(Item other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence > other.mSequence ? 1 : 0);
+        }
+    }
+
+    /**
+     * An interface to be notified of the results and the progress of the transfers of a
+     * {@link WearFileTransferQueue}. All the methods are called on the main thread.
+     */
+    public interface OnQueueListener {
+
+        /**
+         * Called when a file has been sent, or has failed after all its retries.
+         */
+        void onFileTransferResult(String requestId, File file, int statusCode);
+
+        /**
+         * Called with the progress of all the files that were added since the queue was last
+         * idle. {@code progress} and {@code total} are in bytes; {@code bytesPerSecond} is the
+         * throughput of all the running transfers together.
+         */
+        void onProgressUpdated(long progress, long total, long bytesPerSecond);
+
+        /**
+         * Called when there is nothing left to send, with the number of files that were sent and
+         * that failed since the queue was last idle.
+         */
+        void onQueueCompleted(int succeeded, int failed);
+    }
+}
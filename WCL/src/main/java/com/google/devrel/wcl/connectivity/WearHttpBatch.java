@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl.connectivity;
+
+import com.google.android.gms.wearable.DataMap;
+import com.google.devrel.wcl.Utils;
+import com.google.devrel.wcl.WclExecutors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends a number of {@link WearHttpHelper} requests to the paired device in a single message,
+ * rather than one message per request. This amortizes the cost of each message when an application
+ * needs to fetch many small resources at once, for example when it starts. The usage pattern is:
+ * <pre>
+ * new WearHttpBatch.Builder()
+ *    .addRequest(new WearHttpHelper.Builder(url1, context)
+ *        .setTargetNodeId(nodeId)
+ *        .setHttpResponseListener(listener1)
+ *        .build())
+ *    .addRequest(...)
+ *    .build()
+ *    .execute();
+ * </pre>
+ * Each request keeps its own listener, timeout and cache; the ones that can be answered from their
+ * cache or that join an identical request in flight are not sent. Requests are grouped by their
+ * target node. If wifi is available, the requests are made directly, as
+ * {@link WearHttpHelper#makeHttpRequest()} would. For the responses to be batched as well, the
+ * paired device should be using a {@link WearHttpProxy}.
+ */
+public class WearHttpBatch {
+
+    private static final String TAG = "WearHttpBatch";
+
+    private final List<WearHttpHelper> mRequests;
+    private boolean mIsCalled;
+
+    /**
+     * A Builder class to help with building a {@link WearHttpBatch}.
+     */
+    public static final class Builder {
+
+        private final List<WearHttpHelper> mRequests = new ArrayList<>();
+
+        public WearHttpBatch build() {
+            return new WearHttpBatch(this);
+        }
+
+        /**
+         * Adds a request to the batch. The request should not be made separately.
+         */
+        public Builder addRequest(WearHttpHelper request) {
+            Utils.assertNotNull(request, "request");
+            mRequests.add(request);
+            return this;
+        }
+    }
+
+    private WearHttpBatch(Builder builder) {
+        mRequests = new ArrayList<>(builder.mRequests);
+    }
+
+    /**
+     * Makes all the requests of this batch. Results are returned via the listener of each request.
+     * Note that you can call this method only once on a {@link WearHttpBatch} instance.
+     */
+    public void execute() {
+        if (mIsCalled) {
+            throw new IllegalStateException(
+                    "Calling this method multiple times on the same instance is not permitted");
+        }
+        mIsCalled = true;
+        if (mRequests.isEmpty()) {
+            return;
+        }
+        if (mRequests.get(0).canMakeDirectRequest()) {
+            for (WearHttpHelper request : mRequests) {
+                request.makeHttpRequest();
+            }
+            return;
+        }
+        for (WearHttpHelper request : mRequests) {
+            request.begin(false);
+        }
+
+        // caches live on disk, so the requests are prepared on the I/O pool
+        WclExecutors.getIoExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                sendRequests();
+            }
+        });
+    }
+
+    private void sendRequests() {
+        Map<String, ArrayList<DataMap>> requestsByNode = new HashMap<>();
+        for (WearHttpHelper request : mRequests) {
+            if (request.serveFromCache()) {
+                continue;
+            }
+            DataMap dataMap = request.prepareRequest();
+            if (dataMap == null) {
+                continue;
+            }
+            ArrayList<DataMap> requests = requestsByNode.get(request.getTargetNodeId());
+            if (requests == null) {
+                requests = new ArrayList<>();
+                requestsByNode.put(request.getTargetNodeId(), requests);
+            }
+            requests.add(dataMap);
+        }
+        for (Map.Entry<String, ArrayList<DataMap>> entry : requestsByNode.entrySet()) {
+            ArrayList<DataMap> requests = entry.getValue();
+            List<String> requestIds = new ArrayList<>(requests.size());
+            for (DataMap request : requests) {
+                requestIds.add(request.getString(WearHttpHelper.KEY_REQUEST_ID));
+            }
+            DataMap dataMap;
+            if (requests.size() == 1) {
+                dataMap = requests.get(0);
+            } else {
+                dataMap = new DataMap();
+                dataMap.putDataMapArrayList(WearHttpHelper.KEY_BATCH, requests);
+            }
+            Utils.LOGD(TAG, "Sending " + requests.size() + " request(s) to " + entry.getKey());
+            WearHttpHelper.sendRequestMessage(entry.getKey(), dataMap, requestIds);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl.connectivity;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.android.gms.wearable.DataMap;
+import com.google.devrel.wcl.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An on-disk cache for the responses to the GET requests made through {@link WearHttpHelper}. A
+ * fresh cached response is returned without any round trip to the paired device or the network; a
+ * stale one is revalidated with a conditional request ({@code If-None-Match} and
+ * {@code If-Modified-Since}), so an unchanged response costs only a status code on the way back.
+ * <p/>
+ * The cache honors the {@code Cache-Control} ({@code max-age}, {@code no-cache} and
+ * {@code no-store}) and {@code Expires} headers of the responses and is bounded by the total size
+ * of its files; the least recently used entries are evicted first. A cache should be created once
+ * per directory and shared by all the requests, for example:
+ * <pre>
+ * WearHttpCache cache = WearHttpCache.create(context, 1024 * 1024);
+ * new WearHttpHelper.Builder(url, context)
+ *    .setCache(cache)
+ *    ...
+ * </pre>
+ * All the methods of this class perform disk I/O and should not be called on the UI thread.
+ */
+public class WearHttpCache {
+
+    private static final String TAG = "WearHttpCache";
+    private static final String DIRECTORY_NAME = "wcl-http-cache";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_BODY = "body";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last-modified";
+    private static final String KEY_EXPIRES_AT = "expires-at";
+    private static final String KEY_NO_CACHE = "no-cache";
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+
+    // file name -> file size, in access order
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSizeBytes;
+    private boolean mInitialized;
+
+    /**
+     * Creates a cache in a private directory under {@link Context#getCacheDir()}.
+     *
+     * @param maxSizeBytes The maximum total size of the cached responses, in bytes
+     */
+    public static WearHttpCache create(Context context, long maxSizeBytes) {
+        return new WearHttpCache(new File(context.getCacheDir(), DIRECTORY_NAME), maxSizeBytes);
+    }
+
+    /**
+     * Creates a cache that stores its entries in {@code directory}. No other files should be
+     * placed in that directory.
+     *
+     * @param maxSizeBytes The maximum total size of the cached responses, in bytes
+     */
+    public WearHttpCache(File directory, long maxSizeBytes) {
+        Utils.assertNotNull(directory, "directory");
+        if (maxSizeBytes <= 0) {
+            throw new IllegalArgumentException("maxSizeBytes should be positive");
+        }
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Returns the total size of the cached responses, in bytes.
+     */
+    public synchronized long getSize() {
+        initialize();
+        return mSizeBytes;
+    }
+
+    /**
+     * Removes all the cached responses.
+     */
+    public synchronized void clear() {
+        initialize();
+        for (String name : mEntries.keySet()) {
+            new File(mDirectory, name).delete();
+        }
+        mEntries.clear();
+        mSizeBytes = 0;
+    }
+
+    /**
+     * Returns the cached response for {@code url}, fresh or not, or {@code null} if there is none.
+     */
+    @Nullable
+    synchronized Entry get(String url) {
+        initialize();
+        String name = toFileName(url);
+        if (mEntries.get(name) == null) {
+            return null;
+        }
+        File file = new File(mDirectory, name);
+        try {
+            DataMap dataMap = DataMap.fromByteArray(readFully(file));
+            if (!url.equals(dataMap.getString(KEY_URL))) {
+                return null;
+            }
+
+            // the modification time persists the access order across restarts
+            file.setLastModified(System.currentTimeMillis());
+            return new Entry(dataMap);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to read the cache entry for " + url, e);
+            removeFile(name);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the response to a GET request for {@code url}, if its headers allow that; otherwise
+     * removes any previously cached response.
+     *
+     * @param headers The response headers, as sent by {@link WearHttpProxy}
+     */
+    synchronized void put(String url, String body, DataMap headers) {
+        initialize();
+        String cacheControl = headers.getString(WearHttpHelper.KEY_CACHE_CONTROL);
+        String etag = headers.getString(WearHttpHelper.KEY_ETAG);
+        String lastModified = headers.getString(WearHttpHelper.KEY_LAST_MODIFIED);
+        String name = toFileName(url);
+        if (hasDirective(cacheControl, "no-store")
+                || (TextUtils.isEmpty(etag) && TextUtils.isEmpty(lastModified)
+                && computeExpiresAt(headers) <= System.currentTimeMillis())) {
+            // nothing we could ever reuse or revalidate
+            removeFile(name);
+            return;
+        }
+        DataMap dataMap = new DataMap();
+        dataMap.putString(KEY_URL, url);
+        dataMap.putString(KEY_BODY, body);
+        dataMap.putString(KEY_ETAG, etag);
+        dataMap.putString(KEY_LAST_MODIFIED, lastModified);
+        dataMap.putLong(KEY_EXPIRES_AT, computeExpiresAt(headers));
+        dataMap.putBoolean(KEY_NO_CACHE, hasDirective(cacheControl, "no-cache"));
+        write(name, dataMap);
+    }
+
+    /**
+     * Updates the freshness of {@code entry} after the server has confirmed, with a
+     * {@code 304 Not Modified}, that it is still valid.
+     */
+    synchronized void refresh(String url, Entry entry, DataMap headers) {
+        DataMap merged = new DataMap();
+        merged.putString(WearHttpHelper.KEY_ETAG, entry.mEtag);
+        merged.putString(WearHttpHelper.KEY_LAST_MODIFIED, entry.mLastModified);
+
+        // a 304 may carry updated validators and freshness information
+        merged.putAll(headers);
+        put(url, entry.mBody, merged);
+    }
+
+    private void write(String name, DataMap dataMap) {
+        byte[] bytes = dataMap.toByteArray();
+        if (bytes.length > mMaxSizeBytes) {
+            removeFile(name);
+            return;
+        }
+        File temp = new File(mDirectory, name + TEMP_SUFFIX);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(bytes);
+            out.close();
+            out = null;
+            if (!temp.renameTo(new File(mDirectory, name))) {
+                throw new IOException("Failed to rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write the cache entry " + name, e);
+            closeQuietly(out);
+            temp.delete();
+            removeFile(name);
+            return;
+        }
+        Long previous = mEntries.put(name, (long) bytes.length);
+        mSizeBytes += bytes.length - (previous == null ? 0 : previous);
+        trimToSize();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mSizeBytes > mMaxSizeBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            new File(mDirectory, eldest.getKey()).delete();
+            mSizeBytes -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    private void removeFile(String name) {
+        Long size = mEntries.remove(name);
+        if (size != null) {
+            mSizeBytes -= size;
+        }
+        new File(mDirectory, name).delete();
+    }
+
+    /**
+     * Loads the index of the cached files, least recently used first, the first time the cache is
+     * used.
+     */
+    private void initialize() {
+        if (mInitialized) {
+            return;
+        }
+        mInitialized = true;
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Failed to create the cache directory " + mDirectory);
+            return;
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long diff = lhs.lastModified() - rhs.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // left over from an interrupted write
+                file.delete();
+                continue;
+            }
+            mEntries.put(file.getName(), file.length());
+            mSizeBytes += file.length();
+        }
+        trimToSize();
+    }
+
+    /**
+     * Returns the time, in milliseconds since epoch, after which a response with the given headers
+     * needs to be revalidated. {@code max-age} takes precedence over {@code Expires}.
+     */
+    private static long computeExpiresAt(DataMap headers) {
+        long now = System.currentTimeMillis();
+        String cacheControl = headers.getString(WearHttpHelper.KEY_CACHE_CONTROL);
+        if (!TextUtils.isEmpty(cacheControl)) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return now + Long.parseLong(directive.substring(8).trim()) * 1000;
+                    } catch (NumberFormatException e) {
+                        return now;
+                    }
+                }
+            }
+        }
+        long expires = headers.getLong(WearHttpHelper.KEY_EXPIRES, 0);
+        return expires > 0 ? expires : now;
+    }
+
+    private static boolean hasDirective(@Nullable String cacheControl, String directive) {
+        if (TextUtils.isEmpty(cacheControl)) {
+            return false;
+        }
+        for (String token : cacheControl.split(",")) {
+            if (directive.equalsIgnoreCase(token.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String toFileName(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format(Locale.US, "%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // MD5 and UTF-8 are always available
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * A cached response.
+     */
+    static final class Entry {
+
+        final String mBody;
+        final String mEtag;
+        final String mLastModified;
+        final long mExpiresAt;
+        final boolean mNoCache;
+
+        private Entry(DataMap dataMap) {
+            mBody = dataMap.getString(KEY_BODY);
+            mEtag = dataMap.getString(KEY_ETAG);
+            mLastModified = dataMap.getString(KEY_LAST_MODIFIED);
+            mExpiresAt = dataMap.getLong(KEY_EXPIRES_AT, 0);
+            mNoCache = dataMap.getBoolean(KEY_NO_CACHE, false);
+        }
+
+        /**
+         * Returns {@code true} if this response can be used without revalidation.
+         */
+        boolean isFresh() {
+            return !mNoCache && System.currentTimeMillis() < mExpiresAt;
+        }
+    }
+}
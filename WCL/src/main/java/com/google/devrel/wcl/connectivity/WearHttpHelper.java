@@ -19,6 +19,7 @@ package com.google.devrel.wcl.connectivity;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
+import android.support.annotation.Nullable;
 import android.support.annotation.StringDef;
 import android.text.TextUtils;
 import android.util.Log;
@@ -29,25 +30,26 @@ import com.google.android.gms.wearable.MessageApi;
 import com.google.android.gms.wearable.MessageEvent;
 import com.google.devrel.wcl.Constants;
 import com.google.devrel.wcl.Utils;
+import com.google.devrel.wcl.WclExecutors;
 import com.google.devrel.wcl.WearManager;
-import com.google.devrel.wcl.callbacks.AbstractWearConsumer;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 /**
  * A utility class to enable a wear application making HTTP requests over the network via the
@@ -67,10 +69,14 @@ import java.util.concurrent.FutureTask;
  *    .makeHttpRequest();
  * </pre>
  * Callers can register a {@link WearHttpHelper.OnHttpResponseListener} listener to be
- * notified of the response and the corresponding status code. It is assumed that the response
- * is of the type {@code String}. Both GET and POST are supported and clients can set a timeout
+ * notified of the response and the corresponding status code, as a {@code String}. Responses that
+ * are large or binary can instead be read as a stream, by registering a
+ * {@link WearHttpHelper.OnHttpStreamResponseListener}. Both GET and POST are supported and clients can set a timeout
  * for the call. For GET requests, query parameters should be included in the url but for POST
  * requests, they should be provided separately. Setters in this class can be chained.
+ * <p/>
+ * The responses to GET requests can be cached on the wearable by setting a {@link WearHttpCache};
+ * see {@link Builder#setCache(WearHttpCache)}.
  */
 public class WearHttpHelper {
 
@@ -82,14 +88,25 @@ public class WearHttpHelper {
     public static final String KEY_CHARSET = "wear-utils:charset";
     public static final String KEY_METHOD_TYPE = "wear-utils:method-type";
     public static final String KEY_QUERY_PARAMS = "wear-utils:query-params";
+    public static final String KEY_IF_NONE_MATCH = "wear-utils:if-none-match";
+    public static final String KEY_IF_MODIFIED_SINCE = "wear-utils:if-modified-since";
+    public static final String KEY_ETAG = "wear-utils:etag";
+    public static final String KEY_LAST_MODIFIED = "wear-utils:last-modified";
+    public static final String KEY_CACHE_CONTROL = "wear-utils:cache-control";
+    public static final String KEY_EXPIRES = "wear-utils:expires";
+    public static final String KEY_BATCH = "wear-utils:batch";
+    public static final String KEY_RESPONSE_BYTES = "wear-utils:http-response-bytes";
+    public static final String KEY_ACCEPT_ENCODING = "wear-utils:accept-encoding";
+    public static final String KEY_CONTENT_ENCODING = "wear-utils:content-encoding";
+    static final String ENCODING_GZIP = "gzip";
+    static final String ENCODING_IDENTITY = "identity";
     private static final long TIMEOUT_MS = 15000L; //default timeout (15 seconds)
     public static final String METHOD_GET = "GET";
     public static final String METHOD_POST = "POST";
     private static final String DEFAULT_CHARSET = "UTF-8";
     private final Handler mHandler;
     private boolean mIsCalled;
-    private FutureTask<Void> mFuture;
-    private ExecutorService mExecutorService;
+    private Future<?> mFuture;
 
     @Retention(RetentionPolicy.SOURCE)
     @StringDef({METHOD_GET, METHOD_POST})
@@ -103,15 +120,19 @@ public class WearHttpHelper {
     private final String mRequestId;
     private final Context mContext;
     private final WearManager mWearManager;
-    private final AbstractWearConsumer mWearConsumer;
     private final String mHttpMethod;
     private OnHttpResponseListener mListener;
+    private OnHttpStreamResponseListener mStreamListener;
     private final String mNodeId;
     private final long mTimeout;
     private final String mQueryParams;
     private final String mCharset;
-    private Timer mTimer;
-    private TimerTask mTimerTask;
+    private final WearHttpCache mCache;
+    private final boolean mCompressionEnabled;
+    private volatile WearHttpCache.Entry mCachedEntry;
+    private volatile ScheduledFuture<?> mTimeoutFuture;
+    private volatile HttpURLConnection mConnection;
+    private volatile boolean mAborted;
 
     /**
      * A Builder class to help with building a {@link WearHttpHelper}. The usage pattern is like the
@@ -132,10 +153,13 @@ public class WearHttpHelper {
         private Context mContext;
         private String mHttpMethod = METHOD_GET;
         private OnHttpResponseListener mListener;
+        private OnHttpStreamResponseListener mStreamListener;
         private String mNodeId;
         private long mTimeout = TIMEOUT_MS;
         private String mQueryParams;
         private String mCharset = DEFAULT_CHARSET;
+        private WearHttpCache mCache;
+        private boolean mCompressionEnabled;
 
         /**
          * The Builder for the {@link WearHttpHelper}. Use this class to construct an instance of
@@ -172,6 +196,29 @@ public class WearHttpHelper {
             return this;
         }
 
+        /**
+         * Registers a {@link WearHttpHelper.OnHttpStreamResponseListener} listener to be notified
+         * when the http response is ready, with a stream to read its body from. The body is never
+         * held in memory as a whole, so this suits large or binary responses. If this listener is
+         * set, the {@link WearHttpHelper.OnHttpResponseListener} is not called, the request is not
+         * cached and it is never merged with other identical requests.
+         */
+        public Builder setHttpStreamResponseListener(OnHttpStreamResponseListener listener) {
+            mStreamListener = listener;
+            return this;
+        }
+
+        /**
+         * Asks the paired device to compress the response body, with gzip, before sending it to
+         * the wearable. This reduces the amount of data sent over the wire, at the cost of some
+         * processing on both ends. It requires the paired device to be using a
+         * {@link WearHttpProxy}. Default is {@code false}.
+         */
+        public Builder setCompressionEnabled(boolean enabled) {
+            mCompressionEnabled = enabled;
+            return this;
+        }
+
         /**
          * Sets the Charset for the request
          */
@@ -211,6 +258,18 @@ public class WearHttpHelper {
             mQueryParams = params;
             return this;
         }
+
+        /**
+         * Sets the cache for the response of a GET request. A fresh cached response is returned
+         * without making any call; a stale one is revalidated with the server and, if it has not
+         * changed, returned with the status code {@link HttpURLConnection#HTTP_OK}. For the
+         * revalidation to work through the paired device, it should be using a
+         * {@link WearHttpProxy}.
+         */
+        public Builder setCache(@Nullable WearHttpCache cache) {
+            mCache = cache;
+            return this;
+        }
     }
 
     /**
@@ -223,24 +282,49 @@ public class WearHttpHelper {
         mNodeId = builder.mNodeId;
         mHttpMethod = builder.mHttpMethod;
         mListener = builder.mListener;
+        mStreamListener = builder.mStreamListener;
         mCharset = builder.mCharset;
         mQueryParams = builder.mQueryParams;
+        // the cache keeps responses as strings, which streamed responses never become
+        mCache = builder.mStreamListener == null ? builder.mCache : null;
+        mCompressionEnabled = builder.mCompressionEnabled;
         mHandler = new Handler(Looper.getMainLooper());
         mRequestId = new Date().getTime() + "-" + new Random().nextLong();
         mWearManager = WearManager.getInstance();
-        mWearConsumer = new AbstractWearConsumer() {
-            @Override
-            public void onWearableMessageReceived(MessageEvent messageEvent) {
-                WearHttpHelper.this.onMessageReceived(messageEvent);
-            }
-        };
-        mWearManager.addWearConsumer(mWearConsumer);
     }
 
     private void makeDirectHttpRequest(String url, String method, String query) throws IOException {
         Utils.LOGD(TAG, "Making the call using makeDirectHttpRequest()");
         HttpURLConnection urlConnection = (HttpURLConnection) new URL(url).openConnection();
+        // the request runs on the shared I/O pool, so it must not be able to block it for good
+        int timeout = (int) Math.min(mTimeout, Integer.MAX_VALUE);
+        urlConnection.setConnectTimeout(timeout);
+        urlConnection.setReadTimeout(timeout);
+        mConnection = urlConnection;
+        if (mAborted) {
+            mConnection = null;
+            throw new IOException("The request was aborted");
+        }
+        try {
+            sendDirectHttpRequest(urlConnection, method, query);
+        } finally {
+            mConnection = null;
+            urlConnection.disconnect();
+        }
+    }
+
+    private void sendDirectHttpRequest(HttpURLConnection urlConnection, String method,
+            String query) throws IOException {
         urlConnection.setRequestProperty("Accept-Charset", mCharset);
+        WearHttpCache.Entry cachedEntry = mCachedEntry;
+        if (cachedEntry != null) {
+            if (!TextUtils.isEmpty(cachedEntry.mEtag)) {
+                urlConnection.setRequestProperty("If-None-Match", cachedEntry.mEtag);
+            }
+            if (!TextUtils.isEmpty(cachedEntry.mLastModified)) {
+                urlConnection.setRequestProperty("If-Modified-Since", cachedEntry.mLastModified);
+            }
+        }
         if (METHOD_POST.equals(method)) {
             urlConnection.setDoOutput(true);
             urlConnection.setRequestProperty("Content-Type",
@@ -250,36 +334,80 @@ public class WearHttpHelper {
                 output.write(query.getBytes(mCharset));
             }
         }
-        BufferedReader in = new BufferedReader(
-                new InputStreamReader(urlConnection.getInputStream()));
-        String inputLine;
-        final StringBuilder sb = new StringBuilder();
-        while ((inputLine = in.readLine()) != null) {
-            sb.append(inputLine);
+        int statusCode = urlConnection.getResponseCode();
+        InputStream in = statusCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                ? urlConnection.getErrorStream() : urlConnection.getInputStream();
+        if (in == null) {
+            in = new ByteArrayInputStream(new byte[0]);
         }
-        in.close();
-        final int statusCode = urlConnection.getResponseCode();
-        if (null != mListener) {
-            mHandler.post(new Runnable() {
+        try {
+            onResponseBody(statusCode, in, getResponseHeaders(urlConnection));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Collects the response headers that matter to a {@link WearHttpCache} into a {@link DataMap},
+     * under the same keys that {@link WearHttpProxy} uses.
+     */
+    static DataMap getResponseHeaders(HttpURLConnection connection) {
+        DataMap headers = new DataMap();
+        putIfNotEmpty(headers, KEY_ETAG, connection.getHeaderField("ETag"));
+        putIfNotEmpty(headers, KEY_LAST_MODIFIED, connection.getHeaderField("Last-Modified"));
+        putIfNotEmpty(headers, KEY_CACHE_CONTROL, connection.getHeaderField("Cache-Control"));
+        if (connection.getExpiration() > 0) {
+            headers.putLong(KEY_EXPIRES, connection.getExpiration());
+        }
+        return headers;
+    }
+
+    private static void putIfNotEmpty(DataMap dataMap, String key, String value) {
+        if (!TextUtils.isEmpty(value)) {
+            dataMap.putString(key, value);
+        }
+    }
+
+    /**
+     * Sends a message to the target node to perform an HTTP request. Result will be returned via
+     * the {@link WearHttpHelper.OnHttpResponseListener} listener, if one is registered. Note that
+     * you can call this method only once on a {@link WearHttpHelper} instance.
+     */
+    public void makeHttpRequest() {
+        final boolean direct = begin(true);
+        if (mCache != null && METHOD_GET.equals(mHttpMethod)) {
+            // the cache lives on disk, so it is looked up on the I/O pool
+            mFuture = WclExecutors.getIoExecutor().submit(new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        mListener.onHttpResponseReceived(mRequestId, statusCode, sb.toString());
-                    } catch (Exception e) {
-                        Log.e(TAG, "onHttpResponseReceived(): Encountered an exception on the "
-                                + "client side", e);
+                    if (serveFromCache()) {
+                        return;
                     }
+                    if (direct) {
+                        runDirectHttpRequest();
+                    } else {
+                        sendHttpRequest();
+                    }
+                }
+            });
+        } else if (direct) {
+            mFuture = WclExecutors.getIoExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    runDirectHttpRequest();
                 }
             });
+        } else {
+            sendHttpRequest();
         }
     }
 
     /**
-     * Sends a message to the target node to perform an HTTP request. Result will be returned via
-     * the {@link WearHttpHelper.OnHttpResponseListener} listener, if one is registered. Note that
-     * you can call this method only once on a {@link WearHttpHelper} instance.
+     * Validates this request and marks it as made. Returns {@code true} if the request should be
+     * made directly, over wifi, rather than through the target node; that is only possible if
+     * {@code allowDirect} is {@code true}.
      */
-    public void makeHttpRequest() {
+    boolean begin(boolean allowDirect) {
         validateArguments();
         if (mIsCalled) {
             // we don't want to call this multiple times
@@ -287,62 +415,117 @@ public class WearHttpHelper {
                     "Calling this method multiple times on the same instance is not permitted");
         }
         mIsCalled = true;
-        if (Utils.getWifiConnectivityStatus(mContext) == Utils.WIFI_CONNECTED) {
-            mFuture = new FutureTask<>(new Callable<Void>() {
-                @Override
-                public Void call() throws Exception {
-                    try {
-                        makeDirectHttpRequest(mUrl, mHttpMethod, mQueryParams);
-                    } catch (IOException e) {
-                        Log.e(TAG, "Failed to make the network call", e);
-                    }
-                    return null;
-                }
-            });
-            mExecutorService = Executors.newSingleThreadExecutor();
-            mExecutorService.execute(mFuture);
-            return;
+        boolean direct = allowDirect && canMakeDirectRequest();
+        if (!direct) {
+            Utils.LOGD(TAG, "Making the call using the paired device");
+            mWearManager.assertApiConnectivity();
+            if (TextUtils.isEmpty(mNodeId)) {
+                throw new IllegalArgumentException("No target node is specified");
+            }
+        }
+        return direct;
+    }
+
+    /**
+     * Returns {@code true} if wifi is available, so requests can be made directly rather than
+     * through the paired device.
+     */
+    boolean canMakeDirectRequest() {
+        return Utils.getWifiConnectivityStatus(mContext) == Utils.WIFI_CONNECTED;
+    }
+
+    /**
+     * Looks this request up in its cache, if it has one, and delivers the cached response if it is
+     * fresh. Returns {@code true} if the response was delivered. This reads from disk, so it should
+     * not be called on the UI thread.
+     */
+    boolean serveFromCache() {
+        if (mCache == null || !METHOD_GET.equals(mHttpMethod)) {
+            return false;
+        }
+        WearHttpCache.Entry entry = mCache.get(mUrl);
+        if (entry != null && entry.isFresh()) {
+            Utils.LOGD(TAG, "Serving the response from the cache for " + mUrl);
+            deliverResponse(HttpURLConnection.HTTP_OK, entry.mBody);
+            return true;
+        }
+        mCachedEntry = entry;
+        return false;
+    }
+
+    private void runDirectHttpRequest() {
+        try {
+            makeDirectHttpRequest(mUrl, mHttpMethod, mQueryParams);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to make the network call", e);
+            onResponse(ERROR_REQUEST_FAILED, null);
         }
-        Utils.LOGD(TAG, "Making the call using the paired device");
-        mWearManager.assertApiConnectivity();
-        if (TextUtils.isEmpty(mNodeId)) {
-            throw new IllegalArgumentException("No target node is specified");
+    }
+
+    /**
+     * Sends the request to the target node, to be processed there.
+     */
+    private void sendHttpRequest() {
+        DataMap dataMap = prepareRequest();
+        if (dataMap != null) {
+            sendRequestMessage(mNodeId, dataMap, Collections.singletonList(mRequestId));
         }
+    }
 
+    /**
+     * Starts the timeout of this request, registers it for its response and returns the
+     * {@link DataMap} that should be sent to the target node, or {@code null} if an identical
+     * request is already in flight, in which case its response is shared with this one.
+     */
+    @Nullable
+    DataMap prepareRequest() {
         DataMap dataMap = new DataMap();
         dataMap.putString(KEY_URL, mUrl);
         dataMap.putString(KEY_REQUEST_ID, mRequestId);
         dataMap.putString(KEY_METHOD_TYPE, mHttpMethod);
         dataMap.putString(KEY_CHARSET, mCharset);
+
+        // the presence of this key also tells the proxy that we can read binary responses
+        dataMap.putString(KEY_ACCEPT_ENCODING,
+                mCompressionEnabled ? ENCODING_GZIP : ENCODING_IDENTITY);
         if (METHOD_POST.equals(mHttpMethod) && !TextUtils.isEmpty(mQueryParams)) {
             dataMap.putString(KEY_QUERY_PARAMS, mQueryParams);
         }
+        WearHttpCache.Entry cachedEntry = mCachedEntry;
+        if (cachedEntry != null) {
+            putIfNotEmpty(dataMap, KEY_IF_NONE_MATCH, cachedEntry.mEtag);
+            putIfNotEmpty(dataMap, KEY_IF_MODIFIED_SINCE, cachedEntry.mLastModified);
+        }
 
         // if we don't receive a response within the timeout, we remove the listener
-        mTimerTask = new TimerTask() {
+        Runnable timeoutTask = new Runnable() {
             @Override
             public void run() {
-                if (mListener != null) {
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                mListener.onHttpResponseReceived(mRequestId, ERROR_TIMEOUT, null);
-                                mListener = null;
-                            } catch (Exception e) {
-                                Log.e(TAG, "onHttpResponseReceived(): Encountered an exception on "
-                                        + "the client side", e);
-                            }
-                        }
-                    });
-                }
-                removeListener();
+                deliverResponse(ERROR_TIMEOUT, null);
+                mListener = null;
+                mStreamListener = null;
             }
         };
-        mTimer = new Timer();
-        mTimer.schedule(mTimerTask, mTimeout);
+        mTimeoutFuture = WclExecutors.getScheduler().schedule(timeoutTask, mTimeout,
+                TimeUnit.MILLISECONDS);
+
+        // responses are routed back to this instance by its request id; an identical GET that is
+        // already in flight is not sent again, its response is shared instead (a stream can only
+        // be read once, so streamed responses are never shared)
+        String flightKey = METHOD_GET.equals(mHttpMethod) && mStreamListener == null
+                ? TextUtils.join("\n", new Object[]{
+                mNodeId, mHttpMethod, mUrl, mQueryParams, mCharset,
+                dataMap.getString(KEY_IF_NONE_MATCH), dataMap.getString(KEY_IF_MODIFIED_SINCE)})
+                : null;
+        return HttpResponseDispatcher.getInstance().register(this, flightKey) ? dataMap : null;
+    }
 
-        mWearManager.sendMessage(mNodeId, Constants.PATH_HTTP_REQUEST, dataMap,
+    /**
+     * Sends {@code dataMap}, which carries one or more requests, to the node {@code nodeId}. If
+     * the message cannot be sent, the requests with the given ids, and any that joined them, fail.
+     */
+    static void sendRequestMessage(String nodeId, DataMap dataMap, final List<String> requestIds) {
+        WearManager.getInstance().sendMessage(nodeId, Constants.PATH_HTTP_REQUEST, dataMap,
                 new ResultCallback<MessageApi.SendMessageResult>() {
                     @Override
                     public void onResult(MessageApi.SendMessageResult sendMessageResult) {
@@ -350,20 +533,12 @@ public class WearHttpHelper {
                             Utils.LOGD(TAG,
                                     "Failed to send message, statusCode: " + sendMessageResult
                                             .getStatus().getStatusCode());
-                            if (null != mListener) {
-                                try {
-                                    mListener.onHttpResponseReceived(mRequestId,
-                                            ERROR_REQUEST_FAILED,
-                                            null);
-                                    cleanUp();
-                                } catch (Exception e) {
-                                    //ignore
-                                }
+                            for (String requestId : requestIds) {
+                                HttpResponseDispatcher.getInstance().onSendFailed(requestId);
                             }
                         }
                     }
                 });
-
     }
 
     /**
@@ -391,31 +566,32 @@ public class WearHttpHelper {
      */
     public void abort() {
         cleanUp();
+        mAborted = true;
         if (mFuture != null) {
             mFuture.cancel(true);
             mFuture = null;
         }
-
-        if (mExecutorService != null) {
-            mExecutorService.shutdownNow();
-            mExecutorService = null;
+        // interrupting the thread does not unblock a socket read; closing the connection does
+        HttpURLConnection connection = mConnection;
+        if (connection != null) {
+            connection.disconnect();
         }
         mListener = null;
+        mStreamListener = null;
     }
 
-    private void cancelTimer() {
-        if (mTimerTask != null) {
-            mTimerTask.cancel();
-            mTimerTask = null;
-        }
-        if (null != mTimer) {
-            mTimer.cancel();
-            mTimer = null;
+    /**
+     * Cancels the timeout of this request; called once the response has started arriving.
+     */
+    void cancelTimer() {
+        if (mTimeoutFuture != null) {
+            mTimeoutFuture.cancel(false);
+            mTimeoutFuture = null;
         }
     }
 
     private void removeListener() {
-        mWearManager.removeWearConsumer(mWearConsumer);
+        HttpResponseDispatcher.getInstance().unregister(this);
     }
 
     /**
@@ -440,39 +616,207 @@ public class WearHttpHelper {
         void onHttpResponseReceived(String requestId, int status, String response);
     }
 
+    /**
+     * The interface for receiving the result of http request as a stream.
+     *
+     * @see Builder#setHttpStreamResponseListener(WearHttpHelper.OnHttpStreamResponseListener)
+     */
+    public interface OnHttpStreamResponseListener {
+
+        /**
+         * Called, on a background thread, when the response to the HTTP request is available. The
+         * body may still be arriving while it is read, so it should be consumed within this method;
+         * it is closed when this method returns.
+         *
+         * @param requestId A unique id that was created and associated with this request
+         * @param status The status code of the response. Positive numbers reflect the
+         * HTTP status and negative values are custom errors, defined in the {@link WearHttpHelper}
+         * class.
+         * @param body The body of the response. If there is an error, this can be
+         * <code>null</code>
+         */
+        void onHttpResponseStreamReceived(String requestId, int status,
+                @Nullable InputStream body) throws IOException;
+    }
+
     public String getRequestId() {
         return mRequestId;
     }
 
+    /**
+     * Returns the id of the node that processes this request.
+     */
+    public String getTargetNodeId() {
+        return mNodeId;
+    }
+
+    /**
+     * Returns the charset that the response of this request is decoded with.
+     */
+    String getCharset() {
+        return mCharset;
+    }
+
+    /**
+     * Handles a message that may carry the response to this request.
+     *
+     * @deprecated Responses are now routed to the pending requests by the library and there is no
+     * need to call this method.
+     */
+    @Deprecated
     public void onMessageReceived(MessageEvent messageEvent) {
         if (null == messageEvent || null == messageEvent.getData() || !mIsCalled) {
             return;
         }
         String nodeId = messageEvent.getSourceNodeId();
-        final byte[] data = messageEvent.getData();
-        final DataMap dataMap = DataMap.fromByteArray(data);
+        final DataMap dataMap = DataMap.fromByteArray(messageEvent.getData());
         final String requestId = dataMap.get(KEY_REQUEST_ID);
         if (Constants.PATH_HTTP_RESPONSE.equals(messageEvent.getPath()) &&
                 mNodeId.equals(nodeId) &&
                 mRequestId.equals(requestId)) {
             // we have a message back for the same call
-            final int statusCode = dataMap.getInt(KEY_STATUS_CODE);
-            final String response = dataMap.getString(KEY_RESPONSE_DATA);
-            if (null != mListener) {
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            mListener.onHttpResponseReceived(mRequestId, statusCode, response);
-                        } catch (Exception e) {
-                            Log.e(TAG, "onHttpResponseReceived(): Encountered an exception on the "
-                                            + "client side", e);
-                        }
-                    }
-                });
+            onResponse(dataMap.getInt(KEY_STATUS_CODE), dataMap.getString(KEY_RESPONSE_DATA),
+                    dataMap);
+        }
+    }
+
+    /**
+     * Called when the response to this request has been received, with a binary body, from the
+     * target node. The body is decoded on the I/O pool.
+     */
+    void onResponseBytes(final int statusCode, final byte[] body,
+            @Nullable final DataMap headers) {
+        WclExecutors.getIoExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    onResponseBody(statusCode, new ByteArrayInputStream(body), headers);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read the response for " + mRequestId, e);
+                    onResponse(ERROR_REQUEST_FAILED, null);
+                }
             }
+        });
+    }
+
+    /**
+     * Called, on a background thread, when the body of the response to this request can be read
+     * from {@code body}. The caller closes {@code body} once this method returns.
+     *
+     * @param headers The response headers; if they carry {@link #KEY_CONTENT_ENCODING}, the body is
+     * decompressed accordingly
+     */
+    void onResponseBody(int statusCode, InputStream body, @Nullable DataMap headers)
+            throws IOException {
+        if (headers != null && ENCODING_GZIP.equals(headers.getString(KEY_CONTENT_ENCODING))) {
+            body = new GZIPInputStream(body);
+        }
+        OnHttpStreamResponseListener streamListener = mStreamListener;
+        if (streamListener == null) {
+            onResponse(statusCode, new String(readFully(body), mCharset), headers);
+            return;
+        }
+        cleanUp();
+        try {
+            streamListener.onHttpResponseStreamReceived(mRequestId, statusCode, body);
+        } catch (Exception e) {
+            Log.e(TAG, "onHttpResponseStreamReceived(): Encountered an exception on the client "
+                    + "side", e);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Called when the response to this request has been received from the target node.
+     */
+    void onResponse(int statusCode, String response) {
+        onResponse(statusCode, response, null);
+    }
+
+    /**
+     * Called when the response to this request has been received, along with the headers that a
+     * {@link WearHttpCache} needs, if available.
+     */
+    void onResponse(int statusCode, String response, @Nullable DataMap headers) {
+        WearHttpCache.Entry cachedEntry = mCachedEntry;
+        if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && cachedEntry != null) {
+            // our cached copy is still valid
+            Utils.LOGD(TAG, "Revalidated the cached response for " + mUrl);
+            updateCache(cachedEntry, null, headers);
+            statusCode = HttpURLConnection.HTTP_OK;
+            response = cachedEntry.mBody;
+        } else if (statusCode == HttpURLConnection.HTTP_OK && mCache != null
+                && METHOD_GET.equals(mHttpMethod)) {
+            updateCache(null, response, headers);
+        }
+        deliverResponse(statusCode, response);
+    }
+
+    /**
+     * Stores a new response, or refreshes a revalidated one, on the I/O pool. Without headers, the
+     * freshness of a response is unknown, so nothing is stored.
+     */
+    private void updateCache(@Nullable final WearHttpCache.Entry revalidatedEntry,
+            final String response, @Nullable final DataMap headers) {
+        if (mCache == null || headers == null) {
+            return;
+        }
+        WclExecutors.getIoExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (revalidatedEntry != null) {
+                    mCache.refresh(mUrl, revalidatedEntry, headers);
+                } else {
+                    mCache.put(mUrl, response, headers);
+                }
+            }
+        });
+    }
+
+    private void deliverResponse(final int statusCode, final String response) {
+        final OnHttpStreamResponseListener streamListener = mStreamListener;
+        if (null != streamListener) {
+            // an error, or a response that was sent as a string
+            WclExecutors.getIoExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        streamListener.onHttpResponseStreamReceived(mRequestId, statusCode,
+                                response == null ? null
+                                        : new ByteArrayInputStream(response.getBytes(mCharset)));
+                    } catch (Exception e) {
+                        Log.e(TAG, "onHttpResponseStreamReceived(): Encountered an exception on "
+                                + "the client side", e);
+                    }
+                }
+            });
             cleanUp();
+            return;
         }
+        final OnHttpResponseListener listener = mListener;
+        if (null != listener) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        listener.onHttpResponseReceived(mRequestId, statusCode, response);
+                    } catch (Exception e) {
+                        Log.e(TAG, "onHttpResponseReceived(): Encountered an exception on the "
+                                        + "client side", e);
+                    }
+                }
+            });
+        }
+        cleanUp();
     }
 
 }
@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.google.devrel.wcl.connectivity;
+
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.wearable.Channel;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.MessageApi;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.WearableStatusCodes;
+import com.google.devrel.wcl.Constants;
+import com.google.devrel.wcl.Utils;
+import com.google.devrel.wcl.WclExecutors;
+import com.google.devrel.wcl.WearManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An HTTP proxy that runs on the handheld and fulfills the requests that wearable apps make through
+ * {@link WearHttpHelper}. Without a proxy, each client has to register
+ * {@link com.google.devrel.wcl.callbacks.WearConsumer#onWearableHttpRequestReceived(String, String,
+ * String, String, String, String)}, make the call and send the response back; once a proxy is
+ * installed by calling {@link WearManager#setHttpProxy(WearHttpProxy)}, the library does all that.
+ * <p/>
+ * A typical usage, in the {@code onCreate()} of the handheld application, is:
+ * <pre>
+ * WearManager.getInstance().setHttpProxy(new WearHttpProxy.Builder()
+ *     .setMaxConcurrentRequests(4) // optional, 4 is default
+ *     .build());
+ * </pre>
+ * Requests are executed on a bounded pool, so no more than the configured number of requests
+ * are in flight at any time. Connections are reused across requests (HTTP keep-alive) since
+ * response bodies are always read to the end. Responses that fit in a message are sent back in
+ * one; larger ones are streamed to the wearable over a channel, so they are not bound by the size
+ * limit of a message. Bodies are sent as bytes, compressed with gzip if the wearable asked for it
+ * (see {@link WearHttpHelper.Builder#setCompressionEnabled(boolean)}). The requests of a {@link WearHttpBatch} are executed concurrently and their
+ * responses are sent back together.
+ */
+public class WearHttpProxy {
+
+    private static final String TAG = "WearHttpProxy";
+    private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+    private static final int DEFAULT_TIMEOUT_MS = 15000;
+
+    // MessageApi payloads are limited to 100KB; leave room for the rest of the DataMap
+    private static final int DEFAULT_MAX_INLINE_RESPONSE_BYTES = 90 * 1024;
+    private static final long CHANNEL_TIMEOUT_MS = 10000;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    // how long the finished responses of a batch wait for others to share a message with
+    private static final long BATCH_COALESCE_MS = 200;
+    private static final String DEFAULT_CHARSET = "UTF-8";
+
+    // compressing smaller bodies is not worth the gzip overhead
+    private static final int MIN_COMPRESSIBLE_BYTES = 256;
+
+    private final ExecutorService mExecutor;
+    private final int mConnectTimeout;
+    private final int mReadTimeout;
+    private final int mMaxInlineResponseBytes;
+
+    /**
+     * A Builder class to help with building a {@link WearHttpProxy}.
+     */
+    public static final class Builder {
+
+        private int mMaxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+        private int mConnectTimeout = DEFAULT_TIMEOUT_MS;
+        private int mReadTimeout = DEFAULT_TIMEOUT_MS;
+        private int mMaxInlineResponseBytes = DEFAULT_MAX_INLINE_RESPONSE_BYTES;
+        private int mMaxIdleConnections;
+
+        public WearHttpProxy build() {
+            if (mMaxIdleConnections > 0 && System.getProperty("http.maxConnections") == null) {
+                // only honored if set before the first connection of the process is made
+                System.setProperty("http.maxConnections", String.valueOf(mMaxIdleConnections));
+            }
+            return new WearHttpProxy(this);
+        }
+
+        /**
+         * Sets the maximum number of requests that are executed at the same time; requests beyond
+         * that wait in a queue. Default is 4.
+         */
+        public Builder setMaxConcurrentRequests(int maxConcurrentRequests) {
+            if (maxConcurrentRequests < 1) {
+                throw new IllegalArgumentException("maxConcurrentRequests should be positive");
+            }
+            mMaxConcurrentRequests = maxConcurrentRequests;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of idle connections that are kept alive for reuse. This maps to
+         * the {@code http.maxConnections} system property, which only takes effect if it is set
+         * before the first HTTP connection of the process is made and if the application has not
+         * set it already.
+         */
+        public Builder setMaxIdleConnections(int maxIdleConnections) {
+            mMaxIdleConnections = maxIdleConnections;
+            return this;
+        }
+
+        /**
+         * Sets the connect and read timeouts, in milliseconds, for the network calls. Default is
+         * 15000 ms for each.
+         */
+        public Builder setTimeouts(int connectTimeout, int readTimeout) {
+            mConnectTimeout = connectTimeout;
+            mReadTimeout = readTimeout;
+            return this;
+        }
+
+        /**
+         * Sets the largest response body, in bytes, that is sent back inside a message. Larger
+         * bodies are streamed over a channel. Default is 90KB.
+         */
+        public Builder setMaxInlineResponseSize(int maxInlineResponseBytes) {
+            mMaxInlineResponseBytes = maxInlineResponseBytes;
+            return this;
+        }
+    }
+
+    private WearHttpProxy(Builder builder) {
+        mConnectTimeout = builder.mConnectTimeout;
+        mReadTimeout = builder.mReadTimeout;
+        mMaxInlineResponseBytes = builder.mMaxInlineResponseBytes;
+        mExecutor = WclExecutors.newBoundedPool("wcl-http-proxy", builder.mMaxConcurrentRequests);
+    }
+
+    /**
+     * Queues a request that was received from the node with id {@code nodeId}. The response will be
+     * sent back to that node when it is ready. This is called by the library when it receives a
+     * request made through {@link WearHttpHelper}.
+     *
+     * @param request The {@link DataMap} that describes the request, or a batch of requests, as
+     * sent by {@link WearHttpHelper} or {@link WearHttpBatch}
+     */
+    public void execute(final String nodeId, DataMap request) {
+        Utils.assertNotEmpty(nodeId, "nodeId");
+        Utils.assertNotNull(request, "request");
+        List<DataMap> requests = request.getDataMapArrayList(WearHttpHelper.KEY_BATCH);
+        final BatchResponse batchResponse;
+        if (requests == null) {
+            Utils.assertNotEmpty(request.getString(WearHttpHelper.KEY_REQUEST_ID), "requestId");
+            requests = Collections.singletonList(request);
+            batchResponse = null;
+        } else {
+            batchResponse = new BatchResponse(nodeId, requests.size());
+        }
+        for (final DataMap item : requests) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    proxyRequest(nodeId, item, batchResponse);
+                }
+            });
+        }
+    }
+
+    /**
+     * Executes a single request. The response is sent back on its own or, if
+     * {@code batchResponse} is not {@code null}, along with the other responses of its batch.
+     */
+    private void proxyRequest(String nodeId, DataMap request,
+            @Nullable BatchResponse batchResponse) {
+        String requestId = request.getString(WearHttpHelper.KEY_REQUEST_ID);
+        DataMap response;
+        try {
+            response = fetch(nodeId, request);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to proxy the request " + requestId, e);
+            response = buildResponse(requestId, WearHttpHelper.ERROR_REQUEST_FAILED, null, null);
+        }
+        if (batchResponse != null) {
+            batchResponse.onComplete(response);
+        } else if (response != null) {
+            sendResponse(nodeId, response, requestId);
+        }
+    }
+
+    /**
+     * Makes the network call for {@code request}. Returns the response, or {@code null} if the
+     * response was too large for a message and has been streamed to the node instead.
+     */
+    @Nullable
+    private DataMap fetch(String nodeId, DataMap request) throws IOException {
+        String requestId = request.getString(WearHttpHelper.KEY_REQUEST_ID);
+        String url = request.getString(WearHttpHelper.KEY_URL);
+        String method = request.getString(WearHttpHelper.KEY_METHOD_TYPE,
+                WearHttpHelper.METHOD_GET);
+        String query = request.getString(WearHttpHelper.KEY_QUERY_PARAMS);
+        String charset = request.getString(WearHttpHelper.KEY_CHARSET);
+        if (TextUtils.isEmpty(charset)) {
+            charset = DEFAULT_CHARSET;
+        }
+        Utils.LOGD(TAG, "Proxying " + method + " request " + requestId + " for node " + nodeId);
+        InputStream in = null;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(mConnectTimeout);
+            connection.setReadTimeout(mReadTimeout);
+            connection.setRequestProperty("Accept-Charset", charset);
+            setRequestPropertyIfNotEmpty(connection, "If-None-Match",
+                    request.getString(WearHttpHelper.KEY_IF_NONE_MATCH));
+            setRequestPropertyIfNotEmpty(connection, "If-Modified-Since",
+                    request.getString(WearHttpHelper.KEY_IF_MODIFIED_SINCE));
+            if (WearHttpHelper.METHOD_POST.equals(method)) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type",
+                        "application/x-www-form-urlencoded;charset=" + charset);
+                if (!TextUtils.isEmpty(query)) {
+                    OutputStream output = connection.getOutputStream();
+                    output.write(query.getBytes(charset));
+                    output.close();
+                }
+            }
+            int statusCode = connection.getResponseCode();
+            in = statusCode >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream()
+                    : connection.getInputStream();
+            DataMap headers = WearHttpHelper.getResponseHeaders(connection);
+            String acceptEncoding = request.getString(WearHttpHelper.KEY_ACCEPT_ENCODING);
+            boolean gzip = WearHttpHelper.ENCODING_GZIP.equals(acceptEncoding);
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            if (in != null && !readAtMost(in, head, mMaxInlineResponseBytes)) {
+                if (gzip) {
+                    headers.putString(WearHttpHelper.KEY_CONTENT_ENCODING,
+                            WearHttpHelper.ENCODING_GZIP);
+                }
+                streamResponse(head, in, statusCode, headers, nodeId, requestId);
+                return null;
+            }
+            if (acceptEncoding == null) {
+                // an older client, which only understands string responses
+                return buildResponse(requestId, statusCode,
+                        new String(head.toByteArray(), charset), headers);
+            }
+            DataMap response = buildResponse(requestId, statusCode, null, headers);
+            byte[] body = head.toByteArray();
+            if (gzip && body.length > MIN_COMPRESSIBLE_BYTES) {
+                byte[] compressed = gzip(body);
+                if (compressed.length < body.length) {
+                    body = compressed;
+                    response.putString(WearHttpHelper.KEY_CONTENT_ENCODING,
+                            WearHttpHelper.ENCODING_GZIP);
+                }
+            }
+            response.putByteArray(WearHttpHelper.KEY_RESPONSE_BYTES, body);
+            return response;
+        } finally {
+            // closing (rather than disconnecting) returns the connection to the keep-alive pool
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Reads from {@code in} into {@code out} until the end of the stream or until more than
+     * {@code limit} bytes have been read. Returns {@code true} if the end of the stream was reached.
+     */
+    private static boolean readAtMost(InputStream in, ByteArrayOutputStream out, int limit)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            if (out.size() > limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+        GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+        gzipOut.write(data);
+        gzipOut.close();
+        return out.toByteArray();
+    }
+
+    private static void setRequestPropertyIfNotEmpty(HttpURLConnection connection, String field,
+            String value) {
+        if (!TextUtils.isEmpty(value)) {
+            connection.setRequestProperty(field, value);
+        }
+    }
+
+    /**
+     * Builds the response in the same format as
+     * {@link WearManager#sendHttpResponse(String, int, DataMap, String, String, ResultCallback)}.
+     */
+    private static DataMap buildResponse(String requestId, int statusCode,
+            @Nullable String response, @Nullable DataMap headers) {
+        DataMap dataMap = new DataMap();
+        if (headers != null) {
+            dataMap.putAll(headers);
+        }
+        dataMap.putString(WearHttpHelper.KEY_REQUEST_ID, requestId);
+        dataMap.putString(WearHttpHelper.KEY_RESPONSE_DATA, response);
+        dataMap.putInt(WearHttpHelper.KEY_STATUS_CODE, statusCode);
+        return dataMap;
+    }
+
+    private static void sendResponse(String nodeId, DataMap dataMap, final String description) {
+        WearManager.getInstance().sendMessage(nodeId, Constants.PATH_HTTP_RESPONSE, dataMap,
+                new ResultCallback<MessageApi.SendMessageResult>() {
+                    @Override
+                    public void onResult(MessageApi.SendMessageResult sendMessageResult) {
+                        if (!sendMessageResult.getStatus().isSuccess()) {
+                            Log.e(TAG, "Failed to send the response for " + description
+                                    + ", status code: "
+                                    + sendMessageResult.getStatus().getStatusCode());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Opens a channel to the requesting node and writes the response body to it. The status code
+     * and request id are carried in the path of the channel; the response headers precede the body,
+     * as a length-prefixed {@link DataMap}, and the body is framed by {@link ResponseBodyFraming}
+     * so that the receiver can tell a complete body from one that was cut short.
+     */
+    private void streamResponse(ByteArrayOutputStream head, InputStream rest, int statusCode,
+            DataMap headers, String nodeId, String requestId) throws IOException {
+        WearManager wearManager = WearManager.getInstance();
+        Node node = wearManager.getNodeById(nodeId);
+        if (node == null || !node.isNearby()) {
+            throw new IOException("Node " + nodeId + " is not reachable for streaming");
+        }
+        String path = Constants.PATH_HTTP_RESPONSE_STREAM + requestId + "/" + statusCode;
+        final CountDownLatch latch = new CountDownLatch(1);
+        final OutputStream[] streamHolder = new OutputStream[1];
+        wearManager.getOutputStreamViaChannel(node, path,
+                new WearFileTransfer.OnWearableChannelOutputStreamListener() {
+                    @Override
+                    public void onOutputStreamForChannelReady(int statusCode, Channel channel,
+                            OutputStream outputStream) {
+                        if (statusCode == WearableStatusCodes.SUCCESS) {
+                            streamHolder[0] = outputStream;
+                        }
+                        latch.countDown();
+                    }
+                });
+        try {
+            if (!latch.await(CHANNEL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out opening a channel to " + nodeId);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while opening a channel to " + nodeId);
+        }
+        OutputStream out = streamHolder[0];
+        if (out == null) {
+            throw new IOException("Failed to open a channel to " + nodeId);
+        }
+        ResponseBodyFraming.FramedOutputStream framedOut = null;
+        try {
+            byte[] headerBytes = headers.toByteArray();
+            DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeInt(headerBytes.length);
+            dataOut.write(headerBytes);
+            framedOut = new ResponseBodyFraming.FramedOutputStream(out);
+            OutputStream bodyOut = framedOut;
+            GZIPOutputStream gzipOut = null;
+            if (WearHttpHelper.ENCODING_GZIP.equals(
+                    headers.getString(WearHttpHelper.KEY_CONTENT_ENCODING))) {
+                gzipOut = new GZIPOutputStream(framedOut, BUFFER_SIZE);
+                bodyOut = gzipOut;
+            }
+            head.writeTo(bodyOut);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = rest.read(buffer)) != -1) {
+                bodyOut.write(buffer, 0, read);
+            }
+            if (gzipOut != null) {
+                gzipOut.finish();
+            }
+            framedOut.finish();
+            framedOut = null;
+        } finally {
+            if (framedOut != null) {
+                // tell the receiver that the body is incomplete, rather than just ending it
+                framedOut.fail();
+            }
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Collects the responses to the requests of a batch and sends them back together, in as few
+     * messages as their size allows. A finished response waits at most
+     * {@link #BATCH_COALESCE_MS} for others to join it, so that a slow request does not hold back
+     * the responses to the fast ones until they time out.
+     */
+    private final class BatchResponse {
+
+        private final String mNodeId;
+        private final ArrayList<DataMap> mResponses = new ArrayList<>();
+        private int mRemaining;
+        private int mSizeBytes;
+        private ScheduledFuture<?> mFlushTask;
+
+        BatchResponse(String nodeId, int count) {
+            mNodeId = nodeId;
+            mRemaining = count;
+        }
+
+        /**
+         * Adds the response to one of the requests; {@code null} if that response was streamed.
+         */
+        synchronized void onComplete(@Nullable DataMap response) {
+            if (response != null) {
+                int size = response.toByteArray().length;
+                if (mSizeBytes + size > mMaxInlineResponseBytes) {
+                    flush();
+                }
+                mResponses.add(response);
+                mSizeBytes += size;
+            }
+            if (--mRemaining == 0) {
+                flush();
+            } else if (!mResponses.isEmpty() && mFlushTask == null) {
+                mFlushTask = WclExecutors.getScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (BatchResponse.this) {
+                            mFlushTask = null;
+                            flush();
+                        }
+                    }
+                }, BATCH_COALESCE_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void flush() {
+            if (mFlushTask != null) {
+                mFlushTask.cancel(false);
+                mFlushTask = null;
+            }
+            if (mResponses.isEmpty()) {
+                return;
+            }
+            if (mResponses.size() == 1) {
+                DataMap response = mResponses.get(0);
+                sendResponse(mNodeId, response,
+                        response.getString(WearHttpHelper.KEY_REQUEST_ID));
+            } else {
+                DataMap dataMap = new DataMap();
+                dataMap.putDataMapArrayList(WearHttpHelper.KEY_BATCH,
+                        new ArrayList<>(mResponses));
+                sendResponse(mNodeId, dataMap, "a batch of " + mResponses.size() + " requests");
+            }
+            mResponses.clear();
+            mSizeBytes = 0;
+        }
+    }
+}
@@ -31,6 +31,7 @@ import com.google.android.gms.wearable.WearableStatusCodes;
 import com.google.devrel.wcl.R;
 import com.google.devrel.wcl.Utils;
 import com.google.devrel.wcl.WearManager;
+import com.google.devrel.wcl.connectivity.ManagedChannelOutputStream;
 import com.google.devrel.wcl.connectivity.WearFileTransfer;
 import com.google.devrel.wcl.filters.NearbyFilter;
 import com.google.devrel.wcl.filters.SingleNodeFilter;
@@ -178,6 +179,9 @@ public class WclRecorderActivity extends WearableActivity {
      */
     public static final int STATUS_ERROR_RECORDER_FAILED = 4;
 
+    // about a second of audio at the default sample rate; older audio is dropped beyond that
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+
     @ColorRes private int mOffColorResId = R.color.wcl_voice_recorder_off;
     @ColorRes private int mOnColorResId = R.color.wcl_voice_recorder_on;
     private boolean mRecording;
@@ -367,7 +371,15 @@ public class WclRecorderActivity extends WearableActivity {
         public void onOutputStreamForChannelReady(int statusCode, Channel channel,
                 OutputStream outputStream) {
             if (statusCode == WearableStatusCodes.SUCCESS) {
-                mSoundManager.record(outputStream,
+                // the capture thread should never wait on the link, so when the link falls behind
+                // the oldest audio is dropped to keep the stream live
+                OutputStream managedOutputStream = new ManagedChannelOutputStream.Builder(
+                        outputStream)
+                        .setBufferSize(STREAM_BUFFER_SIZE)
+                        .setOverflowPolicy(ManagedChannelOutputStream.OVERFLOW_DROP_OLDEST)
+                        .setFrameSize(WclSoundManager.FRAME_SIZE)
+                        .build();
+                mSoundManager.record(managedOutputStream,
                         new WclSoundManager.OnVoiceRecordingFinishedListener() {
                             @Override
                             public void onRecordingFinished(final int reason,
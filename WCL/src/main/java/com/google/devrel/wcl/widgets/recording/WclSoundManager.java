@@ -55,6 +55,7 @@ public class WclSoundManager {
     private static final int CHANNEL_IN = AudioFormat.CHANNEL_IN_MONO;
     private static final int CHANNELS_OUT = AudioFormat.CHANNEL_OUT_MONO;
     private static final int FORMAT = AudioFormat.ENCODING_PCM_16BIT;
+    static final int FRAME_SIZE = 2; // one 16-bit sample, in mono
     public static final int SUCCESS = 1;
     public static final int ERROR_IO_EXCEPTION = 2;
     public static final int ERROR_PLAYBACK = 3;